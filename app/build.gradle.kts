@@ -39,6 +39,7 @@ dependencies {
     implementation(libs.activity)
     implementation(libs.constraintlayout)
     implementation(libs.cardview)
+    implementation(libs.recyclerview)
     implementation(libs.kommunicateui)
     testImplementation(libs.junit)
     androidTestImplementation(libs.ext.junit)
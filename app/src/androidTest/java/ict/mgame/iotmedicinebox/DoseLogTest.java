@@ -0,0 +1,91 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Logging the same scheduled dose again, in any order and any number of
+ * times, leaves one row, and the adherence rollup counts it once.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DoseLogTest {
+
+    private static final long DOSE_TIME = 1_700_000_000_000L;
+
+    private DatabaseHelper helper;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        helper = new DatabaseHelper(context, null);
+        helper.clearAllMedicationLogs();
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+    }
+
+    @Test
+    public void sameDose_collapsesIntoOneRow() {
+        long first = logDose(7, DOSE_TIME, "Snoozed", DOSE_TIME);
+        long second = logDose(7, DOSE_TIME, "Snoozed", DOSE_TIME + 300_000L);
+        long answer = logDose(7, DOSE_TIME, "Taken", DOSE_TIME + 600_000L);
+        assertEquals(first, second);
+        assertEquals(first, answer);
+
+        List<MedicationLog> logs = helper.getMedicationLogs("All", 0, Long.MAX_VALUE);
+        assertEquals(1, logs.size());
+        assertEquals("Taken", logs.get(0).getStatus());
+        assertEquals(DOSE_TIME + 600_000L, logs.get(0).getTimestamp().getTime());
+        assertEquals(DOSE_TIME, logs.get(0).getScheduledAt());
+        assertTrue(helper.verifyAdherenceRollup());
+    }
+
+    @Test
+    public void lateSnooze_doesNotUndoAnAnswer() {
+        long answer = logDose(7, DOSE_TIME, "Taken", DOSE_TIME + 60_000L);
+        // e.g. a replayed event from before the user answered
+        assertEquals(answer, logDose(7, DOSE_TIME, "Snoozed", DOSE_TIME + 120_000L));
+
+        List<MedicationLog> logs = helper.getMedicationLogs("All", 0, Long.MAX_VALUE);
+        assertEquals(1, logs.size());
+        assertEquals("Taken", logs.get(0).getStatus());
+        assertEquals(DOSE_TIME + 60_000L, logs.get(0).getTimestamp().getTime());
+        assertTrue(helper.verifyAdherenceRollup());
+    }
+
+    @Test
+    public void otherDosesAndUnkeyedLogs_stayApart() {
+        logDose(7, DOSE_TIME, "Taken", DOSE_TIME);
+        logDose(7, DOSE_TIME + 86_400_000L, "Taken", DOSE_TIME + 86_400_000L);
+        logDose(8, DOSE_TIME, "Missed", DOSE_TIME);
+        helper.insertMedicationLogs(Collections.singletonList(
+                new MedicationLog("Aspirin", "1 tablet", 1, "Taken", new Date(DOSE_TIME))));
+        helper.insertMedicationLogs(Collections.singletonList(
+                new MedicationLog("Aspirin", "1 tablet", 1, "Taken", new Date(DOSE_TIME))));
+
+        assertEquals(5, helper.getMedicationLogs("All", 0, Long.MAX_VALUE).size());
+        assertTrue(helper.verifyAdherenceRollup());
+    }
+
+    private long logDose(long medicationId, long scheduledAt, String status, long at) {
+        MedicationLog log = new MedicationLog("Aspirin", "1 tablet", 1, status, new Date(at));
+        log.setDoseKey(medicationId, scheduledAt);
+        helper.insertMedicationLogs(Collections.singletonList(log));
+        return log.getId();
+    }
+}
@@ -0,0 +1,187 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Intent;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * The scheduler's queue hands out every dose of every active medication in
+ * time order, day after day, without growing.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DoseQueueTest {
+
+    @Test
+    public void rebuild_startsWithEarliestDoseAfterNow() {
+        long now = at(2024, Calendar.MARCH, 4, 12, 30);
+        DoseQueue queue = new DoseQueue();
+        queue.rebuild(Arrays.asList(
+                medication(1, true, 8 * 60, 20 * 60),
+                medication(2, true, 13 * 60),
+                medication(3, false, 12 * 60 + 45)), now);
+
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.peek().medication.getId());
+        assertEquals(at(2024, Calendar.MARCH, 4, 13, 0), queue.peek().at);
+    }
+
+    @Test
+    public void advance_walksEveryDoseInOrder() {
+        long now = at(2024, Calendar.MARCH, 4, 0, 0);
+        List<Medication> medications = new ArrayList<>();
+        int dosesPerDay = 0;
+        for (int id = 1; id <= 50; id++) {
+            medications.add(medication(id, true, (id * 37) % 1440, (id * 91) % 1440));
+            dosesPerDay += (id * 37) % 1440 == (id * 91) % 1440 ? 1 : 2;
+        }
+        DoseQueue queue = new DoseQueue();
+        queue.rebuild(medications, now);
+        int size = queue.size();
+
+        long previous = now;
+        for (int i = 0; i < 3 * dosesPerDay; i++) {
+            DoseQueue.Occurrence next = queue.peek();
+            assertTrue(next.at >= previous);
+            previous = next.at;
+            assertTrue(queue.advance(next.medication.getId(), next.at));
+            assertEquals(size, queue.size());
+        }
+        // Three days of doses later the head is on day four
+        assertTrue(queue.peek().at >= at(2024, Calendar.MARCH, 7, 0, 0));
+        assertTrue(queue.peek().at < at(2024, Calendar.MARCH, 8, 0, 0));
+    }
+
+    @Test
+    public void advance_ignoresUnknownDoses() {
+        long now = at(2024, Calendar.MARCH, 4, 6, 0);
+        DoseQueue queue = new DoseQueue();
+        queue.rebuild(Arrays.asList(medication(1, true, 8 * 60)), now);
+
+        // e.g. a snoozed reminder ringing again
+        assertFalse(queue.advance(1, at(2024, Calendar.MARCH, 3, 8, 0)));
+        assertEquals(at(2024, Calendar.MARCH, 4, 8, 0), queue.peek().at);
+
+        assertTrue(queue.advance(1, at(2024, Calendar.MARCH, 4, 8, 0)));
+        assertEquals(at(2024, Calendar.MARCH, 5, 8, 0), queue.peek().at);
+    }
+
+    @Test
+    public void dueWithin_groupsDosesCloseToTheEarliest() {
+        List<Medication> medications = Arrays.asList(
+                medication(3, true, 8 * 60 + 4),
+                medication(1, true, 8 * 60 + 5, 20 * 60),
+                medication(2, true, 8 * 60),
+                medication(4, true, 8 * 60 + 6));
+        DoseQueue queue = new DoseQueue();
+        queue.rebuild(medications, at(2024, Calendar.MARCH, 4, 7, 0));
+
+        List<DoseQueue.Occurrence> due = queue.dueWithin(5 * 60_000L);
+        assertEquals(3, due.size());
+        assertEquals(2, due.get(0).medication.getId());
+        assertEquals(3, due.get(1).medication.getId());
+        assertEquals(1, due.get(2).medication.getId());
+        assertEquals(1, queue.dueWithin(0).size());
+
+        // Once they have rung, the next group starts at the one left behind
+        for (DoseQueue.Occurrence occurrence : due) {
+            assertTrue(queue.advance(occurrence.medication.getId(), occurrence.at));
+        }
+        due = queue.dueWithin(5 * 60_000L);
+        assertEquals(1, due.size());
+        assertEquals(at(2024, Calendar.MARCH, 4, 8, 6), due.get(0).at);
+
+        assertTrue(new DoseQueue().dueWithin(5 * 60_000L).isEmpty());
+    }
+
+    @Test
+    public void reminderEvent_carriesEveryDoseThroughTheIntent() {
+        List<Medication> medications = Arrays.asList(medication(1, true, 8 * 60), medication(2, true, 8 * 60 + 3));
+        medications.get(1).setBoxNumber(2);
+        DoseQueue queue = new DoseQueue();
+        queue.rebuild(medications, at(2024, Calendar.MARCH, 4, 7, 0));
+        List<DoseQueue.Occurrence> due = queue.dueWithin(5 * 60_000L);
+
+        Intent intent = new Intent();
+        ReminderEvent.putExtras(intent, due);
+        ReminderEvent event = ReminderEvent.from(intent);
+        assertEquals(2, event.doses.size());
+        for (int i = 0; i < due.size(); i++) {
+            ReminderEvent.Dose dose = event.doses.get(i);
+            assertEquals(due.get(i).medication.getId(), dose.medicationId);
+            assertEquals(due.get(i).at, dose.scheduledAt);
+            assertEquals(due.get(i).minuteOfDay, dose.minuteOfDay);
+            assertEquals(due.get(i).medication.getMedicineName(), dose.medicineName);
+            assertEquals(due.get(i).medication.getBoxNumber(), dose.boxNumber);
+        }
+
+        // A snooze set by an older version still rings for its one dose
+        Intent legacy = new Intent();
+        legacy.putExtra("medication_id", 7L);
+        legacy.putExtra("scheduled_at", 1234L);
+        legacy.putExtra("reminder_time", "8:00 am");
+        event = ReminderEvent.from(legacy);
+        assertEquals(1, event.doses.size());
+        assertEquals(7, event.first().medicationId);
+        assertEquals(8 * 60, event.first().minuteOfDay);
+        assertTrue(ReminderEvent.from(new Intent()).isEmpty());
+    }
+
+    @Test
+    public void reminderEvent_payloadAndRemovedMedications() {
+        Medication first = medication(1, true, 8 * 60);
+        Medication second = medication(2, true, 8 * 60 + 3);
+        DoseQueue queue = new DoseQueue();
+        queue.rebuild(Arrays.asList(first, second), at(2024, Calendar.MARCH, 4, 7, 0));
+        List<Object> armed = ReminderEvent.payload(queue.dueWithin(5 * 60_000L));
+
+        // Same doses and times, renamed: the armed alarm is stale
+        Medication renamed = medication(2, true, 8 * 60 + 3);
+        renamed.setMedicineName("Renamed");
+        queue.rebuild(Arrays.asList(first, renamed), at(2024, Calendar.MARCH, 4, 7, 0));
+        assertNotEquals(armed, ReminderEvent.payload(queue.dueWithin(5 * 60_000L)));
+        queue.rebuild(Arrays.asList(first, second), at(2024, Calendar.MARCH, 4, 7, 0));
+        assertEquals(armed, ReminderEvent.payload(queue.dueWithin(5 * 60_000L)));
+
+        Intent intent = new Intent();
+        ReminderEvent.putExtras(intent, queue.dueWithin(5 * 60_000L));
+        ReminderEvent event = ReminderEvent.from(intent);
+        Map<Long, Medication> byId = new HashMap<>();
+        byId.put(1L, first);
+        byId.put(2L, second);
+        assertSame(event, event.withoutRemoved(byId));
+        byId.put(2L, medication(2, false, 8 * 60 + 3));
+        assertEquals(1, event.withoutRemoved(byId).doses.size());
+        byId.remove(2L);
+        assertEquals(1, event.withoutRemoved(byId).first().medicationId);
+        byId.remove(1L);
+        assertTrue(event.withoutRemoved(byId).isEmpty());
+    }
+
+    private static Medication medication(long id, boolean active, Integer... minutes) {
+        Medication medication = new Medication(1, "Medicine " + id, DoseSchedule.format(minutes[0]));
+        medication.setId(id);
+        medication.setActive(active);
+        medication.setDoseMinutes(new ArrayList<>(new TreeSet<>(Arrays.asList(minutes))));
+        return medication;
+    }
+
+    private static long at(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+}
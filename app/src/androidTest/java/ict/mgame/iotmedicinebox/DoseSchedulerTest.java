@@ -0,0 +1,113 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * What RescheduleReceiver does after a reboot or clock change, against 500
+ * medications: a cold rebuild of the whole schedule from the database has
+ * to re-arm well inside the 10 seconds a goAsync receiver gets.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DoseSchedulerTest {
+
+    private static final String TAG = "DoseSchedulerTest";
+    private static final String DB_NAME = "dose_scheduler_test.db";
+    private static final int MEDICATIONS = 500;
+    private static final int REPEATS = 5;
+    // A tenth of the broadcast limit
+    private static final long BUDGET_MS = 1_000;
+
+    private Context context;
+    private DatabaseHelper helper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        DatabaseHelper generator = new DatabaseHelper(context, DB_NAME);
+        new SyntheticHistory(42, 4).addMedications(generator, MEDICATIONS);
+        generator.close();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (helper != null) {
+            helper.close();
+        }
+        context.deleteDatabase(DB_NAME);
+        // The schedulers here replaced the app's alarm; put the real one back
+        restore(MedBoxApplication.getDoseScheduler(context));
+    }
+
+    @Test
+    public void restore_500Medications_withinBroadcastBudget() throws InterruptedException {
+        long[] nanos = new long[REPEATS];
+        for (int i = 0; i < REPEATS; i++) {
+            // Cold, as after a reboot: nothing open, nothing cached
+            helper = new DatabaseHelper(context, DB_NAME);
+            MedicationRepository repository = new MedicationRepository(helper);
+            DoseScheduler scheduler = new DoseScheduler(context, repository);
+
+            long before = System.currentTimeMillis();
+            long start = System.nanoTime();
+            restore(scheduler);
+            nanos[i] = System.nanoTime() - start;
+
+            assertEquals(MEDICATIONS, repository.getAll().size());
+            assertEquals(earliestDoseAfter(repository, before), scheduler.getArmedAt());
+            helper.close();
+            helper = null;
+        }
+        Arrays.sort(nanos);
+        Log.i(TAG, "Re-armed " + MEDICATIONS + " medications in " + nanos[REPEATS / 2] / 1_000_000
+                + " ms (median), " + nanos[REPEATS - 1] / 1_000_000 + " ms (max)");
+        assertTrue("max " + nanos[REPEATS - 1] / 1_000_000 + " ms", nanos[REPEATS - 1] < BUDGET_MS * 1_000_000);
+    }
+
+    @Test
+    public void restore_followsTimeZoneChange() throws InterruptedException {
+        helper = new DatabaseHelper(context, DB_NAME);
+        MedicationRepository repository = new MedicationRepository(helper);
+        DoseScheduler scheduler = new DoseScheduler(context, repository);
+        TimeZone original = TimeZone.getDefault();
+        try {
+            // Nine and a half hours from here, so the doses move to other instants
+            int shifted = original.getRawOffset() + (original.getRawOffset() > 0 ? -1 : 1) * 34_200_000;
+            TimeZone.setDefault(new SimpleTimeZone(shifted, "Shifted"));
+            long before = System.currentTimeMillis();
+            restore(scheduler);
+            assertEquals(earliestDoseAfter(repository, before), scheduler.getArmedAt());
+        } finally {
+            TimeZone.setDefault(original);
+        }
+    }
+
+    private static void restore(DoseScheduler scheduler) throws InterruptedException {
+        CountDownLatch armed = new CountDownLatch(1);
+        scheduler.restore(armed::countDown);
+        assertTrue("Schedule not restored", armed.await(10, TimeUnit.SECONDS));
+    }
+
+    private static long earliestDoseAfter(MedicationRepository repository, long millis) {
+        DoseQueue queue = new DoseQueue();
+        queue.rebuild(repository.getAll(), millis);
+        return queue.peek().at;
+    }
+}
@@ -0,0 +1,268 @@
+package ict.mgame.iotmedicinebox;
+
+import android.app.Activity;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.lifecycle.ActivityLifecycleCallback;
+import androidx.test.runner.lifecycle.ActivityLifecycleMonitorRegistry;
+import androidx.test.runner.lifecycle.Stage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Times the main read paths against synthetic histories of 10k, 100k and 1M
+ * logs and writes the results as JSON to history-benchmark.json in the app's
+ * external files directory (pull it with adb). Pick sizes with
+ * "-e sizes 10000,100000".
+ */
+@RunWith(AndroidJUnit4.class)
+public class HistoryBenchmarkTest {
+
+    private static final String TAG = "HistoryBenchmark";
+    private static final String DB_NAME = "history_benchmark.db";
+    private static final String RESULT_FILE = "history-benchmark.json";
+    private static final long SEED = 42;
+    private static final int BOXES = 4;
+    private static final int REPEATS = 5;
+    private static final String[] FILTERS = {"All", "Taken", "Missed", "Snoozed"};
+
+    // Log rows -> medications; about two doses each a day, so every size
+    // covers two to three and a half years
+    private static final int[][] SIZES = {{10_000, 8}, {100_000, 60}, {1_000_000, 400}};
+
+    // Above this many rows getMedicationLogs would hold the whole history
+    // in memory at once, so the same query is timed through the streaming
+    // forEachMedicationLog instead
+    private static final int LIST_LIMIT = 200_000;
+
+    private Context context;
+    private DatabaseHelper helper;
+    private DatabaseHelper appHelper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (appHelper != null) {
+            MedBoxApplication.replaceDatabaseHelper(context, appHelper);
+        }
+        if (helper != null) {
+            helper.close();
+        }
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void sameSeed_sameHistory() {
+        List<MedicationLog> first = generate(1_000);
+        helper.close();
+        context.deleteDatabase(DB_NAME);
+        List<MedicationLog> second = generate(1_000);
+
+        assertEquals(1_000, first.size());
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.get(i).getMedicineName(), second.get(i).getMedicineName());
+            assertEquals(first.get(i).getStatus(), second.get(i).getStatus());
+            assertEquals(first.get(i).getTimestamp(), second.get(i).getTimestamp());
+            assertEquals(first.get(i).getScheduledAt(), second.get(i).getScheduledAt());
+        }
+    }
+
+    private List<MedicationLog> generate(int rows) {
+        helper = new DatabaseHelper(context, DB_NAME);
+        helper.clearAllMedicationLogs();
+        SyntheticHistory history = new SyntheticHistory(SEED, BOXES);
+        history.addLogs(helper, history.addMedications(helper, 5), rows, 1_700_000_000_000L);
+        return helper.getMedicationLogs("All");
+    }
+
+    @Test
+    public void largeHistory_readLatency() throws Exception {
+        List<String> sizes = requestedSizes();
+        StringWriter json = new StringWriter();
+        JsonWriter out = new JsonWriter(json);
+        out.beginObject();
+        out.name("device").value(Build.MANUFACTURER + " " + Build.MODEL);
+        out.name("sdk").value(Build.VERSION.SDK_INT);
+        out.name("seed").value(SEED);
+        out.name("repeats").value(REPEATS);
+        out.name("runs").beginArray();
+        for (int[] size : SIZES) {
+            if (sizes == null || sizes.contains(String.valueOf(size[0]))) {
+                run(size[0], size[1], out);
+            }
+        }
+        out.endArray();
+        out.endObject();
+        out.close();
+
+        File file = writeResult(json.toString());
+        Log.i(TAG, "Results in " + file);
+        Log.i(TAG, json.toString());
+    }
+
+    private void run(int rows, int medications, JsonWriter out) throws IOException, InterruptedException {
+        context.deleteDatabase(DB_NAME);
+        helper = new DatabaseHelper(context, DB_NAME);
+        helper.clearAllMedicationLogs();
+
+        long start = SystemClock.elapsedRealtime();
+        SyntheticHistory history = new SyntheticHistory(SEED, BOXES);
+        history.addLogs(helper, history.addMedications(helper, medications), rows, System.currentTimeMillis());
+        long generateMs = SystemClock.elapsedRealtime() - start;
+        assertEquals(rows, DatabaseUtils.queryNumEntries(helper.getReadableDatabase(), "medication_logs"));
+        DatabaseUtils.longForQuery(helper.getWritableDatabase(), "PRAGMA wal_checkpoint(TRUNCATE)", null);
+
+        out.beginObject();
+        out.name("rows").value(rows);
+        out.name("medications").value(medications);
+        out.name("boxes").value(BOXES);
+        out.name("generateMs").value(generateMs);
+        out.name("databaseBytes").value(context.getDatabasePath(DB_NAME).length());
+        out.name("operations").beginObject();
+
+        long[] times = new long[REPEATS];
+        int count = 0;
+        for (int i = 0; i < REPEATS; i++) {
+            long t = System.nanoTime();
+            count = helper.getAllMedications().size();
+            times[i] = System.nanoTime() - t;
+        }
+        writeTimes(out, "getAllMedications", count, times);
+
+        int total = 0;
+        for (String filter : FILTERS) {
+            String operation = rows <= LIST_LIMIT
+                    ? "getMedicationLogs(" + filter + ")"
+                    : "forEachMedicationLog(" + filter + ")";
+            for (int i = 0; i < REPEATS; i++) {
+                long t = System.nanoTime();
+                count = readLogs(filter, rows <= LIST_LIMIT);
+                times[i] = System.nanoTime() - t;
+            }
+            writeTimes(out, operation, count, times);
+            if (!filter.equals("All")) {
+                total += count;
+            }
+        }
+        assertEquals(rows, total);
+
+        appHelper = MedBoxApplication.replaceDatabaseHelper(context, helper);
+        try {
+            for (int i = 0; i < REPEATS; i++) {
+                times[i] = trackerFirstFrameNanos();
+            }
+        } finally {
+            MedBoxApplication.replaceDatabaseHelper(context, appHelper);
+            appHelper = null;
+        }
+        writeTimes(out, "trackerFirstFrame", -1, times);
+
+        out.endObject();
+        out.endObject();
+
+        helper.close();
+        helper = null;
+        context.deleteDatabase(DB_NAME);
+    }
+
+    private int readLogs(String filter, boolean asList) {
+        if (asList) {
+            return helper.getMedicationLogs(filter).size();
+        }
+        int[] count = {0};
+        helper.forEachMedicationLog(filter, log -> count[0]++);
+        return count[0];
+    }
+
+    // From launching the Tracker to the first draw that has history rows in it
+    private long trackerFirstFrameNanos() throws InterruptedException {
+        CountDownLatch drawn = new CountDownLatch(1);
+        long[] drawnAt = {0};
+        ActivityLifecycleCallback callback = (Activity activity, Stage stage) -> {
+            if (stage != Stage.CREATED || !(activity instanceof TrackerActivity)) return;
+            RecyclerView list = activity.findViewById(R.id.historyList);
+            list.getViewTreeObserver().addOnDrawListener(() -> {
+                if (drawnAt[0] == 0 && list.getChildCount() > 0) {
+                    drawnAt[0] = System.nanoTime();
+                    drawn.countDown();
+                }
+            });
+        };
+        ActivityLifecycleMonitorRegistry.getInstance().addLifecycleCallback(callback);
+        long start = System.nanoTime();
+        ActivityScenario<TrackerActivity> scenario = ActivityScenario.launch(TrackerActivity.class);
+        try {
+            assertTrue("Tracker showed no rows", drawn.await(30, TimeUnit.SECONDS));
+            return drawnAt[0] - start;
+        } finally {
+            scenario.close();
+            ActivityLifecycleMonitorRegistry.getInstance().removeLifecycleCallback(callback);
+        }
+    }
+
+    // {"rows": n, "minMs": .., "medianMs": .., "maxMs": ..}; rows left out if negative
+    private static void writeTimes(JsonWriter out, String operation, int rows, long[] nanos) throws IOException {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        out.name(operation).beginObject();
+        if (rows >= 0) {
+            out.name("rows").value(rows);
+        }
+        out.name("minMs").value(sorted[0] / 1e6);
+        out.name("medianMs").value(sorted[sorted.length / 2] / 1e6);
+        out.name("maxMs").value(sorted[sorted.length - 1] / 1e6);
+        out.endObject();
+        Log.i(TAG, operation + ": median " + sorted[sorted.length / 2] / 1_000_000 + " ms");
+    }
+
+    private static List<String> requestedSizes() {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        String sizes = arguments.getString("sizes");
+        return sizes != null ? Arrays.asList(sizes.split(",")) : null;
+    }
+
+    private File writeResult(String json) throws IOException {
+        File directory = context.getExternalFilesDir(null);
+        File file = new File(directory != null ? directory : context.getFilesDir(), RESULT_FILE);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            writer.write(json);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
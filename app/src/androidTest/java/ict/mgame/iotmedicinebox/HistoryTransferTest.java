@@ -0,0 +1,157 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips the history through CSV and JSON, checks that re-importing adds
+ * nothing, and reports export / import time for 100k rows.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HistoryTransferTest {
+
+    private static final String TAG = "HistoryTransferTest";
+    private static final int LOGS = 100_000;
+
+    private Context context;
+    private DatabaseHelper helper;
+    private File file;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        helper = new DatabaseHelper(context, null);
+        file = new File(context.getCacheDir(), "history-transfer-test");
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+        file.delete();
+    }
+
+    @Test
+    public void csv_roundTripsAwkwardText() throws IOException {
+        roundTrip(HistoryTransfer.Format.CSV);
+    }
+
+    @Test
+    public void json_roundTripsAwkwardText() throws IOException {
+        roundTrip(HistoryTransfer.Format.JSON);
+    }
+
+    private void roundTrip(HistoryTransfer.Format format) throws IOException {
+        List<MedicationLog> logs = new ArrayList<>();
+        logs.add(new MedicationLog("Vitamin C", "1 tablet", 1, "Taken", new Date(1_000L)));
+        logs.add(new MedicationLog("Cough syrup, \"night\"", "5 ml\nbefore bed", 2, "Missed", new Date(2_000L)));
+        logs.add(new MedicationLog("Ibuprofen", "", 3, "Taken", new Date(3_000L)));
+        helper.insertMedicationLogs(logs);
+
+        assertEquals(3, export(format));
+        helper.clearAllMedicationLogs();
+
+        HistoryTransfer.ImportResult result = importFile();
+        assertEquals(3, result.read);
+        assertEquals(3, result.inserted);
+
+        List<MedicationLog> imported = helper.getMedicationLogs("All", 0, Long.MAX_VALUE);
+        assertEquals(3, imported.size());
+        // Newest first
+        assertEquals("Cough syrup, \"night\"", imported.get(1).getMedicineName());
+        assertEquals("5 ml\nbefore bed", imported.get(1).getDosage());
+        assertEquals(2, imported.get(1).getBoxNumber());
+        assertEquals("Missed", imported.get(1).getStatus());
+        assertEquals(2_000L, imported.get(1).getTimestamp().getTime());
+
+        // A second import of the same file is all duplicates
+        result = importFile();
+        assertEquals(3, result.read);
+        assertEquals(0, result.inserted);
+        assertEquals(3, helper.getMedicationLogs("All", 0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void csvImport_acceptsReorderedColumnsAndEpochMillis() throws IOException {
+        String csv = "\uFEFFstatus,box_number,timestamp,medicine_name\r\n"
+                + "Taken,4,5000,Aspirin\r\n"
+                + "\r\n"
+                + "Missed,4,1970-01-01T00:00:06.000Z,Aspirin\r\n";
+        HistoryTransfer.ImportResult result = HistoryTransfer.importFrom(helper,
+                new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, result.inserted);
+
+        List<MedicationLog> logs = helper.getMedicationLogs("All", 0, Long.MAX_VALUE);
+        assertEquals(6_000L, logs.get(0).getTimestamp().getTime());
+        assertEquals(4, logs.get(0).getBoxNumber());
+        assertEquals("", logs.get(0).getDosage());
+    }
+
+    @Test
+    public void largeHistory_exportAndImport() throws IOException {
+        String[] names = {"Paracetamol", "Aspirin", "Vitamin C", "Calcium", "Ibuprofen"};
+        List<MedicationLog> batch = new ArrayList<>();
+        for (int i = 0; i < LOGS; i++) {
+            batch.add(new MedicationLog(names[i % names.length], "1 tablet", 1 + i % 4,
+                    i % 4 == 0 ? "Missed" : "Taken", new Date(i * 60_000L)));
+            if (batch.size() == 1000) {
+                helper.insertMedicationLogs(batch);
+                batch.clear();
+            }
+        }
+
+        for (HistoryTransfer.Format format : HistoryTransfer.Format.values()) {
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(LOGS, export(format));
+            long exportMillis = SystemClock.elapsedRealtime() - start;
+
+            helper.clearAllMedicationLogs();
+            start = SystemClock.elapsedRealtime();
+            assertEquals(LOGS, importFile().inserted);
+            long importMillis = SystemClock.elapsedRealtime() - start;
+
+            Log.i(TAG, format + " " + LOGS + " logs (" + file.length() / 1024 + " KB): export "
+                    + exportMillis + " ms, import " + importMillis + " ms");
+        }
+    }
+
+    private int export(HistoryTransfer.Format format) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            return HistoryTransfer.export(helper, out, format);
+        } finally {
+            out.close();
+        }
+    }
+
+    private HistoryTransfer.ImportResult importFile() throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return HistoryTransfer.importFrom(helper, in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A segment whose last frame was torn by a crash stays readable, and the
+ * next archive run appends after its last complete frame.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LogArchiveTest {
+
+    private static final String DB_NAME = "archive-test.db";
+
+    private Context context;
+    private DatabaseHelper helper;
+    private long start;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        helper = new DatabaseHelper(context, DB_NAME);
+        helper.clearAllMedicationLogs();
+
+        // Mid-month, so every row lands in one segment
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.MONTH, -8);
+        calendar.set(Calendar.DAY_OF_MONTH, 15);
+        calendar.set(Calendar.HOUR_OF_DAY, 12);
+        start = calendar.getTimeInMillis();
+    }
+
+    @After
+    public void tearDown() {
+        helper.clearAllMedicationLogs();
+        helper.close();
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void tornFrame_isCutOffBeforeTheNextAppend() throws IOException {
+        insert(start, 10);
+        assertEquals(10, helper.archiveLogsOlderThan(100));
+        File segment = segment();
+        long firstFrameEnd = segment.length();
+
+        insert(start + 10 * 60_000L, 10);
+        assertEquals(10, helper.archiveLogsOlderThan(100));
+        long secondFrameEnd = segment.length();
+
+        // As if the process died while writing the second frame: it is torn
+        // and its rows were never deleted from SQLite
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.setLength(firstFrameEnd + (secondFrameEnd - firstFrameEnd) / 2);
+        } finally {
+            raf.close();
+        }
+        insert(start + 10 * 60_000L, 10);
+        assertEquals(20, helper.getMedicationLogs("All", 0, Long.MAX_VALUE).size());
+
+        assertEquals(10, helper.archiveLogsOlderThan(100));
+        assertEquals(20, helper.getMedicationLogs("All", 0, Long.MAX_VALUE).size());
+    }
+
+    private File segment() {
+        File[] files = new File(context.getFilesDir(), "log-archive-" + DB_NAME).listFiles(
+                (dir, name) -> name.endsWith(".seg"));
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    // count logs one minute apart from start
+    private void insert(long start, int count) {
+        List<MedicationLog> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            batch.add(new MedicationLog("Aspirin", "1 tablet", 1, "Taken", new Date(start + i * 60_000L)));
+        }
+        helper.insertMedicationLogs(batch);
+    }
+}
@@ -0,0 +1,101 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bulk-inserts 100k medication_logs rows through the old ContentValues path and
+ * through the cached SQLiteStatement path, and reports rows per second for each.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LogInsertBenchmarkTest {
+
+    private static final String TAG = "LogInsertBenchmark";
+    private static final String DB_NAME = "insert_benchmark.db";
+    private static final int ROWS = 100_000;
+    private static final int BATCH = 1_000;
+
+    private Context context;
+    private DatabaseHelper helper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        helper = new DatabaseHelper(context, DB_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void compareInsertPaths() {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.delete("medication_logs", null, null);
+
+        long start = SystemClock.elapsedRealtime();
+        for (int done = 0; done < ROWS; done += BATCH) {
+            db.beginTransactionNonExclusive();
+            LogNames names = LogNames.compile(db);
+            try {
+                for (int i = 0; i < BATCH; i++) {
+                    ContentValues values = new ContentValues();
+                    values.put("name_id", names.idFor("Drug" + (i % 20), "1 tablet"));
+                    values.put("box_number", i % 3 + 1);
+                    values.put("status", LogStatus.TAKEN);
+                    values.put("timestamp", (long) done + i);
+                    db.insert("medication_logs", null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                names.close();
+            }
+        }
+        long contentValuesMs = SystemClock.elapsedRealtime() - start;
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, "medication_logs"));
+
+        db.delete("medication_logs", null, null);
+
+        start = SystemClock.elapsedRealtime();
+        List<MedicationLog> batch = new ArrayList<>(BATCH);
+        for (int done = 0; done < ROWS; done += BATCH) {
+            batch.clear();
+            for (int i = 0; i < BATCH; i++) {
+                batch.add(new MedicationLog("Drug" + (i % 20), "1 tablet", i % 3 + 1, "Taken",
+                        new Date((long) done + i)));
+            }
+            helper.insertMedicationLogs(batch);
+        }
+        long statementMs = SystemClock.elapsedRealtime() - start;
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, "medication_logs"));
+
+        Log.i(TAG, "ContentValues insert: " + rowsPerSecond(contentValuesMs) + " rows/s (" + contentValuesMs + " ms)");
+        Log.i(TAG, "Cached statement insert: " + rowsPerSecond(statementMs) + " rows/s (" + statementMs + " ms)");
+    }
+
+    private static long rowsPerSecond(long elapsedMs) {
+        return ROWS * 1000L / Math.max(1, elapsedMs);
+    }
+}
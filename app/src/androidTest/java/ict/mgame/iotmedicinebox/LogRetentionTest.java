@@ -0,0 +1,146 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Applies retention rules to a file database and checks what is deleted,
+ * that the rollup stays in step, and that the freed pages are returned.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LogRetentionTest {
+
+    private static final String TAG = "LogRetentionTest";
+    private static final String DB_NAME = "retention-test.db";
+    private static final long DAY = RetentionPolicy.DAY_MS;
+
+    private Context context;
+    private DatabaseHelper helper;
+    private long now;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        helper = new DatabaseHelper(context, DB_NAME);
+        helper.clearAllMedicationLogs();
+        now = System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() {
+        helper.clearAllMedicationLogs();
+        helper.close();
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void newDatabase_usesIncrementalAutoVacuum() {
+        assertEquals(2, DatabaseUtils.longForQuery(helper.getReadableDatabase(), "PRAGMA auto_vacuum", null));
+    }
+
+    @Test
+    public void ageAndStatusRules() throws IOException {
+        insert("Taken", now - 10 * DAY, 10);
+        insert("Snoozed", now - 10 * DAY, 10);
+        insert("Snoozed", now - DAY, 10);
+        insert("Missed", now - 100 * DAY, 10);
+
+        LogRetention.Report report = helper.applyRetention(
+                new RetentionPolicy(30, 0).keepStatusFor("Snoozed", 7));
+        assertEquals(20, report.rowsDeleted);
+
+        List<MedicationLog> left = helper.getMedicationLogs("All", 0, Long.MAX_VALUE);
+        assertEquals(20, left.size());
+        for (MedicationLog log : left) {
+            assertTrue(log.getTimestamp().getTime() >= now - 10 * DAY);
+        }
+        assertEquals(10, helper.getMedicationLogs("Snoozed", 0, Long.MAX_VALUE).size());
+        assertTrue(helper.verifyAdherenceRollup());
+    }
+
+    @Test
+    public void statusRule_appliesToArchivedLogs() throws IOException {
+        insert("Snoozed", now - 200 * DAY, 10);
+        insert("Taken", now - 200 * DAY, 10);
+        assertEquals(20, helper.archiveLogsOlderThan(100));
+
+        LogRetention.Report report = helper.applyRetention(
+                new RetentionPolicy(0, 0).keepStatusFor("Snoozed", 90));
+        assertEquals(0, report.rowsDeleted);
+        assertEquals(10, report.archivedRowsDeleted);
+
+        assertEquals(0, helper.getMedicationLogs("Snoozed", 0, Long.MAX_VALUE).size());
+        assertEquals(10, helper.getMedicationLogs("Taken", 0, Long.MAX_VALUE).size());
+        assertEquals(0, DatabaseUtils.longForQuery(helper.getReadableDatabase(),
+                "SELECT COUNT(*) FROM " + AdherenceRollup.TABLE + " WHERE status = 'Snoozed'", null));
+
+        // Nothing left to do the second time
+        report = helper.applyRetention(new RetentionPolicy(0, 0).keepStatusFor("Snoozed", 90));
+        assertEquals(0, report.archivedRowsDeleted);
+    }
+
+    @Test
+    public void maxRows_keepsNewest() throws IOException {
+        insert("Taken", now - 3 * DAY, 1500);
+        LogRetention.Report report = helper.applyRetention(new RetentionPolicy(0, 1000));
+        assertEquals(500, report.rowsDeleted);
+
+        List<MedicationLog> left = helper.getMedicationLogs("All", 0, Long.MAX_VALUE);
+        assertEquals(1000, left.size());
+        // insert() spaces rows a minute apart, newest last
+        assertEquals(now - 3 * DAY + 1499 * 60_000L, left.get(0).getTimestamp().getTime());
+        assertEquals(now - 3 * DAY + 500 * 60_000L, left.get(999).getTimestamp().getTime());
+        assertTrue(helper.verifyAdherenceRollup());
+    }
+
+    @Test
+    public void freedPages_areReturned() throws IOException {
+        insert("Taken", now - 400 * DAY, 50_000);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        long pagesBefore = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+        LogRetention.Report report = helper.applyRetention(new RetentionPolicy(365, 0));
+        assertEquals(50_000, report.rowsDeleted);
+        assertTrue(report.bytesReclaimed > 0);
+        assertEquals(0, DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null));
+        long pagesAfter = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        assertTrue(pagesAfter < pagesBefore);
+
+        // Nothing left to do the second time
+        report = helper.applyRetention(new RetentionPolicy(365, 0));
+        assertEquals(0, report.rowsDeleted);
+        assertEquals(0, report.bytesReclaimed);
+        Log.i(TAG, "50000 rows: " + pagesBefore + " -> " + pagesAfter + " pages");
+    }
+
+    // count logs one minute apart from start
+    private void insert(String status, long start, int count) {
+        List<MedicationLog> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            batch.add(new MedicationLog("Aspirin", "1 tablet", 1, status, new Date(start + i * 60_000L)));
+            if (batch.size() == 1000) {
+                helper.insertMedicationLogs(batch);
+                batch.clear();
+            }
+        }
+        helper.insertMedicationLogs(batch);
+    }
+}
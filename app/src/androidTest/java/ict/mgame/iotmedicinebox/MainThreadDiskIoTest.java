@@ -0,0 +1,125 @@
+package ict.mgame.iotmedicinebox;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.StrictMode;
+import android.util.Log;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Opens each database-backed screen with a StrictMode thread policy on the
+ * main thread and fails if any SQLite disk read or write happened there.
+ * Violations from framework code that never touches SQLite (resource loading,
+ * SharedPreferences) are ignored.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MainThreadDiskIoTest {
+
+    private static final String TAG = "MainThreadDiskIoTest";
+
+    private final List<String> violations = new ArrayList<>();
+    private StrictMode.ThreadPolicy previousPolicy;
+
+    @Before
+    public void setUp() {
+        // penaltyListener needs API 28
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.P);
+
+        // Open the database first so a schema upgrade is not counted against a screen
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        MedBoxApplication.getDatabaseHelper(context).getWritableDatabase();
+
+        Executor direct = Runnable::run;
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            previousPolicy = StrictMode.getThreadPolicy();
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyListener(direct, violation -> {
+                        StringWriter trace = new StringWriter();
+                        violation.printStackTrace(new PrintWriter(trace));
+                        if (trace.toString().contains("android.database.sqlite")) {
+                            synchronized (violations) {
+                                violations.add(trace.toString());
+                            }
+                        }
+                    })
+                    .build());
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (previousPolicy != null) {
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(
+                    () -> StrictMode.setThreadPolicy(previousPolicy));
+        }
+    }
+
+    @Test
+    public void homeScreen_noSqliteOnMainThread() {
+        open(HomeActivity.class, null);
+    }
+
+    @Test
+    public void trackerScreen_noSqliteOnMainThread() {
+        open(TrackerActivity.class, null);
+    }
+
+    @Test
+    public void editMedicationScreen_noSqliteOnMainThread() {
+        Intent intent = new Intent(InstrumentationRegistry.getInstrumentation().getTargetContext(),
+                AddMedicineActivity.class);
+        intent.putExtra("medication_id", 1L);
+        intent.putExtra("box_number", 1);
+        open(AddMedicineActivity.class, intent);
+    }
+
+    @Test
+    public void reminderScreen_noSqliteOnMainThread() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        open(ReminderActivity.class, ReminderLatencyTest.reminderIntent(context));
+    }
+
+    private <A extends Activity> void open(Class<A> activityClass, Intent intent) {
+        ActivityScenario<A> scenario = intent != null
+                ? ActivityScenario.launch(intent)
+                : ActivityScenario.launch(activityClass);
+        try {
+            // Let queued queries finish and deliver their results
+            InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+            scenario.recreate();
+            InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        } finally {
+            scenario.close();
+        }
+
+        synchronized (violations) {
+            for (String violation : violations) {
+                Log.e(TAG, violation);
+            }
+            assertTrue(violations.size() + " SQLite disk access(es) on the main thread in "
+                    + activityClass.getSimpleName() + ", first:\n"
+                    + (violations.isEmpty() ? "" : violations.get(0)), violations.isEmpty());
+        }
+    }
+}
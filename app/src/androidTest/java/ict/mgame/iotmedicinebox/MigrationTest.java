@@ -0,0 +1,198 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Builds a large synthetic version 2 database and migrates it forward to the
+ * current schema, checking that no rows are lost along the way.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MigrationTest {
+
+    private static final String TAG = "MigrationTest";
+    private static final String DB_NAME = "migration_test.db";
+    private static final int MEDICATIONS = 30;
+    private static final int LOGS = 200_000;
+
+    private Context context;
+    private DatabaseHelper helper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        createVersion2Database();
+    }
+
+    @After
+    public void tearDown() {
+        if (helper != null) {
+            helper.close();
+        }
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void migrateFromVersion2_keepsAllRows() {
+        helper = new DatabaseHelper(context, DB_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        assertEquals(MEDICATIONS, DatabaseUtils.queryNumEntries(db, DatabaseHelper.TABLE_MEDICATIONS));
+        // Step 7 only renamed the old log table; its backfill moves the rows
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "medication_logs"));
+        assertEquals(LOGS, DatabaseUtils.queryNumEntries(db, SchemaMigrations.LEGACY_LOGS));
+        assertIndexExists(db, "idx_medications_box");
+        assertIndexExists(db, "idx_logs_status_timestamp");
+        assertIndexExists(db, "idx_medications_first_dose");
+        assertEquals(MEDICATIONS, DatabaseUtils.queryNumEntries(db, DoseSchedule.TABLE));
+
+        SchemaMigrations.runPendingBackfills(db);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "schema_backfills"));
+        assertEquals(LOGS, DatabaseUtils.queryNumEntries(db, "medication_logs"));
+        assertTableMissing(db, SchemaMigrations.LEGACY_LOGS);
+        assertTrue("adherence rollup out of sync", helper.verifyAdherenceRollup());
+    }
+
+    // A backup or export taken before the backfill ran still has every log
+    @Test
+    public void exportBeforeBackfill_includesUnconvertedLogs() throws IOException {
+        helper = new DatabaseHelper(context, DB_NAME);
+        long[] exported = {0};
+        helper.forEachMedicationLogOldestFirst(log -> exported[0]++);
+        assertEquals(LOGS, exported[0]);
+        assertTableMissing(helper.getReadableDatabase(), SchemaMigrations.LEGACY_LOGS);
+    }
+
+    @Test
+    public void clearingLogsBeforeBackfill_staysCleared() {
+        helper = new DatabaseHelper(context, DB_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        helper.clearAllMedicationLogs();
+        SchemaMigrations.runPendingBackfills(db);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "medication_logs"));
+        assertTableMissing(db, SchemaMigrations.LEGACY_LOGS);
+    }
+
+    @Test
+    public void backfills_areResumable() {
+        helper = new DatabaseHelper(context, DB_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        // Running twice must be a no-op the second time
+        SchemaMigrations.runPendingBackfills(db);
+        SchemaMigrations.runPendingBackfills(db);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "schema_backfills"));
+    }
+
+    // Version 8 dictionary-encodes names and stores status as an integer:
+    // compare file size and a full "Missed" listing before and after
+    @Test
+    public void logTableRebuild_shrinksDatabase() {
+        SQLiteDatabase old = context.openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+        old.execSQL(DatabaseHelper.INDEX_LOGS_TIMESTAMP);
+        old.execSQL(DatabaseHelper.INDEX_LOGS_STATUS_TIMESTAMP);
+        old.execSQL("VACUUM");
+        long beforeBytes = context.getDatabasePath(DB_NAME).length();
+        long start = SystemClock.elapsedRealtimeNanos();
+        Cursor cursor = old.rawQuery("SELECT * FROM medication_logs WHERE status = ?" +
+                " ORDER BY timestamp DESC, id DESC", new String[]{"Missed"});
+        int beforeRows = cursor.getCount();
+        cursor.close();
+        long beforeMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        old.close();
+
+        helper = new DatabaseHelper(context, DB_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        SchemaMigrations.runPendingBackfills(db);
+        db.execSQL("VACUUM");
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_checkpoint(TRUNCATE)", null);
+        long afterBytes = context.getDatabasePath(DB_NAME).length();
+        start = SystemClock.elapsedRealtimeNanos();
+        int afterRows = helper.getMedicationLogs("Missed").size();
+        long afterMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+
+        assertEquals(beforeRows, afterRows);
+        assertTrue(afterBytes + " >= " + beforeBytes, afterBytes < beforeBytes);
+        assertEquals(MEDICATIONS, DatabaseUtils.queryNumEntries(db, LogNames.TABLE));
+        Log.i(TAG, LOGS + " logs: " + beforeBytes / 1024 + " KB -> " + afterBytes / 1024 + " KB; "
+                + afterRows + " Missed rows in " + beforeMicros + " us -> " + afterMicros + " us");
+    }
+
+    // Schema as shipped with DATABASE_VERSION = 2
+    private void createVersion2Database() {
+        SQLiteDatabase db = context.openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+        db.execSQL("CREATE TABLE medications (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "box_number INTEGER NOT NULL, " +
+                "box_name TEXT, " +
+                "medicine_name TEXT NOT NULL, " +
+                "frequency TEXT, " +
+                "days TEXT, " +
+                "times TEXT, " +
+                "notification_time TEXT NOT NULL, " +
+                "instructions TEXT, " +
+                "is_active INTEGER DEFAULT 1, " +
+                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        db.execSQL("CREATE TABLE medication_logs (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "medicine_name TEXT, " +
+                "dosage TEXT, " +
+                "box_number INTEGER, " +
+                "status TEXT, " +
+                "timestamp INTEGER)");
+
+        String[] statuses = {"Taken", "Missed", "Snoozed"};
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < MEDICATIONS; i++) {
+                db.execSQL("INSERT INTO medications (box_number, box_name, medicine_name, frequency," +
+                                " notification_time, instructions) VALUES (?, ?, ?, ?, ?, ?)",
+                        new Object[]{i % 3 + 1, "Box " + (i % 3 + 1), "Drug" + i, "Once a day",
+                                (i % 12 + 1) + ":00 " + (i % 2 == 0 ? "am" : "pm"), ""});
+            }
+            long start = System.currentTimeMillis() - LOGS * 60_000L;
+            for (int i = 0; i < LOGS; i++) {
+                db.execSQL("INSERT INTO medication_logs (medicine_name, dosage, box_number, status, timestamp)" +
+                                " VALUES (?, ?, ?, ?, ?)",
+                        new Object[]{"Drug" + (i % MEDICATIONS), "1 tablet", i % 3 + 1,
+                                statuses[i % statuses.length], start + i * 60_000L});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.setVersion(2);
+        db.close();
+    }
+
+    private void assertIndexExists(SQLiteDatabase db, String name) {
+        Cursor cursor = db.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'index' AND name = ?",
+                new String[]{name});
+        boolean exists = cursor.moveToFirst();
+        cursor.close();
+        assertTrue("missing index " + name, exists);
+    }
+
+    private void assertTableMissing(SQLiteDatabase db, String name) {
+        assertEquals(name, 0, DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?", new String[]{name}));
+    }
+}
@@ -0,0 +1,158 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs EXPLAIN QUERY PLAN on every read query DatabaseHelper issues and fails
+ * if one of them falls back to a table scan or a temporary sort.
+ */
+@RunWith(AndroidJUnit4.class)
+public class QueryPlanTest {
+
+    private DatabaseHelper helper;
+    private SQLiteDatabase db;
+
+    @Before
+    public void setUp() {
+        Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        helper = new DatabaseHelper(appContext, null);
+        db = helper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+    }
+
+    @Test
+    public void medicationsForBox_usesIndex() {
+        assertSearch(DatabaseHelper.QUERY_MEDICATIONS_FOR_BOX, "1");
+    }
+
+    @Test
+    public void hasMedicationInBox_usesCoveringIndex() {
+        List<String> plan = explain(DatabaseHelper.QUERY_HAS_MEDICATION_IN_BOX, "1");
+        assertSearch(plan);
+        assertTrue(plan.toString(), plan.get(0).contains("COVERING INDEX"));
+    }
+
+    @Test
+    public void medicationById_usesPrimaryKey() {
+        assertSearch(DatabaseHelper.QUERY_MEDICATION_BY_ID, "1");
+    }
+
+    @Test
+    public void filteredLogs_useIndex() {
+        assertSearch(DatabaseHelper.medicationLogsQuery(true), LogStatus.arg("Taken"));
+    }
+
+    @Test
+    public void logPages_useIndexRange() {
+        String max = String.valueOf(Long.MAX_VALUE);
+        assertSearch(DatabaseHelper.medicationLogsPageQuery(false), max, max, max, "50");
+        assertSearch(DatabaseHelper.medicationLogsPageQuery(true), LogStatus.arg("Missed"), max, max, max, "50");
+    }
+
+    @Test
+    public void logRange_usesIndexRange() {
+        assertSearch(DatabaseHelper.medicationLogsBetweenQuery(false), "0", "1700000000000");
+        assertSearch(DatabaseHelper.medicationLogsBetweenQuery(true), LogStatus.arg("Taken"), "0", "1700000000000");
+    }
+
+    @Test
+    public void oldestFirstExportPage_usesIndexRange() {
+        String min = String.valueOf(Long.MIN_VALUE);
+        assertSearch(DatabaseHelper.QUERY_LOGS_OLDEST_FIRST_PAGE, min, min, "-1", "1000", "2000");
+    }
+
+    // Run once per imported row
+    @Test
+    public void importDuplicateCheck_usesIndex() {
+        assertSearch(DatabaseHelper.QUERY_LOG_EXISTS, "1700000000000", "Aspirin", "1", LogStatus.arg("Taken"));
+    }
+
+    // Run on every log write that names a medicine
+    @Test
+    public void logNameLookup_usesIndex() {
+        assertSearch(LogNames.QUERY_ID, "Aspirin", "1 tablet");
+    }
+
+    @Test
+    public void retentionBatches_useIndex() {
+        int limit = LogRetention.DELETE_BATCH_SIZE;
+        assertSearch(LogRetention.batchQuery(LogRetention.WHERE_STATUS_EXPIRED, LogRetention.OLDEST_FIRST, limit),
+                LogStatus.arg("Snoozed"), "1700000000000");
+        assertSearch(LogRetention.batchQuery(LogRetention.WHERE_EXPIRED, LogRetention.OLDEST_FIRST, limit),
+                "1700000000000");
+        // maxRows deletes the oldest rows of the whole table
+        assertIndexOrdered(explain(LogRetention.batchQuery("1", LogRetention.OLDEST_FIRST, limit)));
+    }
+
+    @Test
+    public void doseLogUpsert_usesDoseIndex() {
+        assertSearch(DatabaseHelper.QUERY_DOSE_LOG_ID, "7", "1700000000000");
+    }
+
+    @Test
+    public void dosesDue_useMinuteIndex() {
+        assertSearch(DoseSchedule.QUERY_DUE_BETWEEN, "420", "480");
+    }
+
+    @Test
+    public void adherenceRange_usesPrimaryKey() {
+        assertSearch(AdherenceRollup.QUERY_RANGE, "20250101", "20250131");
+    }
+
+    // Full listings have to visit every row, but must walk an index instead of sorting
+    @Test
+    public void fullListings_walkIndexInOrder() {
+        assertIndexOrdered(explain(DatabaseHelper.QUERY_ALL_MEDICATIONS));
+        assertIndexOrdered(explain(DatabaseHelper.medicationLogsQuery(false)));
+    }
+
+    private List<String> explain(String sql, String... args) {
+        List<String> plan = new ArrayList<>();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        int detail = cursor.getColumnIndexOrThrow("detail");
+        while (cursor.moveToNext()) {
+            plan.add(cursor.getString(detail));
+        }
+        cursor.close();
+        return plan;
+    }
+
+    private void assertSearch(String sql, String... args) {
+        assertSearch(explain(sql, args));
+    }
+
+    private void assertSearch(List<String> plan) {
+        assertFalse("empty plan", plan.isEmpty());
+        for (String step : plan) {
+            assertFalse("table scan: " + plan, step.startsWith("SCAN"));
+            assertFalse("temp sort: " + plan, step.contains("TEMP B-TREE"));
+        }
+    }
+
+    private void assertIndexOrdered(List<String> plan) {
+        assertFalse("empty plan", plan.isEmpty());
+        for (String step : plan) {
+            assertTrue("unindexed scan: " + plan, !step.startsWith("SCAN") || step.contains("INDEX"));
+            assertFalse("temp sort: " + plan, step.contains("TEMP B-TREE"));
+        }
+    }
+}
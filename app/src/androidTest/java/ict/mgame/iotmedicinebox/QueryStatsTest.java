@@ -0,0 +1,112 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Histogram percentiles, the slow query ring buffer, and that helper
+ * operations are recorded under their own names.
+ */
+@RunWith(AndroidJUnit4.class)
+public class QueryStatsTest {
+
+    @Test
+    public void buckets_stayWithinPrecision() {
+        for (long micros = 0; micros < 2_000_000; micros += 1 + micros / 97) {
+            long reported = QueryStats.valueOf(QueryStats.bucketOf(micros));
+            assertTrue(micros + " reported as " + reported, Math.abs(reported - micros) <= micros / 16);
+        }
+    }
+
+    @Test
+    public void percentiles_ofKnownDistribution() {
+        QueryStats stats = new QueryStats();
+        stats.setSlowThresholdMillis(Long.MAX_VALUE / 1000);
+        // 1..1000 ms, once each
+        for (long ms = 1; ms <= 1000; ms++) {
+            stats.record("op", "SELECT 1", ms * 1000, 1);
+        }
+        List<QueryStats.OperationStats> operations = stats.operations();
+        assertEquals(1, operations.size());
+        QueryStats.OperationStats op = operations.get(0);
+        assertEquals(1000, op.count);
+        assertEquals(1_000_000, op.maxMicros);
+        assertNear(500_000, op.p50Micros);
+        assertNear(950_000, op.p95Micros);
+        assertNear(990_000, op.p99Micros);
+        assertEquals(0, stats.slowQueryCount());
+    }
+
+    @Test
+    public void slowLog_keepsNewestEntries() {
+        QueryStats stats = new QueryStats();
+        stats.setSlowThresholdMillis(10);
+        stats.record("fast", "SELECT 1", 9_999, 1);
+        int slow = QueryStats.SLOW_LOG_CAPACITY + 10;
+        for (int i = 0; i < slow; i++) {
+            stats.record("slow", "SELECT " + i, 10_000 + i, i);
+        }
+        assertEquals(slow, stats.slowQueryCount());
+
+        List<QueryStats.SlowQuery> log = stats.slowQueries();
+        assertEquals(QueryStats.SLOW_LOG_CAPACITY, log.size());
+        assertEquals("SELECT " + (slow - 1), log.get(0).sql);
+        assertEquals(slow - 1, log.get(0).rows);
+        assertEquals("SELECT 10", log.get(log.size() - 1).sql);
+
+        stats.reset();
+        assertTrue(stats.slowQueries().isEmpty());
+        assertTrue(stats.operations().isEmpty());
+    }
+
+    @Test
+    public void helperOperations_areRecorded() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        DatabaseHelper helper = new DatabaseHelper(context, null);
+        try {
+            QueryStats stats = helper.getQueryStats();
+            stats.setSlowThresholdMillis(0);
+            helper.getAllMedications();
+            helper.getAllMedications();
+            helper.logMedication("Aspirin", "1 tablet", 1, "Taken");
+
+            assertEquals(2, find(stats, "getAllMedications").count);
+            assertEquals(1, find(stats, "logMedication").count);
+            boolean logged = false;
+            for (QueryStats.SlowQuery query : stats.slowQueries()) {
+                if (query.operation.equals("logMedication")) {
+                    assertEquals(DatabaseHelper.INSERT_MEDICATION_LOG, query.sql);
+                    assertEquals(1, query.rows);
+                    logged = true;
+                }
+            }
+            assertTrue(logged);
+        } finally {
+            helper.close();
+        }
+    }
+
+    private static QueryStats.OperationStats find(QueryStats stats, String operation) {
+        for (QueryStats.OperationStats op : stats.operations()) {
+            if (op.operation.equals(operation)) {
+                return op;
+            }
+        }
+        fail(operation + " not recorded");
+        return null;
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 16);
+    }
+}
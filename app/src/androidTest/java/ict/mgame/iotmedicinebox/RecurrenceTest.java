@@ -0,0 +1,220 @@
+package ict.mgame.iotmedicinebox;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recurrence rules expand to the same doses a day-by-day calendar walk finds,
+ * and counting a year of them for dozens of medications stays under a
+ * millisecond.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RecurrenceTest {
+
+    private static final String TAG = "RecurrenceTest";
+
+    @Test
+    public void parseDays_readsTheHintExamples() {
+        Recurrence.Days days = Recurrence.parseDays("Mon/Wed/Fri");
+        assertEquals(0b10101, days.weekdayMask);
+        assertEquals(1, days.intervalDays);
+
+        days = Recurrence.parseDays("Every 3 days");
+        assertEquals(Recurrence.EVERY_DAY, days.weekdayMask);
+        assertEquals(3, days.intervalDays);
+
+        days = Recurrence.parseDays("every other day for 2 weeks");
+        assertEquals(2, days.intervalDays);
+        assertEquals(14, days.forDays);
+        assertEquals(20240317, days.endDay(20240304));
+
+        assertEquals(Recurrence.WEEKDAYS, Recurrence.parseDays("Weekdays").weekdayMask);
+        assertEquals(0b1100001, Recurrence.parseDays("Sat - Mon").weekdayMask);
+        assertEquals(0b1001000, Recurrence.parseDays("Thurs and Sundays").weekdayMask);
+        assertEquals(Recurrence.EVERY_DAY, Recurrence.parseDays("").weekdayMask);
+        assertNull(Recurrence.parseDays("After meals"));
+        assertNull(Recurrence.parseDays("every"));
+    }
+
+    @Test
+    public void nextAfter_skipsDaysOutsideTheRules() {
+        // 2024-03-04 was a Monday
+        Recurrence monWedFri = new Recurrence(Arrays.asList(8 * 60, 20 * 60), 0b10101, 1, 0, 0);
+        assertEquals(at(2024, Calendar.MARCH, 4, 20, 0), monWedFri.nextAfter(at(2024, Calendar.MARCH, 4, 9, 0)));
+        assertEquals(at(2024, Calendar.MARCH, 6, 8, 0), monWedFri.nextAfter(at(2024, Calendar.MARCH, 4, 20, 0)));
+        assertEquals(at(2024, Calendar.MARCH, 11, 8, 0), monWedFri.nextAfter(8 * 60,
+                at(2024, Calendar.MARCH, 8, 8, 0)));
+
+        Recurrence everyThirdDay = new Recurrence(Collections.singletonList(9 * 60), Recurrence.EVERY_DAY, 3,
+                20240304, 20240312);
+        assertEquals(at(2024, Calendar.MARCH, 4, 9, 0), everyThirdDay.nextAfter(at(2024, Calendar.MARCH, 1, 0, 0)));
+        assertEquals(at(2024, Calendar.MARCH, 7, 9, 0), everyThirdDay.nextAfter(at(2024, Calendar.MARCH, 4, 9, 0)));
+        assertEquals(at(2024, Calendar.MARCH, 10, 9, 0), everyThirdDay.nextAfter(at(2024, Calendar.MARCH, 7, 9, 0)));
+        // The 13th would be next, past the end day
+        assertEquals(-1, everyThirdDay.nextAfter(at(2024, Calendar.MARCH, 10, 9, 0)));
+
+        // Every seventh day from a Monday never lands on a Tuesday
+        assertEquals(-1, new Recurrence(Collections.singletonList(0), 0b10, 7, 20240304, 0)
+                .nextAfter(at(2024, Calendar.MARCH, 1, 0, 0)));
+    }
+
+    @Test
+    public void randomRules_matchCalendarWalk() {
+        Random random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            List<Integer> minutes = new ArrayList<>();
+            for (int n = 1 + random.nextInt(4); n > 0; n--) {
+                minutes.add(random.nextInt(DoseSchedule.MINUTES_PER_DAY));
+            }
+            int startDay = random.nextBoolean() ? 0 : 20240101 + random.nextInt(28);
+            int endDay = random.nextBoolean() ? 0 : 20240601 + random.nextInt(28);
+            Recurrence recurrence = new Recurrence(minutes, 1 + random.nextInt(127), 1 + random.nextInt(9),
+                    startDay, endDay);
+            long from = at(2023, Calendar.DECEMBER, 1 + random.nextInt(28), random.nextInt(24), 0);
+            long to = from + (long) random.nextInt(300) * 86_400_000L + random.nextInt(86_400_000);
+
+            List<Long> expected = calendarWalk(recurrence, new TreeSet<>(minutes), from, to);
+            List<Long> visited = new ArrayList<>();
+            recurrence.forEachBetween(from, to, visited::add);
+            Collections.sort(visited);
+            List<Long> stepped = new ArrayList<>();
+            for (long t = recurrence.nextAfter(from - 1); t >= 0 && t < to; t = recurrence.nextAfter(t)) {
+                stepped.add(t);
+            }
+
+            assertEquals(expected, visited);
+            assertEquals(expected, stepped);
+            assertEquals(expected.size(), recurrence.countBetween(from, to));
+        }
+    }
+
+    @Test
+    public void occurrencesBetween_mergesMedicationsInTimeOrder() {
+        long from = at(2024, Calendar.MARCH, 4, 0, 0);
+        long to = at(2024, Calendar.MARCH, 18, 0, 0);
+        Medication weekdays = medication(1, 8 * 60);
+        weekdays.setWeekdayMask(Recurrence.WEEKDAYS);
+        Medication everyOtherDay = medication(2, 8 * 60, 21 * 60);
+        everyOtherDay.setIntervalDays(2);
+        everyOtherDay.setStartDay(20240305);
+        Medication stopped = medication(3, 12 * 60);
+        stopped.setActive(false);
+        List<Medication> medications = Arrays.asList(weekdays, everyOtherDay, stopped);
+
+        int count = 0;
+        long previous = from;
+        for (Iterator<DoseQueue.Occurrence> it = DoseQueue.occurrencesBetween(medications, from, to); it.hasNext(); ) {
+            DoseQueue.Occurrence occurrence = it.next();
+            assertTrue(occurrence.at >= previous && occurrence.at < to);
+            assertNotEquals(3, occurrence.medication.getId());
+            previous = occurrence.at;
+            count++;
+        }
+        // Ten weekdays, and the 5th, 7th ... 17th twice each
+        assertEquals(10 + 7 * 2, count);
+        assertEquals(count, DoseQueue.countBetween(medications, from, to));
+    }
+
+    @Test
+    public void doseQueue_honoursWeekdays() {
+        Medication weekends = medication(1, 9 * 60);
+        weekends.setWeekdayMask(Recurrence.WEEKENDS);
+        DoseQueue queue = new DoseQueue();
+        queue.rebuild(Collections.singletonList(weekends), at(2024, Calendar.MARCH, 4, 0, 0));
+
+        assertEquals(at(2024, Calendar.MARCH, 9, 9, 0), queue.peek().at);
+        assertTrue(queue.advance(1, queue.peek().at));
+        assertEquals(at(2024, Calendar.MARCH, 10, 9, 0), queue.peek().at);
+        assertTrue(queue.advance(1, queue.peek().at));
+        assertEquals(at(2024, Calendar.MARCH, 16, 9, 0), queue.peek().at);
+
+        // A finished course leaves the queue
+        weekends.setEndDay(20240310);
+        queue.rebuild(Collections.singletonList(weekends), at(2024, Calendar.MARCH, 10, 0, 0));
+        assertTrue(queue.advance(1, at(2024, Calendar.MARCH, 10, 9, 0)));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void yearOfDozensOfMedications_countsUnderOneMillisecond() {
+        Random random = new Random(11);
+        List<Medication> medications = new ArrayList<>();
+        for (int id = 1; id <= 48; id++) {
+            Medication medication = medication(id, 7 * 60, 13 * 60, 21 * 60);
+            medication.setWeekdayMask(1 + random.nextInt(127));
+            medication.setIntervalDays(1 + random.nextInt(3));
+            medication.setStartDay(20240101);
+            medications.add(medication);
+        }
+        long from = at(2024, Calendar.JANUARY, 1, 0, 0);
+        long to = at(2025, Calendar.JANUARY, 1, 0, 0);
+
+        long[] nanos = new long[51];
+        int count = 0;
+        for (int i = 0; i < nanos.length; i++) {
+            long start = System.nanoTime();
+            count = DoseQueue.countBetween(medications, from, to);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        Log.i(TAG, count + " doses in a year of " + medications.size() + " medications counted in "
+                + nanos[nanos.length / 2] / 1000 + " us (median)");
+        assertTrue(count > 0);
+        assertTrue("median " + nanos[nanos.length / 2] + " ns", nanos[nanos.length / 2] < 1_000_000);
+    }
+
+    // Every dose in [from, to), one Calendar day at a time
+    private static List<Long> calendarWalk(Recurrence recurrence, TreeSet<Integer> minutes, long from, long to) {
+        List<Long> doses = new ArrayList<>();
+        Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(from);
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        while (day.getTimeInMillis() < to) {
+            if (recurrence.occursOn(AdherenceRollup.dayKey(day))) {
+                for (int minute : minutes) {
+                    Calendar dose = (Calendar) day.clone();
+                    dose.set(Calendar.HOUR_OF_DAY, minute / 60);
+                    dose.set(Calendar.MINUTE, minute % 60);
+                    if (dose.getTimeInMillis() >= from && dose.getTimeInMillis() < to) {
+                        doses.add(dose.getTimeInMillis());
+                    }
+                }
+            }
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        Collections.sort(doses);
+        return doses;
+    }
+
+    private static Medication medication(long id, Integer... minutes) {
+        Medication medication = new Medication(1, "Medicine " + id, DoseSchedule.format(minutes[0]));
+        medication.setId(id);
+        medication.setDoseMinutes(new ArrayList<>(new TreeSet<>(Arrays.asList(minutes))));
+        return medication;
+    }
+
+    private static long at(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,102 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * A reminder for a group of doses is on screen and ringing within 100 ms of
+ * ReminderActivity.onCreate, the first app code a dose alarm runs. The tone
+ * is the one the application preloaded, as it is for any alarm that fires
+ * after the process has been up for a moment.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReminderLatencyTest {
+
+    private static final String TAG = "ReminderLatencyTest";
+    private static final int REPEATS = 5;
+    private static final long BUDGET_MS = 100;
+
+    @Test
+    public void groupedReminder_visibleAndAudibleWithinBudget() throws InterruptedException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        AlertSound alertSound = MedBoxApplication.getAlertSound(context);
+        long deadline = SystemClock.uptimeMillis() + 5_000;
+        while (!alertSound.isReady() && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        // An image without any alarm, notification or ringtone has nothing to play
+        assumeTrue("No tone could be preloaded", alertSound.isReady());
+
+        long[] visible = new long[REPEATS];
+        long[] audible = new long[REPEATS];
+        for (int i = 0; i < REPEATS; i++) {
+            try (ActivityScenario<ReminderActivity> scenario = ActivityScenario.launch(reminderIntent(context))) {
+                long[] latency = awaitLatency(scenario);
+                visible[i] = latency[0];
+                audible[i] = latency[1];
+            }
+        }
+        Arrays.sort(visible);
+        Arrays.sort(audible);
+        Log.i(TAG, "Reminder visible in " + visible[REPEATS / 2] + " ms, audible in " + audible[REPEATS / 2]
+                + " ms (median of " + REPEATS + ")");
+        assertTrue("visible in " + visible[REPEATS / 2] + " ms", visible[REPEATS / 2] < BUDGET_MS);
+        assertTrue("audible in " + audible[REPEATS / 2] + " ms", audible[REPEATS / 2] < BUDGET_MS);
+    }
+
+    // Three doses a few minutes apart, as DoseScheduler would arm them.
+    // The ids match no medication, so the scheduler ignores them as fired.
+    static Intent reminderIntent(Context context) {
+        List<Medication> medications = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Medication medication = new Medication(i + 1, "Medicine " + i, DoseSchedule.format(8 * 60 + i * 2));
+            medication.setId(9_000 + i);
+            medication.setDoseMinutes(new ArrayList<>(Arrays.asList(8 * 60 + i * 2)));
+            medication.setInstructions("After breakfast");
+            medications.add(medication);
+        }
+        Calendar morning = Calendar.getInstance();
+        morning.set(Calendar.HOUR_OF_DAY, 7);
+        DoseQueue queue = new DoseQueue();
+        queue.rebuild(medications, morning.getTimeInMillis());
+
+        Intent intent = new Intent(context, ReminderActivity.class);
+        ReminderEvent.putExtras(intent, queue.dueWithin(DoseScheduler.DEFAULT_GROUPING_WINDOW_MINUTES * 60_000L));
+        return intent;
+    }
+
+    // {visible, audible} in ms from onCreate
+    private static long[] awaitLatency(ActivityScenario<ReminderActivity> scenario) throws InterruptedException {
+        long[] latency = {-1, -1};
+        long deadline = SystemClock.uptimeMillis() + 5_000;
+        while (SystemClock.uptimeMillis() < deadline) {
+            scenario.onActivity(activity -> {
+                latency[0] = activity.getVisibleMillis();
+                latency[1] = activity.getAudibleMillis();
+            });
+            if (latency[0] >= 0 && latency[1] >= 0) {
+                return latency;
+            }
+            Thread.sleep(10);
+        }
+        fail("Reminder not visible and audible after 5 s: " + Arrays.toString(latency));
+        return latency;
+    }
+}
@@ -0,0 +1,111 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the full-text index follows inserts, updates and deletes, and
+ * reports prefix search latency over a 100k-row history.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SearchIndexTest {
+
+    private static final String TAG = "SearchIndexTest";
+    private static final int LOGS = 100_000;
+
+    private DatabaseHelper helper;
+    private SQLiteDatabase db;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        helper = new DatabaseHelper(context, null);
+        db = helper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+    }
+
+    @Test
+    public void medicationIndex_followsWrites() {
+        // Sample data has "Vitamin C" with "Take with breakfast"
+        assertEquals("Vitamin C", helper.searchMedications("vit", 10).get(0).getMedicineName());
+        assertEquals("Vitamin C", helper.searchMedications("breakf", 10).get(0).getMedicineName());
+
+        Medication medication = helper.searchMedications("vitamin c", 10).get(0);
+        medication.setMedicineName("Zinc");
+        helper.updateMedication(medication);
+        assertTrue(helper.searchMedications("vitamin", 10).isEmpty());
+        assertEquals(1, helper.searchMedications("zin", 10).size());
+
+        helper.deleteMedication(medication.getId());
+        assertTrue(helper.searchMedications("zin", 10).isEmpty());
+    }
+
+    @Test
+    public void nameMatches_rankAboveInstructionMatches() {
+        Medication byName = new Medication(1, "Mealtime Insulin", "9:00 am");
+        byName.setInstructions("Inject");
+        helper.addMedication(byName);
+        // Aspirin's instructions are "Take after meals"
+        List<Medication> results = helper.searchMedications("meal", 10);
+        assertEquals("Mealtime Insulin", results.get(0).getMedicineName());
+        assertEquals("Aspirin", results.get(1).getMedicineName());
+    }
+
+    @Test
+    public void logIndex_prefixSearchOverLargeHistory() {
+        String[] names = {"Paracetamol", "Aspirin", "Vitamin C", "Calcium", "Ibuprofen"};
+        List<MedicationLog> batch = new ArrayList<>();
+        for (int i = 0; i < LOGS; i++) {
+            batch.add(new MedicationLog(names[i % names.length], "1 tablet", 1,
+                    i % 4 == 0 ? "Missed" : "Taken", new Date(i * 60_000L)));
+            if (batch.size() == 1000) {
+                helper.insertMedicationLogs(batch);
+                batch.clear();
+            }
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        List<MedicationLog> results = helper.searchMedicationLogs("para", "All", 50);
+        long allMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        assertEquals(50, results.size());
+        for (MedicationLog log : results) {
+            assertEquals("Paracetamol", log.getMedicineName());
+        }
+        assertTrue(results.get(0).getId() > results.get(1).getId());
+
+        start = SystemClock.elapsedRealtimeNanos();
+        results = helper.searchMedicationLogs("vit c", "Missed", 50);
+        long filteredMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        assertEquals(50, results.size());
+        for (MedicationLog log : results) {
+            assertEquals("Missed", log.getStatus());
+        }
+
+        db.execSQL("DELETE FROM medication_logs WHERE name_id IN"
+                + " (SELECT name_id FROM log_names WHERE medicine_name = 'Ibuprofen')");
+        assertTrue(helper.searchMedicationLogs("ibu", "All", 50).isEmpty());
+
+        Log.i(TAG, "Prefix search over " + LOGS + " logs: " + allMicros + " us, with status filter: "
+                + filteredMicros + " us");
+    }
+}
@@ -0,0 +1,162 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Snapshot round trip, corruption detection, and size / time against the
+ * database file for 100k logs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SnapshotTest {
+
+    private static final String TAG = "SnapshotTest";
+    private static final String DB_NAME = "snapshot-test.db";
+    private static final int LOGS = 100_000;
+
+    private Context context;
+    private DatabaseHelper helper;
+    private File file;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        helper = new DatabaseHelper(context, DB_NAME);
+        file = new File(context.getCacheDir(), "snapshot-test.snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        helper.clearAllMedicationLogs();
+        helper.close();
+        context.deleteDatabase(DB_NAME);
+        file.delete();
+    }
+
+    @Test
+    public void restore_replacesEverythingWithSnapshotContents() throws IOException {
+        List<MedicationLog> logs = new ArrayList<>();
+        logs.add(new MedicationLog("Vitamin C", "1 tablet", 1, "Taken", new Date(5_000L)));
+        logs.add(new MedicationLog("Aspirin", null, 2, "Missed", new Date(1_000L)));
+        helper.insertMedicationLogs(logs);
+        List<Medication> medications = helper.getAllMedications();
+
+        Snapshot.Summary written = Snapshot.write(helper, file);
+        assertEquals(medications.size(), written.medications);
+        assertEquals(2, written.logs);
+        assertEquals(file.length(), written.bytes);
+
+        // Change everything, then restore
+        helper.deleteMedication(medications.get(0).getId());
+        helper.clearAllMedicationLogs();
+        helper.logMedication("Zinc", "1 tablet", 3, "Taken");
+
+        Snapshot.Summary restored = Snapshot.restore(helper, file);
+        assertEquals(written.logs, restored.logs);
+
+        List<Medication> after = helper.getAllMedications();
+        assertEquals(medications.size(), after.size());
+        for (int i = 0; i < medications.size(); i++) {
+            assertEquals(medications.get(i).getId(), after.get(i).getId());
+            assertEquals(medications.get(i).getMedicineName(), after.get(i).getMedicineName());
+            assertEquals(medications.get(i).getDoseMinutes(), after.get(i).getDoseMinutes());
+        }
+
+        List<MedicationLog> history = helper.getMedicationLogs("All", 0, Long.MAX_VALUE);
+        assertEquals(2, history.size());
+        assertEquals("Vitamin C", history.get(0).getMedicineName());
+        assertNull(history.get(1).getDosage());
+        assertEquals(1, helper.searchMedicationLogs("aspi", "All", 10).size());
+    }
+
+    @Test
+    public void verify_rejectsCorruptAndTruncatedFiles() throws IOException {
+        helper.logMedication("Vitamin C", "1 tablet", 1, "Taken");
+        Snapshot.write(helper, file);
+        Snapshot.verify(file);
+
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.seek(raw.length() / 2);
+            int b = raw.read();
+            raw.seek(raw.length() / 2);
+            raw.write(b ^ 0x01);
+        } finally {
+            raw.close();
+        }
+        try {
+            Snapshot.restore(helper, file);
+            fail("Corrupt snapshot was restored");
+        } catch (IOException expected) {
+        }
+        // Nothing was touched
+        assertEquals(1, helper.getMedicationLogs("All", 0, Long.MAX_VALUE).size());
+
+        raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.setLength(10);
+        } finally {
+            raw.close();
+        }
+        try {
+            Snapshot.verify(file);
+            fail("Truncated snapshot verified");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void largeHistory_sizeAndTime() throws IOException {
+        String[] names = {"Paracetamol", "Aspirin", "Vitamin C", "Calcium", "Ibuprofen"};
+        List<MedicationLog> batch = new ArrayList<>();
+        for (int i = 0; i < LOGS; i++) {
+            batch.add(new MedicationLog(names[i % names.length], "1 tablet", 1 + i % 4,
+                    i % 4 == 0 ? "Missed" : "Taken", new Date(1_600_000_000_000L + i * 600_000L)));
+            if (batch.size() == 1000) {
+                helper.insertMedicationLogs(batch);
+                batch.clear();
+            }
+        }
+        DatabaseUtils.longForQuery(helper.getWritableDatabase(), "PRAGMA wal_checkpoint(TRUNCATE)", null);
+        File dbFile = context.getDatabasePath(DB_NAME);
+
+        long start = SystemClock.elapsedRealtime();
+        Snapshot.Summary summary = Snapshot.write(helper, file);
+        long writeMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(LOGS, summary.logs);
+        assertTrue(file.length() < dbFile.length());
+
+        start = SystemClock.elapsedRealtime();
+        Snapshot.verify(file);
+        long verifyMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        Snapshot.restore(helper, file);
+        long restoreMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(LOGS, helper.getMedicationLogs("All", 0, Long.MAX_VALUE).size());
+
+        Log.i(TAG, LOGS + " logs: database " + dbFile.length() / 1024 + " KB, snapshot "
+                + file.length() / 1024 + " KB; write " + writeMillis + " ms, verify " + verifyMillis
+                + " ms, restore " + restoreMillis + " ms");
+    }
+}
@@ -0,0 +1,143 @@
+package ict.mgame.iotmedicinebox;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic medication history for tests and benchmarks: the same seed
+ * always gives the same medications and logs.
+ *
+ * Medications are spread round-robin over the boxes and take one to three
+ * doses a day. Each medication gets its own adherence rate, and weekend
+ * doses are missed twice as often. Logs go back from the end time one day at
+ * a time until the requested number of rows is reached, one row per dose
+ * carrying its dose key, the same as the reminder path writes them.
+ */
+final class SyntheticHistory {
+
+    private static final String[] NAMES = {
+            "Paracetamol", "Aspirin", "Vitamin C", "Calcium", "Ibuprofen", "Metformin",
+            "Amlodipine", "Atorvastatin", "Omeprazole", "Lisinopril", "Levothyroxine",
+            "Vitamin D", "Iron", "Folic Acid", "Magnesium", "Cetirizine"
+    };
+    private static final String[] DOSAGES = {"1 tablet", "2 tablets", "500mg", "10ml", "1 capsule"};
+    // Dose slots, minutes after midnight; a medication picks one to three
+    private static final int[] SLOTS = {7 * 60, 8 * 60, 12 * 60, 13 * 60, 18 * 60, 21 * 60, 22 * 60};
+
+    private static final int BATCH = 5_000;
+    private static final long MINUTE = 60_000L;
+
+    private final Random random;
+    private final int boxes;
+
+    SyntheticHistory(long seed, int boxes) {
+        this.random = new Random(seed);
+        this.boxes = boxes;
+    }
+
+    // Adds count medications and returns them with their ids and dose minutes
+    List<Medication> addMedications(DatabaseHelper helper, int count) {
+        List<Medication> medications = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = NAMES[i % NAMES.length] + (i < NAMES.length ? "" : " " + (i / NAMES.length + 1));
+            List<Integer> minutes = doseMinutes();
+            Medication medication = new Medication(i % boxes + 1, name, DoseSchedule.format(minutes.get(0)));
+            medication.setBoxName("Box " + medication.getBoxNumber());
+            medication.setFrequency(minutes.size() == 1 ? "Once a day" : minutes.size() + " times a day");
+            medication.setTimes(DoseSchedule.formatAll(minutes));
+            medication.setInstructions("Take " + dosageOf(medication));
+            medication.setDoseMinutes(minutes);
+            medication.setId(helper.addMedication(medication));
+            medications.add(medication);
+        }
+        return medications;
+    }
+
+    private static String dosageOf(Medication medication) {
+        return DOSAGES[Math.floorMod(medication.getMedicineName().hashCode(), DOSAGES.length)];
+    }
+
+    private List<Integer> doseMinutes() {
+        List<Integer> minutes = new ArrayList<>();
+        int doses = 1 + random.nextInt(3);
+        while (minutes.size() < doses) {
+            int minute = SLOTS[random.nextInt(SLOTS.length)];
+            if (!minutes.contains(minute)) {
+                minutes.add(minute);
+            }
+        }
+        Collections.sort(minutes);
+        return minutes;
+    }
+
+    // Writes rows logs for medications ending the day before endMillis, oldest
+    // first, and returns the time of the first day
+    long addLogs(DatabaseHelper helper, List<Medication> medications, int rows, long endMillis) {
+        int dosesPerDay = 0;
+        double[] adherence = new double[medications.size()];
+        for (int i = 0; i < medications.size(); i++) {
+            dosesPerDay += medications.get(i).getDoseMinutes().size();
+            adherence[i] = 0.70 + random.nextDouble() * 0.27;
+        }
+        int days = (rows + dosesPerDay - 1) / dosesPerDay;
+
+        Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(endMillis);
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        day.add(Calendar.DAY_OF_MONTH, -days);
+        long firstDay = day.getTimeInMillis();
+
+        List<MedicationLog> batch = new ArrayList<>(BATCH);
+        int written = 0;
+        while (written < rows) {
+            long midnight = day.getTimeInMillis();
+            int dayOfWeek = day.get(Calendar.DAY_OF_WEEK);
+            boolean weekend = dayOfWeek == Calendar.SATURDAY || dayOfWeek == Calendar.SUNDAY;
+            for (int m = 0; m < medications.size() && written < rows; m++) {
+                Medication medication = medications.get(m);
+                for (int minute : medication.getDoseMinutes()) {
+                    if (written == rows) break;
+                    long scheduledAt = midnight + minute * MINUTE;
+                    batch.add(log(medication, scheduledAt, weekend ? 2 * adherence[m] - 1 : adherence[m]));
+                    written++;
+                    if (batch.size() == BATCH) {
+                        helper.insertMedicationLogs(batch);
+                        batch.clear();
+                    }
+                }
+            }
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        helper.insertMedicationLogs(batch);
+        return firstDay;
+    }
+
+    // The final state of one dose: taken within the hour, missed (logged
+    // when the reminder timed out) or left snoozed
+    private MedicationLog log(Medication medication, long scheduledAt, double takenRate) {
+        double roll = random.nextDouble();
+        String status;
+        long at;
+        if (roll < takenRate) {
+            status = "Taken";
+            at = scheduledAt + random.nextInt(60) * MINUTE;
+        } else if (roll < takenRate + (1 - takenRate) * 0.6) {
+            status = "Missed";
+            at = scheduledAt + 60 * MINUTE;
+        } else {
+            status = "Snoozed";
+            at = scheduledAt + (5 + random.nextInt(25)) * MINUTE;
+        }
+        MedicationLog log = new MedicationLog(medication.getMedicineName(), dosageOf(medication),
+                medication.getBoxNumber(), status, new Date(at));
+        log.setDoseKey(medication.getId(), scheduledAt);
+        return log;
+    }
+}
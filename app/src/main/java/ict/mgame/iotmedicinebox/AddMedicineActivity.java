@@ -32,9 +32,11 @@ import java.util.regex.Matcher;
 public class AddMedicineActivity extends Activity implements BluetoothService.BluetoothListener {
 
     private LinearLayout selectedTimesLayout;
-    private List<String> selectedTimes = new ArrayList<>();
-    private DatabaseHelper databaseHelper;
+    private List<Integer> selectedTimes = new ArrayList<>(); // minutes of day
+    private MedicationRepository medicationRepository;
+    private QueryExecutor queryExecutor;
     private long medicationId = -1;
+    private int startDay; // yyyymmdd of the medication being edited, 0 for a new one
     private int selectedBoxNumber = -1;
     private String selectedBoxName = "";
     private EditText etMedName;
@@ -96,7 +98,8 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
         setContentView(R.layout.activity_add_medicine);
 
         // Initialize database
-        databaseHelper = new DatabaseHelper(this);
+        medicationRepository = MedBoxApplication.getMedicationRepository(this);
+        queryExecutor = MedBoxApplication.getQueryExecutor(this);
 
         // Initialize Bluetooth
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -366,8 +369,13 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
             }
 
             // Check if box already has medication (只在添加新药物时检查)
-            if (!isEditingExisting && databaseHelper.hasMedicationInBox(selectedBoxNumber)) {
-                showBoxAlreadyHasMedicineDialog();
+            if (!isEditingExisting) {
+                final int boxNumber = selectedBoxNumber;
+                queryExecutor.query(this, () -> medicationRepository.hasMedicationInBox(boxNumber), hasMedication -> {
+                    if (hasMedication && boxNumber == selectedBoxNumber) {
+                        showBoxAlreadyHasMedicineDialog();
+                    }
+                });
             }
         });
 
@@ -465,8 +473,8 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
     }
 
     private void addPredefinedTimes() {
-        String[] predefinedTimes = {"7:00 am", "8:00 am", "9:00 am", "12:00 pm", "8:00 pm"};
-        for (String time : predefinedTimes) {
+        int[] predefinedTimes = {7 * 60, 8 * 60, 9 * 60, 12 * 60, 20 * 60};
+        for (int time : predefinedTimes) {
             if (!selectedTimes.contains(time)) {
                 selectedTimes.add(time);
                 addTimeChip(time);
@@ -476,10 +484,7 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
 
     private void showTimePicker() {
         new TimePickerDialog(this, (view, hourOfDay, minute) -> {
-            String amPm = hourOfDay >= 12 ? "pm" : "am";
-            int hour = hourOfDay % 12;
-            if (hour == 0) hour = 12;
-            String time = String.format(Locale.getDefault(), "%d:%02d %s", hour, minute, amPm);
+            int time = hourOfDay * 60 + minute;
 
             if (!selectedTimes.contains(time)) {
                 selectedTimes.add(time);
@@ -488,9 +493,9 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
         }, 12, 0, false).show();
     }
 
-    private void addTimeChip(String time) {
+    private void addTimeChip(int time) {
         TextView chip = new TextView(this);
-        chip.setText(time);
+        chip.setText(DoseSchedule.format(time));
         chip.setTextColor(Color.WHITE);
         chip.setTextSize(16);
         chip.setPadding(36, 24, 36, 24);
@@ -517,7 +522,7 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
 
         // Add remove functionality
         chip.setOnClickListener(v -> {
-            selectedTimes.remove(time);
+            selectedTimes.remove(Integer.valueOf(time));
             selectedTimesLayout.removeView(chip);
         });
 
@@ -527,10 +532,14 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
     private void loadExistingMedication() {
         if (medicationId == -1) return;
 
-        Medication medication = databaseHelper.getMedicationById(medicationId);
+        queryExecutor.query(this, () -> medicationRepository.getById(medicationId), this::showExistingMedication);
+    }
+
+    private void showExistingMedication(Medication medication) {
         if (medication != null) {
             // 填充现有数据
             etMedName.setText(medication.getMedicineName());
+            startDay = medication.getStartDay();
             selectedBoxNumber = medication.getBoxNumber();
             selectedBoxName = medication.getBoxName();
 
@@ -554,11 +563,13 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
             }
 
             // 设置时间
-            if (medication.getNotificationTime() != null) {
+            if (medication.getDoseMinutes() != null && !medication.getDoseMinutes().isEmpty()) {
                 selectedTimes.clear();
-                selectedTimes.add(medication.getNotificationTime());
                 selectedTimesLayout.removeAllViews();
-                addTimeChip(medication.getNotificationTime());
+                for (int time : medication.getDoseMinutes()) {
+                    selectedTimes.add(time);
+                    addTimeChip(time);
+                }
             }
 
             // 设置说明
@@ -583,11 +594,6 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
             return;
         }
 
-        if (selectedTimes.isEmpty()) {
-            showError("Please select at least one notification time");
-            return;
-        }
-
         // Get frequency
         String frequency = "";
         int checkedId = radioGroupFrequency.getCheckedRadioButtonId();
@@ -603,9 +609,13 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
             frequency = "As needed";
         }
 
+        // Every selected time is a dose
+        Set<Integer> minutes = new TreeSet<>(selectedTimes);
+
         // Get custom schedule for "As needed"
         String days = "";
         String times = "";
+        Recurrence.Days recurrence = new Recurrence.Days();
         if (checkedId == R.id.rbAsNeeded) {
             days = etCustomDays.getText().toString().trim();
             times = etCustomTimes.getText().toString().trim();
@@ -613,10 +623,32 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
                 showError("Please fill in days and times for 'As needed' schedule");
                 return;
             }
+            recurrence = Recurrence.parseDays(days);
+            if (recurrence == null) {
+                showError("Days not understood, try e.g. 'Mon/Wed/Fri', 'Weekdays' or 'Every 3 days for 2 weeks'");
+                return;
+            }
+            // Clock times in the text ("8:00 am, 6:00 pm") are doses too;
+            // anything else ("After meals") stays a note
+            for (String time : times.split("[,;]")) {
+                int minute = DoseSchedule.parse(time);
+                if (minute >= 0) {
+                    minutes.add(minute);
+                }
+            }
+        }
+
+        if (minutes.isEmpty()) {
+            showError("Please select at least one notification time");
+            return;
         }
 
-        // Get notification time (use first selected time)
-        String notificationTime = selectedTimes.get(0);
+        // The first dose is also kept as display text
+        List<Integer> doseMinutes = new ArrayList<>(minutes);
+        String notificationTime = DoseSchedule.format(doseMinutes.get(0));
+
+        // Every-N-days and "for N days" count from the day it was first added
+        int firstDay = startDay > 0 ? startDay : AdherenceRollup.dayKey(Calendar.getInstance());
 
         // Get instructions
         String instructions = etInstructions.getText().toString().trim();
@@ -636,30 +668,44 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
         medication.setDays(days);
         medication.setTimes(times);
         medication.setNotificationTime(notificationTime);
+        medication.setDoseMinutes(doseMinutes);
+        medication.setWeekdayMask(recurrence.weekdayMask);
+        medication.setIntervalDays(recurrence.intervalDays);
+        medication.setStartDay(firstDay);
+        medication.setEndDay(recurrence.endDay(firstDay));
         medication.setInstructions(instructions);
         medication.setActive(true);
 
-        // Save to database
-        long id;
-        if (medicationId != -1) {
-            // 更新现有药物
-            databaseHelper.updateMedication(medication);
-            id = medicationId;
-        } else {
-            // 添加新药物
-            id = databaseHelper.addMedication(medication);
-        }
-
-        if (id != -1) {
-            // 设置提醒闹钟
-            scheduleReminderAlarm(id, medicineName, notificationTime, instructions, selectedBoxNumber);
-
-            Toast.makeText(this, "Medication saved successfully!", Toast.LENGTH_LONG).show();
+        // Save to database on a query thread; the button stays disabled until it is done
+        final long existingId = medicationId;
+        final int boxNumber = selectedBoxNumber;
+        final String boxName = selectedBoxName;
+        if (btnSaveBottom != null) btnSaveBottom.setEnabled(false);
+        queryExecutor.write(this, () -> {
+            long id;
+            if (existingId != -1) {
+                // 更新现有药物
+                medicationRepository.update(medication);
+                id = existingId;
+            } else {
+                // 添加新药物
+                id = medicationRepository.add(medication);
+            }
 
             // Also update box name in database
-            if (!selectedBoxName.isEmpty()) {
-                databaseHelper.updateBoxName(selectedBoxNumber, selectedBoxName);
+            if (id != -1 && !boxName.isEmpty()) {
+                medicationRepository.updateBoxName(boxNumber, boxName);
             }
+            return id;
+        }, this::onMedicationSaved, error -> onMedicationSaved(-1));
+    }
+
+    private void onMedicationSaved(long id) {
+        if (btnSaveBottom != null) btnSaveBottom.setEnabled(true);
+        if (id != -1) {
+            // The saved change reaches DoseScheduler through the repository,
+            // which re-arms the next reminder
+            Toast.makeText(this, "Medication saved successfully!", Toast.LENGTH_LONG).show();
 
             // Return to home
             Intent intent = new Intent(this, HomeActivity.class);
@@ -670,122 +716,6 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
         }
     }
 
-    // 修改：设置提醒闹钟 - 使用 setAlarmClock 确保可靠触发
-    private void scheduleReminderAlarm(long medicationId, String medicineName, String notificationTime, String instructions, int boxNumber) {
-        try {
-            // 解析时间字符串，例如 "7:00 am"
-            String[] parts = notificationTime.split(" ");
-            String timePart = parts[0]; // "7:00"
-            String amPm = parts[1]; // "am"
-
-            String[] timeComponents = timePart.split(":");
-            int hour = Integer.parseInt(timeComponents[0]);
-            int minute = Integer.parseInt(timeComponents[1]);
-
-            // 转换为24小时制
-            if (amPm.equalsIgnoreCase("pm") && hour != 12) {
-                hour += 12;
-            } else if (amPm.equalsIgnoreCase("am") && hour == 12) {
-                hour = 0;
-            }
-
-            // 创建Calendar实例
-            Calendar calendar = Calendar.getInstance();
-            calendar.set(Calendar.HOUR_OF_DAY, hour);
-            calendar.set(Calendar.MINUTE, minute);
-            calendar.set(Calendar.SECOND, 0);
-            calendar.set(Calendar.MILLISECOND, 0);
-
-            // 如果设置的时间已经过去，设置为明天
-            if (calendar.getTimeInMillis() <= System.currentTimeMillis()) {
-                calendar.add(Calendar.DAY_OF_YEAR, 1);
-            }
-
-            // 创建Intent
-            Intent reminderIntent = new Intent(this, ReminderActivity.class);
-            reminderIntent.putExtra("medication_id", medicationId);
-            reminderIntent.putExtra("medicine_name", medicineName);
-            reminderIntent.putExtra("reminder_time", notificationTime);
-            reminderIntent.putExtra("instructions", instructions);
-            reminderIntent.putExtra("box_number", boxNumber);
-            reminderIntent.putExtra("dosage", "1 tablet");
-
-            // 添加必要的标志
-            reminderIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
-
-            // 创建PendingIntent
-            android.app.PendingIntent pendingIntent = android.app.PendingIntent.getActivity(
-                    this,
-                    (int) medicationId, // 使用medicationId作为requestCode确保唯一性
-                    reminderIntent,
-                    android.app.PendingIntent.FLAG_UPDATE_CURRENT | android.app.PendingIntent.FLAG_IMMUTABLE
-            );
-
-            // 设置闹钟 - 使用 setAlarmClock() 确保在锁屏和深度睡眠下也能工作
-            android.app.AlarmManager alarmManager = (android.app.AlarmManager) getSystemService(ALARM_SERVICE);
-            if (alarmManager != null) {
-                // 使用 setAlarmClock() 显示在锁屏上
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                    android.app.AlarmManager.AlarmClockInfo alarmClockInfo =
-                            new android.app.AlarmManager.AlarmClockInfo(
-                                    calendar.getTimeInMillis(),
-                                    pendingIntent
-                            );
-                    alarmManager.setAlarmClock(alarmClockInfo, pendingIntent);
-                    Log.d("AddMedicineActivity", "AlarmClock set for: " + notificationTime + " (" + calendar.getTime() + ")");
-                }
-                // 对于 Android 4.4+ 使用 setExactAndAllowWhileIdle
-                else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    alarmManager.setExactAndAllowWhileIdle(
-                            android.app.AlarmManager.RTC_WAKEUP,
-                            calendar.getTimeInMillis(),
-                            pendingIntent
-                    );
-                    Log.d("AddMedicineActivity", "setExactAndAllowWhileIdle set for: " + notificationTime + " (" + calendar.getTime() + ")");
-                }
-                else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                    alarmManager.setExact(
-                            android.app.AlarmManager.RTC_WAKEUP,
-                            calendar.getTimeInMillis(),
-                            pendingIntent
-                    );
-                    Log.d("AddMedicineActivity", "setExact set for: " + notificationTime + " (" + calendar.getTime() + ")");
-                }
-                else {
-                    alarmManager.set(
-                            android.app.AlarmManager.RTC_WAKEUP,
-                            calendar.getTimeInMillis(),
-                            pendingIntent
-                    );
-                    Log.d("AddMedicineActivity", "set set for: " + notificationTime + " (" + calendar.getTime() + ")");
-                }
-
-                // 显示调试信息
-                debugAlarmStatus(alarmManager, pendingIntent);
-            }
-
-        } catch (Exception e) {
-            Log.e("AddMedicineActivity", "Error setting alarm: " + e.getMessage());
-            e.printStackTrace();
-            Toast.makeText(this, "Failed to set reminder: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-        }
-    }
-
-    // 新增：调试闹钟状态
-    private void debugAlarmStatus(android.app.AlarmManager alarmManager, android.app.PendingIntent pendingIntent) {
-        Log.d("AddMedicineActivity", "PendingIntent created: " + (pendingIntent != null ? "YES" : "NO"));
-
-        // 检查下一个闹钟
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            android.app.AlarmManager.AlarmClockInfo nextAlarm = alarmManager.getNextAlarmClock();
-            if (nextAlarm != null) {
-                Log.d("AddMedicineActivity", "Next alarm scheduled for: " + new Date(nextAlarm.getTriggerTime()));
-            } else {
-                Log.d("AddMedicineActivity", "No next alarm found in system");
-            }
-        }
-    }
-
     private void showError(String message) {
         Toast.makeText(this, message, Toast.LENGTH_LONG).show();
     }
@@ -883,10 +813,5 @@ public class AddMedicineActivity extends Activity implements BluetoothService.Bl
             unbindService(serviceConnection);
             isBound = false;
         }
-
-        // Close database
-        if (databaseHelper != null) {
-            databaseHelper.close();
-        }
     }
 }
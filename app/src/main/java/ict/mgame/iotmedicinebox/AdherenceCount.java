@@ -0,0 +1,24 @@
+package ict.mgame.iotmedicinebox;
+
+// One adherence_daily row: how many logs a medicine had with a status on a day
+public class AdherenceCount {
+    private final int day; // yyyymmdd, local time
+    private final String medicineName;
+    private final String status;
+    private final int count;
+
+    public AdherenceCount(int day, String medicineName, String status, int count) {
+        this.day = day;
+        this.medicineName = medicineName;
+        this.status = status;
+        this.count = count;
+    }
+
+    public int getDay() { return day; }
+
+    public String getMedicineName() { return medicineName; }
+
+    public String getStatus() { return status; }
+
+    public int getCount() { return count; }
+}
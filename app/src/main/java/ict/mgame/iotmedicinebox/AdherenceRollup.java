@@ -0,0 +1,208 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Materialized daily adherence: one adherence_daily row per
+// day x medicine x status with the number of matching medication_logs rows.
+// Triggers on medication_logs keep it current inside the same transaction as
+// every insert, update and delete, whichever code path issued it.
+final class AdherenceRollup {
+
+    static final String TABLE = "adherence_daily";
+
+    // Local calendar day as yyyymmdd, computed the same way in triggers and rebuilds
+    private static String daySql(String timestampColumn) {
+        return "CAST(strftime('%Y%m%d', " + timestampColumn + " / 1000, 'unixepoch', 'localtime') AS INTEGER)";
+    }
+
+    static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+                    "day INTEGER NOT NULL, " +
+                    "medicine_name TEXT NOT NULL, " +
+                    "status TEXT NOT NULL, " +
+                    "count INTEGER NOT NULL, " +
+                    "PRIMARY KEY (day, medicine_name, status)) WITHOUT ROWID";
+
+    // medication_logs stores a name_id and a status code; the rollup keeps
+    // the text so existing readers and the archive see the same keys
+    private static String nameSql(String row) {
+        return "IFNULL((SELECT medicine_name FROM " + LogNames.TABLE +
+                " WHERE name_id = " + row + ".name_id), '')";
+    }
+
+    private static String statusSql(String row) {
+        return "IFNULL(" + LogStatus.nameSql(row + ".status") + ", '')";
+    }
+
+    private static String increment(String row) {
+        String day = daySql(row + ".timestamp");
+        String name = nameSql(row);
+        String status = statusSql(row);
+        return "INSERT OR IGNORE INTO " + TABLE + " (day, medicine_name, status, count)" +
+                " VALUES (" + day + ", " + name + ", " + status + ", 0); " +
+                "UPDATE " + TABLE + " SET count = count + 1" +
+                " WHERE day = " + day + " AND medicine_name = " + name + " AND status = " + status + "; ";
+    }
+
+    private static String decrement(String row) {
+        String where = " WHERE day = " + daySql(row + ".timestamp") +
+                " AND medicine_name = " + nameSql(row) +
+                " AND status = " + statusSql(row);
+        return "UPDATE " + TABLE + " SET count = count - 1" + where + "; " +
+                "DELETE FROM " + TABLE + where + " AND count <= 0; ";
+    }
+
+    static final String[] CREATE_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS trg_logs_rollup_insert AFTER INSERT ON medication_logs BEGIN " +
+                    increment("NEW") + "END",
+            "CREATE TRIGGER IF NOT EXISTS trg_logs_rollup_delete AFTER DELETE ON medication_logs BEGIN " +
+                    decrement("OLD") + "END",
+            "CREATE TRIGGER IF NOT EXISTS trg_logs_rollup_update" +
+                    " AFTER UPDATE OF name_id, status, timestamp ON medication_logs BEGIN " +
+                    decrement("OLD") + increment("NEW") + "END"
+    };
+
+    private static final String RAW_GROUPED =
+            "SELECT " + daySql("timestamp") + " AS day, IFNULL(medicine_name, '') AS medicine_name," +
+                    " IFNULL(" + LogStatus.nameSql("status") + ", '') AS status, COUNT(*) AS count" +
+                    " FROM (" + DatabaseHelper.SELECT_LOGS + ") GROUP BY 1, 2, 3";
+
+    static final String QUERY_RANGE =
+            "SELECT day, medicine_name, status, count FROM " + TABLE +
+                    " WHERE day BETWEEN ? AND ? ORDER BY day, medicine_name, status";
+
+    private AdherenceRollup() {}
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE);
+        for (String sql : CREATE_TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    static boolean isMaintained(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'trigger' AND name = 'trg_logs_rollup_insert'",
+                null) > 0;
+    }
+
+    // Recompute the rollup for days >= fromDay from medication_logs in one
+    // transaction. Earlier days only exist in the log archive and are kept.
+    static void rebuild(SQLiteDatabase db, int fromDay) {
+        db.beginTransaction();
+        try {
+            create(db);
+            db.execSQL("DELETE FROM " + TABLE + " WHERE day >= " + fromDay);
+            db.execSQL("INSERT INTO " + TABLE + " (day, medicine_name, status, count)" +
+                    " SELECT * FROM (" + RAW_GROUPED + ") WHERE day >= " + fromDay);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // True if the rollup for days >= fromDay matches a fresh GROUP BY over medication_logs
+    static boolean verify(SQLiteDatabase db, int fromDay) {
+        String raw = "SELECT * FROM (" + RAW_GROUPED + ") WHERE day >= " + fromDay;
+        String rollup = "SELECT day, medicine_name, status, count FROM " + TABLE + " WHERE day >= " + fromDay;
+        long missing = DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM (" + raw + " EXCEPT " + rollup + ")", null);
+        long extra = DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM (" + rollup + " EXCEPT " + raw + ")", null);
+        return missing == 0 && extra == 0;
+    }
+
+    // Counts for every day in [fromDay, toDay], both yyyymmdd. Reads the raw
+    // log instead while the rollup is still being backfilled after an upgrade.
+    static List<AdherenceCount> query(SQLiteDatabase db, int fromDay, int toDay) {
+        String[] args = {String.valueOf(fromDay), String.valueOf(toDay)};
+        Cursor cursor = isMaintained(db)
+                ? db.rawQuery(QUERY_RANGE, args)
+                : db.rawQuery("SELECT * FROM (" + RAW_GROUPED + ") WHERE day BETWEEN ? AND ?" +
+                " ORDER BY day, medicine_name, status", args);
+
+        List<AdherenceCount> counts = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            counts.add(new AdherenceCount(cursor.getInt(0), cursor.getString(1),
+                    cursor.getString(2), cursor.getInt(3)));
+        }
+        cursor.close();
+        return counts;
+    }
+
+    // Add the logs matching where to the rollup without going through the triggers
+    static void addCounts(SQLiteDatabase db, String where, String[] args) {
+        Cursor cursor = db.rawQuery("SELECT " + daySql("timestamp") + ", IFNULL(medicine_name, ''), " +
+                "IFNULL(" + LogStatus.nameSql("status") + ", ''), COUNT(*) FROM (" + DatabaseHelper.SELECT_LOGS +
+                ") WHERE " + where + " GROUP BY 1, 2, 3", args);
+        while (cursor.moveToNext()) {
+            Object[] key = {cursor.getInt(0), cursor.getString(1), cursor.getString(2)};
+            db.execSQL("INSERT OR IGNORE INTO " + TABLE + " (day, medicine_name, status, count)" +
+                    " VALUES (?, ?, ?, 0)", key);
+            db.execSQL("UPDATE " + TABLE + " SET count = count + ?" +
+                            " WHERE day = ? AND medicine_name = ? AND status = ?",
+                    new Object[]{cursor.getInt(3), key[0], key[1], key[2]});
+        }
+        cursor.close();
+    }
+
+    // Take logs that never pass through medication_logs again (archived
+    // ones) out of the rollup
+    static void subtractCounts(SQLiteDatabase db, List<MedicationLog> logs) {
+        Map<List<Object>, Integer> counts = new HashMap<>();
+        Calendar calendar = Calendar.getInstance();
+        for (MedicationLog log : logs) {
+            calendar.setTimeInMillis(log.getTimestamp().getTime());
+            List<Object> key = Arrays.asList(dayKey(calendar),
+                    log.getMedicineName() != null ? log.getMedicineName() : "",
+                    log.getStatus() != null ? log.getStatus() : "");
+            counts.merge(key, 1, Integer::sum);
+        }
+        for (Map.Entry<List<Object>, Integer> entry : counts.entrySet()) {
+            Object[] key = entry.getKey().toArray();
+            db.execSQL("UPDATE " + TABLE + " SET count = count - ?" +
+                            " WHERE day = ? AND medicine_name = ? AND status = ?",
+                    new Object[]{entry.getValue(), key[0], key[1], key[2]});
+            db.execSQL("DELETE FROM " + TABLE +
+                    " WHERE day = ? AND medicine_name = ? AND status = ? AND count <= 0", key);
+        }
+    }
+
+    static int dayKey(Calendar calendar) {
+        return calendar.get(Calendar.YEAR) * 10000
+                + (calendar.get(Calendar.MONTH) + 1) * 100
+                + calendar.get(Calendar.DAY_OF_MONTH);
+    }
+
+    // Backfill for databases that already hold logs: fold rows into the rollup
+    // in rowid order, and install the triggers in the same transaction as the
+    // last batch so no insert is either missed or counted twice.
+    static long backfillBatch(SQLiteDatabase db, long afterRowId, int limit) {
+        // A rebuild() since the upgrade already did the whole job
+        if (isMaintained(db)) {
+            return -1;
+        }
+        db.execSQL(CREATE_TABLE);
+        long lastRowId = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(id), -1) FROM (SELECT id FROM medication_logs WHERE id > ? ORDER BY id LIMIT ?)",
+                new String[]{String.valueOf(afterRowId), String.valueOf(limit)});
+        if (lastRowId < 0) {
+            for (String sql : CREATE_TRIGGERS) {
+                db.execSQL(sql);
+            }
+            return -1;
+        }
+
+        addCounts(db, "id > ? AND id <= ?", new String[]{String.valueOf(afterRowId), String.valueOf(lastRowId)});
+        return lastRowId;
+    }
+}
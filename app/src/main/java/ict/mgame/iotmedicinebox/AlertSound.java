@@ -0,0 +1,187 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.media.RingtoneManager;
+import android.media.SoundPool;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+
+// The reminder's alarm tone, decoded ahead of time so it can start the
+// moment a reminder shows.
+//
+// MediaPlayer.create prepares synchronously, which on ReminderActivity's
+// main thread held back both the screen and the sound. Instead the tone is
+// loaded into a SoundPool when the process starts; an alarm that finds the
+// app stopped starts the process first, so the load overlaps with creating
+// the activity, and start() plays as soon as the tone is decoded. SoundPool
+// keeps roughly the first five seconds of a tone and loops them. A tone it
+// cannot load falls back to a MediaPlayer prepared asynchronously.
+//
+// Everything runs on the "alert-sound" thread, which also receives the
+// SoundPool and MediaPlayer callbacks, so none of it needs locking.
+final class AlertSound {
+
+    interface Listener {
+        // Called on the alert-sound thread with the uptimeMillis of the first sound
+        void onAudible(long uptimeMillis);
+    }
+
+    private static final String TAG = "AlertSound";
+
+    // In order of preference, as before: a phone without an alarm tone still rings
+    private static final int[] TONE_TYPES = {
+            RingtoneManager.TYPE_ALARM, RingtoneManager.TYPE_NOTIFICATION, RingtoneManager.TYPE_RINGTONE};
+
+    private static final AudioAttributes ALARM = new AudioAttributes.Builder()
+            .setUsage(AudioAttributes.USAGE_ALARM)
+            .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+            .build();
+
+    private final Context context;
+    private final Handler handler;
+    private volatile boolean ready;
+
+    // Only touched on the handler's thread
+    private SoundPool soundPool;
+    private Uri tone;
+    private int soundId;        // 0 until decoded
+    private boolean loadFailed;
+    private boolean wanted;     // started and not stopped since
+    private int streamId;
+    private MediaPlayer fallback;
+    private Listener listener;
+
+    AlertSound(Context context) {
+        this.context = context.getApplicationContext();
+        HandlerThread thread = new HandlerThread("alert-sound");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    // Decode the current tone; one changed in the system settings is picked
+    // up the next time the process starts
+    void preload() {
+        handler.post(this::load);
+    }
+
+    // Whether the tone is decoded, so start() plays at once
+    boolean isReady() {
+        return ready;
+    }
+
+    // Loop the tone until stop(); listener hears when it becomes audible
+    void start(Listener listener) {
+        handler.post(() -> {
+            wanted = true;
+            this.listener = listener;
+            load();
+            play();
+        });
+    }
+
+    void stop() {
+        handler.post(() -> {
+            wanted = false;
+            listener = null;
+            if (streamId != 0) {
+                soundPool.stop(streamId);
+                streamId = 0;
+            }
+            if (fallback != null) {
+                fallback.release();
+                fallback = null;
+            }
+        });
+    }
+
+    private void load() {
+        if (soundPool != null) {
+            return;
+        }
+        soundPool = new SoundPool.Builder().setMaxStreams(1).setAudioAttributes(ALARM).build();
+        soundPool.setOnLoadCompleteListener((pool, sampleId, status) -> {
+            if (status == 0) {
+                soundId = sampleId;
+                ready = true;
+            } else {
+                Log.w(TAG, "Could not decode " + tone + " (" + status + "), using MediaPlayer");
+                loadFailed = true;
+            }
+            play();
+        });
+
+        long start = SystemClock.uptimeMillis();
+        for (int type : TONE_TYPES) {
+            Uri uri = RingtoneManager.getDefaultUri(type);
+            // SoundPool keeps its own descriptor, so this one can be closed
+            try (AssetFileDescriptor fd = context.getContentResolver().openAssetFileDescriptor(uri, "r")) {
+                if (fd != null) {
+                    tone = uri;
+                    soundPool.load(fd, 1);
+                    Log.d(TAG, "Loading " + uri + ", opened in " + (SystemClock.uptimeMillis() - start) + " ms");
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.d(TAG, "No tone at " + uri, e);
+            }
+        }
+        tone = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
+        loadFailed = true;
+    }
+
+    private void play() {
+        if (!wanted || streamId != 0 || fallback != null) {
+            return;
+        }
+        if (soundId != 0) {
+            streamId = soundPool.play(soundId, 1f, 1f, 1, -1, 1f);
+            if (streamId != 0) {
+                audible();
+                return;
+            }
+            Log.w(TAG, "SoundPool would not play, using MediaPlayer");
+        } else if (!loadFailed) {
+            // Still decoding; the load listener calls back here
+            return;
+        }
+        startFallback();
+    }
+
+    private void startFallback() {
+        MediaPlayer player = new MediaPlayer();
+        try {
+            player.setAudioAttributes(ALARM);
+            player.setDataSource(context, tone);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not play " + tone, e);
+            player.release();
+            return;
+        }
+        player.setLooping(true);
+        player.setOnPreparedListener(prepared -> {
+            // Released by stop() while preparing
+            if (prepared == fallback) {
+                prepared.start();
+                audible();
+            }
+        });
+        player.prepareAsync();
+        fallback = player;
+    }
+
+    private void audible() {
+        Listener audibleListener = listener;
+        listener = null;
+        if (audibleListener != null) {
+            audibleListener.onAudible(SystemClock.uptimeMillis());
+        }
+    }
+}
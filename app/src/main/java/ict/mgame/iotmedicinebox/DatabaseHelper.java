@@ -3,15 +3,24 @@ package ict.mgame.iotmedicinebox;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
+    private static final String TAG = "DatabaseHelper";
     private static final String DATABASE_NAME = "medbox.db";
-    private static final int DATABASE_VERSION = 2; // Changed from 1 to 2
+    private static final int DATABASE_VERSION = 10; // 10: recurrence rules on medications
 
     // Table name and columns
     public static final String TABLE_MEDICATIONS = "medications";
@@ -22,7 +31,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public static final String COLUMN_FREQUENCY = "frequency";
     public static final String COLUMN_DAYS = "days";
     public static final String COLUMN_TIMES = "times";
-    public static final String COLUMN_NOTIFICATION_TIME = "notification_time";
+    public static final String COLUMN_NOTIFICATION_TIME = "notification_time"; // display text of the first dose
+    public static final String COLUMN_FIRST_DOSE_MINUTE = "first_dose_minute"; // kept by DoseSchedule triggers
+    public static final String COLUMN_WEEKDAY_MASK = "weekday_mask";   // Recurrence rules:
+    public static final String COLUMN_INTERVAL_DAYS = "interval_days"; // weekdays, every N days
+    public static final String COLUMN_START_DAY = "start_day";         // and yyyymmdd bounds
+    public static final String COLUMN_END_DAY = "end_day";
     public static final String COLUMN_INSTRUCTIONS = "instructions";
     public static final String COLUMN_IS_ACTIVE = "is_active";
     public static final String COLUMN_CREATED_AT = "created_at";
@@ -38,39 +52,228 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     COLUMN_DAYS + " TEXT, " +
                     COLUMN_TIMES + " TEXT, " +
                     COLUMN_NOTIFICATION_TIME + " TEXT NOT NULL, " +
+                    COLUMN_FIRST_DOSE_MINUTE + " INTEGER, " +
+                    COLUMN_WEEKDAY_MASK + " INTEGER NOT NULL DEFAULT " + Recurrence.EVERY_DAY + ", " +
+                    COLUMN_INTERVAL_DAYS + " INTEGER NOT NULL DEFAULT 1, " +
+                    COLUMN_START_DAY + " INTEGER, " +
+                    COLUMN_END_DAY + " INTEGER, " +
                     COLUMN_INSTRUCTIONS + " TEXT, " +
                     COLUMN_IS_ACTIVE + " INTEGER DEFAULT 1, " +
                     COLUMN_CREATED_AT + " TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
                     ");";
 
-    // NEW: Create medication logs table SQL
-    private static final String CREATE_MEDICATION_LOGS_TABLE =
-            "CREATE TABLE medication_logs (" +
+    // NEW: Create medication logs table SQL. Name and dosage live in
+    // LogNames, status is a LogStatus code. A log that answers a reminder
+    // carries the dose it answers as (medication_id, scheduled_at); logs from
+    // elsewhere (imports, manual entries) leave both NULL.
+    static final String CREATE_MEDICATION_LOGS_TABLE =
+            "CREATE TABLE IF NOT EXISTS medication_logs (" +
                     "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    "medicine_name TEXT, " +
-                    "dosage TEXT, " +
+                    "name_id INTEGER NOT NULL, " +
                     "box_number INTEGER, " +
-                    "status TEXT, " +
-                    "timestamp INTEGER)";
+                    "status INTEGER, " +
+                    "timestamp INTEGER, " +
+                    "medication_id INTEGER, " +
+                    "scheduled_at INTEGER)";
 
-    public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    // Logs with their names resolved, in the shape MedicationLogMapper reads.
+    // Append WHERE / ORDER BY on the unqualified log columns.
+    static final String SELECT_LOGS =
+            "SELECT id, medicine_name, dosage, box_number, status, timestamp, medication_id, scheduled_at" +
+                    " FROM medication_logs JOIN " + LogNames.TABLE + " USING (name_id)";
+
+    // Secondary indexes, one per access pattern. Index entries are ordered by
+    // (columns, rowid) so the log indexes also serve "ORDER BY timestamp, id".
+    // getMedicationsForBox / hasMedicationInBox / updateBoxName
+    static final String INDEX_MEDICATIONS_BOX =
+            "CREATE INDEX IF NOT EXISTS idx_medications_box ON " + TABLE_MEDICATIONS + " (" +
+                    COLUMN_BOX_NUMBER + ", " + COLUMN_IS_ACTIVE + ", " + COLUMN_FIRST_DOSE_MINUTE + ")";
+    // getAllMedications ordering
+    static final String INDEX_MEDICATIONS_FIRST_DOSE =
+            "CREATE INDEX IF NOT EXISTS idx_medications_first_dose ON " + TABLE_MEDICATIONS + " (" +
+                    COLUMN_FIRST_DOSE_MINUTE + ")";
+    // Unfiltered history, newest first
+    static final String INDEX_LOGS_TIMESTAMP =
+            "CREATE INDEX IF NOT EXISTS idx_logs_timestamp ON medication_logs (timestamp)";
+    // Taken / Missed filters, newest first
+    static final String INDEX_LOGS_STATUS_TIMESTAMP =
+            "CREATE INDEX IF NOT EXISTS idx_logs_status_timestamp ON medication_logs (status, timestamp)";
+    // One row per scheduled dose; partial, so unkeyed logs cost nothing here
+    static final String INDEX_LOGS_DOSE =
+            "CREATE UNIQUE INDEX IF NOT EXISTS idx_logs_dose ON medication_logs (medication_id, scheduled_at)" +
+                    " WHERE scheduled_at IS NOT NULL";
+
+    // Every index of the current schema
+    private static final String[] CREATE_INDEXES = {
+            INDEX_MEDICATIONS_BOX,
+            INDEX_MEDICATIONS_FIRST_DOSE,
+            INDEX_LOGS_TIMESTAMP,
+            INDEX_LOGS_STATUS_TIMESTAMP,
+            INDEX_LOGS_DOSE,
+            DoseSchedule.INDEX_MINUTE,
+            LogNames.INDEX_PAIR
+    };
+
+    // Read queries, kept here so the query plan tests run exactly what the helper runs
+    static final String QUERY_ALL_MEDICATIONS =
+            "SELECT * FROM " + TABLE_MEDICATIONS +
+                    " ORDER BY " + COLUMN_FIRST_DOSE_MINUTE + " ASC";
+    static final String QUERY_MEDICATIONS_FOR_BOX =
+            "SELECT * FROM " + TABLE_MEDICATIONS +
+                    " WHERE " + COLUMN_BOX_NUMBER + " = ? AND " + COLUMN_IS_ACTIVE + " = 1" +
+                    " ORDER BY " + COLUMN_FIRST_DOSE_MINUTE + " ASC";
+    static final String QUERY_HAS_MEDICATION_IN_BOX =
+            "SELECT COUNT(*) FROM " + TABLE_MEDICATIONS +
+                    " WHERE " + COLUMN_BOX_NUMBER + " = ? AND " + COLUMN_IS_ACTIVE + " = 1";
+    static final String QUERY_MEDICATION_BY_ID =
+            "SELECT * FROM " + TABLE_MEDICATIONS + " WHERE " + COLUMN_ID + " = ?";
+
+    static String medicationLogsQuery(boolean filtered) {
+        return SELECT_LOGS +
+                (filtered ? " WHERE status = ?" : "") +
+                " ORDER BY timestamp DESC, id DESC";
+    }
+
+    // "timestamp <= ?" is the index range; the OR only breaks ties on id
+    static String medicationLogsPageQuery(boolean filtered) {
+        return SELECT_LOGS + " WHERE " +
+                (filtered ? "status = ? AND " : "") +
+                "timestamp <= ? AND (timestamp < ? OR id < ?)" +
+                " ORDER BY timestamp DESC, id DESC LIMIT ?";
+    }
+
+    // [from, to) by timestamp, for the history screen's date range
+    static String medicationLogsBetweenQuery(boolean filtered) {
+        return SELECT_LOGS + " WHERE " +
+                (filtered ? "status = ? AND " : "") +
+                "timestamp >= ? AND timestamp < ? ORDER BY timestamp DESC, id DESC";
+    }
+
+    // Hot write paths, compiled once per connection through statementCache
+    static final String INSERT_MEDICATION =
+            "INSERT INTO " + TABLE_MEDICATIONS + " (" +
+                    COLUMN_BOX_NUMBER + ", " + COLUMN_BOX_NAME + ", " + COLUMN_MEDICINE_NAME + ", " +
+                    COLUMN_FREQUENCY + ", " + COLUMN_DAYS + ", " + COLUMN_TIMES + ", " +
+                    COLUMN_NOTIFICATION_TIME + ", " + COLUMN_INSTRUCTIONS + ", " + COLUMN_IS_ACTIVE + ", " +
+                    COLUMN_WEEKDAY_MASK + ", " + COLUMN_INTERVAL_DAYS + ", " + COLUMN_START_DAY + ", " + COLUMN_END_DAY +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    static final String UPDATE_MEDICATION =
+            "UPDATE " + TABLE_MEDICATIONS + " SET " +
+                    COLUMN_BOX_NUMBER + " = ?, " + COLUMN_BOX_NAME + " = ?, " + COLUMN_MEDICINE_NAME + " = ?, " +
+                    COLUMN_FREQUENCY + " = ?, " + COLUMN_DAYS + " = ?, " + COLUMN_TIMES + " = ?, " +
+                    COLUMN_NOTIFICATION_TIME + " = ?, " + COLUMN_INSTRUCTIONS + " = ?, " + COLUMN_IS_ACTIVE + " = ?, " +
+                    COLUMN_WEEKDAY_MASK + " = ?, " + COLUMN_INTERVAL_DAYS + " = ?, " + COLUMN_START_DAY + " = ?, " +
+                    COLUMN_END_DAY + " = ?" +
+                    " WHERE " + COLUMN_ID + " = ?";
+    static final String UPDATE_BOX_NAME =
+            "UPDATE " + TABLE_MEDICATIONS + " SET " + COLUMN_BOX_NAME + " = ?" +
+                    " WHERE " + COLUMN_BOX_NUMBER + " = ?";
+    static final String INSERT_MEDICATION_LOG =
+            "INSERT INTO medication_logs (name_id, box_number, status, timestamp)" +
+                    " VALUES (?, ?, ?, ?)";
+    // Dose log upsert: update the dose's row, else insert it. A Snoozed never
+    // replaces a Taken or Missed, so a late or replayed snooze cannot undo an
+    // answer; the insert then hits the unique index and is ignored.
+    static final String UPDATE_DOSE_LOG =
+            "UPDATE medication_logs SET name_id = ?, box_number = ?, status = ?, timestamp = ?" +
+                    " WHERE medication_id = ? AND scheduled_at = ?" +
+                    " AND (?3 IS NOT " + LogStatus.SNOOZED + " OR status IS NULL OR status = " + LogStatus.SNOOZED + ")";
+    static final String INSERT_DOSE_LOG =
+            "INSERT OR IGNORE INTO medication_logs (name_id, box_number, status, timestamp, medication_id, scheduled_at)" +
+                    " VALUES (?, ?, ?, ?, ?, ?)";
+    static final String QUERY_DOSE_LOG_ID =
+            "SELECT id FROM medication_logs WHERE medication_id = ? AND scheduled_at = ?";
+    // Import duplicate check; the status/timestamp index narrows it to a row or two
+    static final String QUERY_LOG_EXISTS =
+            "SELECT COUNT(*) FROM medication_logs JOIN " + LogNames.TABLE + " USING (name_id)" +
+                    " WHERE timestamp = ? AND medicine_name IS ? AND box_number IS ? AND status IS ?";
+
+    // Next page of the oldest-first export after (timestamp, id), rows up to
+    // a pinned max id; idx_logs_timestamp gives the order
+    static final String QUERY_LOGS_OLDEST_FIRST_PAGE = SELECT_LOGS +
+            " WHERE timestamp >= ? AND (timestamp > ? OR id > ?) AND id <= ? ORDER BY timestamp, id LIMIT ?";
+
+    // Each page is one short read on a WAL reader connection
+    private static final int SNAPSHOT_PAGE_SIZE = 2000;
+
+    private final StatementCache statementCache = new StatementCache();
+    private final QueryStats queryStats = new QueryStats();
+    private final LogArchive logArchive;
+
+    // Set when onCreate built this database from scratch in this process
+    private volatile boolean createdInThisProcess;
+
+    // Only MedBoxApplication creates the helper; everyone else shares its connection
+    DatabaseHelper(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    // A null name gives an in-memory database (used by tests)
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        // In-memory databases get a throwaway archive that dies with the process
+        logArchive = new LogArchive(name != null
+                ? new File(context.getFilesDir(), "log-archive-" + name)
+                : new File(context.getCacheDir(), "log-archive-" + System.identityHashCode(this)));
+        // WAL lets the Tracker read while the reminder path is writing
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Only takes effect on a new, empty file; LogRetention converts older
+        // databases. Lets retention hand pages back without a full VACUUM.
+        if (db.getVersion() == 0) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_MEDICATIONS_TABLE);
         db.execSQL(CREATE_MEDICATION_LOGS_TABLE); // NEW: Create logs table
+        db.execSQL(LogNames.CREATE_TABLE);
+        db.execSQL(SchemaMigrations.CREATE_BACKFILLS_TABLE);
+        AdherenceRollup.create(db);
+        db.execSQL(LogArchive.CREATE_STATE_TABLE);
+        DoseSchedule.create(db);
+        SearchIndex.create(db);
+        createIndexes(db);
 
         // Insert sample data for testing
         insertSampleData(db);
+        createdInThisProcess = true;
+    }
+
+    // True if the database file did not exist before this process opened it,
+    // e.g. on first launch or after a cloud restore that left the database out
+    boolean isNewDatabase() {
+        getWritableDatabase();
+        return createdInThisProcess;
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MEDICATIONS);
-        db.execSQL("DROP TABLE IF EXISTS medication_logs"); // NEW: Drop logs table on upgrade
-        onCreate(db);
+        // Step through every version in order; row backfills run later, see SchemaMigrations
+        SchemaMigrations.upgrade(db, oldVersion, newVersion);
+        createIndexes(db);
+    }
+
+    @Override
+    public synchronized void close() {
+        statementCache.clear();
+        super.close();
+    }
+
+    // Latency of every operation below since the process started
+    QueryStats getQueryStats() {
+        return queryStats;
+    }
+
+    static void createIndexes(SQLiteDatabase db) {
+        for (String sql : CREATE_INDEXES) {
+            db.execSQL(sql);
+        }
     }
 
     private void insertSampleData(SQLiteDatabase db) {
@@ -83,7 +286,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values1.put(COLUMN_NOTIFICATION_TIME, "7:00 am");
         values1.put(COLUMN_INSTRUCTIONS, "Take with breakfast");
         values1.put(COLUMN_IS_ACTIVE, 1);
-        db.insert(TABLE_MEDICATIONS, null, values1);
+        insertSampleMedication(db, values1);
 
         ContentValues values2 = new ContentValues();
         values2.put(COLUMN_BOX_NUMBER, 2);
@@ -93,7 +296,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values2.put(COLUMN_NOTIFICATION_TIME, "8:00 am");
         values2.put(COLUMN_INSTRUCTIONS, "Take after meals");
         values2.put(COLUMN_IS_ACTIVE, 1);
-        db.insert(TABLE_MEDICATIONS, null, values2);
+        insertSampleMedication(db, values2);
 
         ContentValues values3 = new ContentValues();
         values3.put(COLUMN_BOX_NUMBER, 3);
@@ -103,311 +306,747 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values3.put(COLUMN_NOTIFICATION_TIME, "9:00 pm");
         values3.put(COLUMN_INSTRUCTIONS, "Before bedtime");
         values3.put(COLUMN_IS_ACTIVE, 1);
-        db.insert(TABLE_MEDICATIONS, null, values3);
+        insertSampleMedication(db, values3);
 
         // NEW: Insert sample medication logs
         insertSampleLogs(db);
     }
 
+    private void insertSampleMedication(SQLiteDatabase db, ContentValues values) {
+        long id = db.insert(TABLE_MEDICATIONS, null, values);
+        int minute = DoseSchedule.parse(values.getAsString(COLUMN_NOTIFICATION_TIME));
+        DoseSchedule.write(db, id, Collections.singletonList(minute));
+    }
+
     // NEW: Insert sample logs for testing
     private void insertSampleLogs(SQLiteDatabase db) {
         long currentTime = System.currentTimeMillis();
         long oneDay = 24 * 60 * 60 * 1000;
+        LogNames names = LogNames.compile(db);
 
         // Today's logs
         ContentValues log1 = new ContentValues();
-        log1.put("medicine_name", "Drug2");
-        log1.put("dosage", "500mg");
+        log1.put("name_id", names.idFor("Drug2", "500mg"));
         log1.put("box_number", 1);
-        log1.put("status", "Taken");
+        log1.put("status", LogStatus.TAKEN);
         log1.put("timestamp", currentTime - (2 * 60 * 60 * 1000)); // 2 hours ago
         db.insert("medication_logs", null, log1);
 
         ContentValues log2 = new ContentValues();
-        log2.put("medicine_name", "Drug4");
-        log2.put("dosage", "200mg");
+        log2.put("name_id", names.idFor("Drug4", "200mg"));
         log2.put("box_number", 2);
-        log2.put("status", "Taken");
+        log2.put("status", LogStatus.TAKEN);
         log2.put("timestamp", currentTime - (1 * 60 * 60 * 1000)); // 1 hour ago
         db.insert("medication_logs", null, log2);
 
         // Yesterday's logs
         ContentValues log3 = new ContentValues();
-        log3.put("medicine_name", "Paracetamol");
-        log3.put("dosage", "500mg");
+        log3.put("name_id", names.idFor("Paracetamol", "500mg"));
         log3.put("box_number", 1);
-        log3.put("status", "Taken");
+        log3.put("status", LogStatus.TAKEN);
         log3.put("timestamp", currentTime - oneDay);
         db.insert("medication_logs", null, log3);
 
         // 2 days ago
         ContentValues log4 = new ContentValues();
-        log4.put("medicine_name", "Paracetamol");
-        log4.put("dosage", "500mg");
+        log4.put("name_id", names.idFor("Paracetamol", "500mg"));
         log4.put("box_number", 1);
-        log4.put("status", "Taken");
+        log4.put("status", LogStatus.TAKEN);
         log4.put("timestamp", currentTime - (2 * oneDay));
         db.insert("medication_logs", null, log4);
 
         // Add a missed medication
         ContentValues log5 = new ContentValues();
-        log5.put("medicine_name", "Aspirin");
-        log5.put("dosage", "100mg");
+        log5.put("name_id", names.idFor("Aspirin", "100mg"));
         log5.put("box_number", 2);
-        log5.put("status", "Missed");
+        log5.put("status", LogStatus.MISSED);
         log5.put("timestamp", currentTime - (3 * oneDay));
         db.insert("medication_logs", null, log5);
+        names.close();
     }
 
     // Add new medication
     public long addMedication(Medication medication) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_BOX_NUMBER, medication.getBoxNumber());
-        values.put(COLUMN_BOX_NAME, medication.getBoxName());
-        values.put(COLUMN_MEDICINE_NAME, medication.getMedicineName());
-        values.put(COLUMN_FREQUENCY, medication.getFrequency());
-        values.put(COLUMN_DAYS, medication.getDays());
-        values.put(COLUMN_TIMES, medication.getTimes());
-        values.put(COLUMN_NOTIFICATION_TIME, medication.getNotificationTime());
-        values.put(COLUMN_INSTRUCTIONS, medication.getInstructions());
-        values.put(COLUMN_IS_ACTIVE, medication.isActive() ? 1 : 0);
+        try (QueryStats.Timer timer = queryStats.time("addMedication", INSERT_MEDICATION)) {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement statement = statementCache.get(db, INSERT_MEDICATION);
+            synchronized (statement) {
+                db.beginTransactionNonExclusive();
+                try {
+                    bindMedication(statement, medication);
+                    long id = statement.executeInsert();
+                    DoseSchedule.write(db, id, doseMinutesOf(medication));
+                    db.setTransactionSuccessful();
+                    timer.rows(1);
+                    return id;
+                } catch (SQLException e) {
+                    Log.e(TAG, "Error inserting medication", e);
+                    return -1;
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+    }
 
-        long id = db.insert(TABLE_MEDICATIONS, null, values);
-        db.close();
-        return id;
+    // Callers that only set the display time get a one-dose schedule from it
+    private static List<Integer> doseMinutesOf(Medication medication) {
+        if (medication.getDoseMinutes() != null) {
+            return medication.getDoseMinutes();
+        }
+        int minute = DoseSchedule.parse(medication.getNotificationTime());
+        return minute >= 0 ? Collections.singletonList(minute) : Collections.<Integer>emptyList();
+    }
+
+    // Binds the thirteen medication columns in INSERT_MEDICATION / UPDATE_MEDICATION order
+    private void bindMedication(SQLiteStatement statement, Medication medication) {
+        statement.bindLong(1, medication.getBoxNumber());
+        StatementCache.bindText(statement, 2, medication.getBoxName());
+        StatementCache.bindText(statement, 3, medication.getMedicineName());
+        StatementCache.bindText(statement, 4, medication.getFrequency());
+        StatementCache.bindText(statement, 5, medication.getDays());
+        StatementCache.bindText(statement, 6, medication.getTimes());
+        StatementCache.bindText(statement, 7, medication.getNotificationTime());
+        StatementCache.bindText(statement, 8, medication.getInstructions());
+        statement.bindLong(9, medication.isActive() ? 1 : 0);
+        statement.bindLong(10, medication.getWeekdayMask());
+        statement.bindLong(11, medication.getIntervalDays());
+        bindDay(statement, 12, medication.getStartDay());
+        bindDay(statement, 13, medication.getEndDay());
+    }
+
+    private static void bindDay(SQLiteStatement statement, int index, int yyyymmdd) {
+        if (yyyymmdd > 0) {
+            statement.bindLong(index, yyyymmdd);
+        } else {
+            statement.bindNull(index);
+        }
     }
 
     // Get all medications
     public List<Medication> getAllMedications() {
-        List<Medication> medications = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
-
-        Cursor cursor = db.query(TABLE_MEDICATIONS,
-                null,
-                null,
-                null,
-                null,
-                null,
-                COLUMN_NOTIFICATION_TIME + " ASC");
-
-        if (cursor.moveToFirst()) {
-            do {
-                Medication medication = new Medication();
-                medication.setId(cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_ID)));
-                medication.setBoxNumber(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_BOX_NUMBER)));
-                medication.setBoxName(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_BOX_NAME)));
-                medication.setMedicineName(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MEDICINE_NAME)));
-                medication.setFrequency(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FREQUENCY)));
-                medication.setDays(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DAYS)));
-                medication.setTimes(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_TIMES)));
-                medication.setNotificationTime(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_NOTIFICATION_TIME)));
-                medication.setInstructions(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_INSTRUCTIONS)));
-                medication.setActive(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_IS_ACTIVE)) == 1);
-
-                medications.add(medication);
-            } while (cursor.moveToNext());
-        }
+        try (QueryStats.Timer timer = queryStats.time("getAllMedications", QUERY_ALL_MEDICATIONS)) {
+            List<Medication> medications = new ArrayList<>();
+            SQLiteDatabase db = this.getReadableDatabase();
 
-        cursor.close();
-        db.close();
-        return medications;
+            Cursor cursor = db.rawQuery(QUERY_ALL_MEDICATIONS, null);
+
+            new MedicationMapper(cursor).mapAll(cursor, medications);
+
+            cursor.close();
+            DoseSchedule.attach(db, medications);
+            timer.rows(medications.size());
+            return medications;
+        }
     }
 
     // Get medications for a specific box
     public List<Medication> getMedicationsForBox(int boxNumber) {
-        List<Medication> medications = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
-
-        String selection = COLUMN_BOX_NUMBER + " = ? AND " + COLUMN_IS_ACTIVE + " = 1";
-        String[] selectionArgs = {String.valueOf(boxNumber)};
-
-        Cursor cursor = db.query(TABLE_MEDICATIONS,
-                null,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                COLUMN_NOTIFICATION_TIME + " ASC");
-
-        if (cursor.moveToFirst()) {
-            do {
-                Medication medication = new Medication();
-                medication.setId(cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_ID)));
-                medication.setBoxNumber(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_BOX_NUMBER)));
-                medication.setBoxName(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_BOX_NAME)));
-                medication.setMedicineName(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MEDICINE_NAME)));
-                medication.setFrequency(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FREQUENCY)));
-                medication.setDays(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DAYS)));
-                medication.setTimes(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_TIMES)));
-                medication.setNotificationTime(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_NOTIFICATION_TIME)));
-                medication.setInstructions(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_INSTRUCTIONS)));
-                medication.setActive(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_IS_ACTIVE)) == 1);
-
-                medications.add(medication);
-            } while (cursor.moveToNext());
+        try (QueryStats.Timer timer = queryStats.time("getMedicationsForBox", QUERY_MEDICATIONS_FOR_BOX)) {
+            List<Medication> medications = new ArrayList<>();
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            String[] selectionArgs = {String.valueOf(boxNumber)};
+
+            Cursor cursor = db.rawQuery(QUERY_MEDICATIONS_FOR_BOX, selectionArgs);
+
+            new MedicationMapper(cursor).mapAll(cursor, medications);
+
+            cursor.close();
+            DoseSchedule.attach(db, medications);
+            timer.rows(medications.size());
+            return medications;
         }
+    }
 
+    // Medications whose name or instructions contain words starting with the
+    // typed words, best match first
+    public List<Medication> searchMedications(String text, int limit) {
+        try (QueryStats.Timer timer = queryStats.time("searchMedications", SearchIndex.QUERY_MEDICATIONS)) {
+            SQLiteDatabase db = this.getReadableDatabase();
+            List<Medication> medications = SearchIndex.searchMedications(db, text, limit);
+            DoseSchedule.attach(db, medications);
+            timer.rows(medications.size());
+            return medications;
+        }
+    }
+
+    // Up to limit logs whose medicine name matches the typed words, newest
+    // first. Only searches rows still in SQLite, not the log archive.
+    public List<MedicationLog> searchMedicationLogs(String text, String filter, int limit) {
+        try (QueryStats.Timer timer = queryStats.time("searchMedicationLogs",
+                SearchIndex.logsQuery(!filter.equals("All")))) {
+            List<MedicationLog> logs = SearchIndex.searchLogs(getReadableDatabase(), text, filter, limit);
+            timer.rows(logs.size());
+            return logs;
+        }
+    }
+
+    // Active doses due at minutes of day in [fromMinute, toMinute), earliest
+    // first. A window that crosses midnight (toMinute < fromMinute) wraps.
+    public List<ScheduledDose> getDosesDueBetween(int fromMinute, int toMinute) {
+        try (QueryStats.Timer timer = queryStats.time("getDosesDueBetween", DoseSchedule.QUERY_DUE_BETWEEN)) {
+            List<ScheduledDose> doses = new ArrayList<>();
+            SQLiteDatabase db = this.getReadableDatabase();
+            if (toMinute >= fromMinute) {
+                queryDoses(db, fromMinute, toMinute, doses);
+            } else {
+                queryDoses(db, fromMinute, DoseSchedule.MINUTES_PER_DAY, doses);
+                queryDoses(db, 0, toMinute, doses);
+            }
+            timer.rows(doses.size());
+            return doses;
+        }
+    }
+
+    private static void queryDoses(SQLiteDatabase db, int fromMinute, int toMinute, List<ScheduledDose> into) {
+        Cursor cursor = db.rawQuery(DoseSchedule.QUERY_DUE_BETWEEN,
+                new String[]{String.valueOf(fromMinute), String.valueOf(toMinute)});
+        MedicationMapper mapper = new MedicationMapper(cursor);
+        int minuteIndex = cursor.getColumnIndexOrThrow("dose_minute");
+        while (cursor.moveToNext()) {
+            into.add(new ScheduledDose(mapper.map(cursor), cursor.getInt(minuteIndex)));
+        }
         cursor.close();
-        db.close();
-        return medications;
     }
 
     // Update box name
     public int updateBoxName(int boxNumber, String newBoxName) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_BOX_NAME, newBoxName);
-
-        String whereClause = COLUMN_BOX_NUMBER + " = ?";
-        String[] whereArgs = {String.valueOf(boxNumber)};
-
-        int rowsAffected = db.update(TABLE_MEDICATIONS, values, whereClause, whereArgs);
-        db.close();
-        return rowsAffected;
+        try (QueryStats.Timer timer = queryStats.time("updateBoxName", UPDATE_BOX_NAME)) {
+            SQLiteStatement statement = statementCache.get(getWritableDatabase(), UPDATE_BOX_NAME);
+            synchronized (statement) {
+                StatementCache.bindText(statement, 1, newBoxName);
+                statement.bindLong(2, boxNumber);
+                int updated = statement.executeUpdateDelete();
+                timer.rows(updated);
+                return updated;
+            }
+        }
     }
 
     // Delete medication
     public void deleteMedication(long id) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        db.delete(TABLE_MEDICATIONS, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
-        db.close();
+        try (QueryStats.Timer timer = queryStats.time("deleteMedication",
+                "DELETE FROM " + TABLE_MEDICATIONS + " WHERE " + COLUMN_ID + " = ?")) {
+            SQLiteDatabase db = this.getWritableDatabase();
+            timer.rows(db.delete(TABLE_MEDICATIONS, COLUMN_ID + " = ?", new String[]{String.valueOf(id)}));
+        }
     }
 
     // Check if box has medication
     public boolean hasMedicationInBox(int boxNumber) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        String query = "SELECT COUNT(*) FROM " + TABLE_MEDICATIONS +
-                " WHERE " + COLUMN_BOX_NUMBER + " = ? AND " + COLUMN_IS_ACTIVE + " = 1";
-        Cursor cursor = db.rawQuery(query, new String[]{String.valueOf(boxNumber)});
+        try (QueryStats.Timer timer = queryStats.time("hasMedicationInBox", QUERY_HAS_MEDICATION_IN_BOX)) {
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor cursor = db.rawQuery(QUERY_HAS_MEDICATION_IN_BOX, new String[]{String.valueOf(boxNumber)});
 
-        boolean hasMedication = false;
-        if (cursor.moveToFirst()) {
-            hasMedication = cursor.getInt(0) > 0;
-        }
+            boolean hasMedication = false;
+            if (cursor.moveToFirst()) {
+                hasMedication = cursor.getInt(0) > 0;
+            }
 
-        cursor.close();
-        db.close();
-        return hasMedication;
+            cursor.close();
+            timer.rows(1);
+            return hasMedication;
+        }
     }
 
     // Get medication by ID
     public Medication getMedicationById(long id) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        String selection = COLUMN_ID + " = ?";
-        String[] selectionArgs = {String.valueOf(id)};
-
-        Cursor cursor = db.query(TABLE_MEDICATIONS,
-                null,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                null);
-
-        Medication medication = null;
-        if (cursor.moveToFirst()) {
-            medication = new Medication();
-            medication.setId(cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_ID)));
-            medication.setBoxNumber(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_BOX_NUMBER)));
-            medication.setBoxName(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_BOX_NAME)));
-            medication.setMedicineName(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MEDICINE_NAME)));
-            medication.setFrequency(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FREQUENCY)));
-            medication.setDays(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DAYS)));
-            medication.setTimes(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_TIMES)));
-            medication.setNotificationTime(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_NOTIFICATION_TIME)));
-            medication.setInstructions(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_INSTRUCTIONS)));
-            medication.setActive(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_IS_ACTIVE)) == 1);
-        }
+        try (QueryStats.Timer timer = queryStats.time("getMedicationById", QUERY_MEDICATION_BY_ID)) {
+            SQLiteDatabase db = this.getReadableDatabase();
+            String[] selectionArgs = {String.valueOf(id)};
 
-        cursor.close();
-        db.close();
-        return medication;
+            Cursor cursor = db.rawQuery(QUERY_MEDICATION_BY_ID, selectionArgs);
+
+            Medication medication = null;
+            if (cursor.moveToFirst()) {
+                medication = new MedicationMapper(cursor).map(cursor);
+            }
+
+            cursor.close();
+            if (medication != null) {
+                DoseSchedule.attach(db, Collections.singletonList(medication));
+            }
+            timer.rows(medication != null ? 1 : 0);
+            return medication;
+        }
     }
 
     // Update medication
     public int updateMedication(Medication medication) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_BOX_NUMBER, medication.getBoxNumber());
-        values.put(COLUMN_BOX_NAME, medication.getBoxName());
-        values.put(COLUMN_MEDICINE_NAME, medication.getMedicineName());
-        values.put(COLUMN_FREQUENCY, medication.getFrequency());
-        values.put(COLUMN_DAYS, medication.getDays());
-        values.put(COLUMN_TIMES, medication.getTimes());
-        values.put(COLUMN_NOTIFICATION_TIME, medication.getNotificationTime());
-        values.put(COLUMN_INSTRUCTIONS, medication.getInstructions());
-        values.put(COLUMN_IS_ACTIVE, medication.isActive() ? 1 : 0);
-
-        String whereClause = COLUMN_ID + " = ?";
-        String[] whereArgs = {String.valueOf(medication.getId())};
-
-        int rowsAffected = db.update(TABLE_MEDICATIONS, values, whereClause, whereArgs);
-        db.close();
-        return rowsAffected;
+        try (QueryStats.Timer timer = queryStats.time("updateMedication", UPDATE_MEDICATION)) {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement statement = statementCache.get(db, UPDATE_MEDICATION);
+            synchronized (statement) {
+                db.beginTransactionNonExclusive();
+                try {
+                    bindMedication(statement, medication);
+                    statement.bindLong(14, medication.getId());
+                    int updated = statement.executeUpdateDelete();
+                    if (updated > 0) {
+                        DoseSchedule.write(db, medication.getId(), doseMinutesOf(medication));
+                    }
+                    db.setTransactionSuccessful();
+                    timer.rows(updated);
+                    return updated;
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
     }
 
     // NEW: Get medication logs with optional filter
     public List<MedicationLog> getMedicationLogs(String filter) {
-        List<MedicationLog> logs = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
+        boolean filtered = !filter.equals("All");
+        try (QueryStats.Timer timer = queryStats.time("getMedicationLogs", medicationLogsQuery(filtered))) {
+            List<MedicationLog> logs = new ArrayList<>();
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            Cursor cursor;
+            if (filtered) {
+                cursor = db.rawQuery(medicationLogsQuery(true), new String[]{LogStatus.arg(filter)});
+            } else {
+                cursor = db.rawQuery(medicationLogsQuery(false), null);
+            }
+
+            new MedicationLogMapper(cursor).mapAll(cursor, logs);
+
+            cursor.close();
+            timer.rows(logs.size());
+            return logs;
+        }
+    }
+
+    // Get one page of medication logs, newest first, strictly older than the
+    // (beforeTimestamp, beforeId) key of the last row the caller already has.
+    // Pass Long.MAX_VALUE for both to get the first page.
+    public List<MedicationLog> getMedicationLogsPage(String filter, long beforeTimestamp,
+                                                     long beforeId, int limit) {
+        boolean filtered = !filter.equals("All");
+        String sql = medicationLogsPageQuery(filtered);
+        try (QueryStats.Timer timer = queryStats.time("getMedicationLogsPage", sql)) {
+            List<MedicationLog> logs = new ArrayList<>(limit);
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            List<String> args = new ArrayList<>();
+            if (filtered) {
+                args.add(LogStatus.arg(filter));
+            }
+            args.add(String.valueOf(beforeTimestamp));
+            args.add(String.valueOf(beforeTimestamp));
+            args.add(String.valueOf(beforeId));
+            args.add(String.valueOf(limit));
+
+            Cursor cursor = db.rawQuery(sql, args.toArray(new String[0]));
 
-        String query = "SELECT * FROM medication_logs";
-        if (!filter.equals("All")) {
-            query += " WHERE status = ?";
+            new MedicationLogMapper(cursor).mapAll(cursor, logs);
+
+            cursor.close();
+
+            // Archived rows are all older than archivedBefore, so the segments only
+            // matter once the hot table runs out for this page
+            long archivedBefore = LogArchive.archivedBefore(db);
+            if (archivedBefore > 0 && logs.size() < limit) {
+                MedicationLog last = logs.isEmpty() ? null : logs.get(logs.size() - 1);
+                try {
+                    logs.addAll(logArchive.readPage(filter,
+                            last != null ? last.getTimestamp().getTime() : beforeTimestamp,
+                            last != null ? last.getId() : beforeId,
+                            limit - logs.size()));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading log archive", e);
+                }
+            }
+            timer.rows(logs.size());
+            return logs;
         }
-        query += " ORDER BY timestamp DESC";
+    }
 
-        Cursor cursor;
-        if (!filter.equals("All")) {
-            cursor = db.rawQuery(query, new String[]{filter});
-        } else {
-            cursor = db.rawQuery(query, null);
+    // Logs with fromMillis <= timestamp < toMillis, newest first. Ranges that
+    // reach past the archive watermark are merged with the archived segments.
+    public List<MedicationLog> getMedicationLogs(String filter, long fromMillis, long toMillis) {
+        boolean filtered = !filter.equals("All");
+        String sql = medicationLogsBetweenQuery(filtered);
+        try (QueryStats.Timer timer = queryStats.time("getMedicationLogsBetween", sql)) {
+            List<MedicationLog> logs = new ArrayList<>();
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            String[] args = filtered
+                    ? new String[]{LogStatus.arg(filter), String.valueOf(fromMillis), String.valueOf(toMillis)}
+                    : new String[]{String.valueOf(fromMillis), String.valueOf(toMillis)};
+            Cursor cursor = db.rawQuery(sql, args);
+            new MedicationLogMapper(cursor).mapAll(cursor, logs);
+            cursor.close();
+
+            if (fromMillis < LogArchive.archivedBefore(db)) {
+                try {
+                    logs.addAll(logArchive.read(filter, fromMillis, toMillis));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading log archive", e);
+                }
+                // A crash between segment sync and commit can leave a row in both places
+                Collections.sort(logs, LogArchive.NEWEST_FIRST);
+                for (int i = logs.size() - 1; i > 0; i--) {
+                    if (logs.get(i).getId() == logs.get(i - 1).getId()) {
+                        logs.remove(i);
+                    }
+                }
+            }
+            timer.rows(logs.size());
+            return logs;
         }
+    }
 
-        if (cursor.moveToFirst()) {
-            do {
-                MedicationLog log = new MedicationLog();
-                log.setId(cursor.getLong(cursor.getColumnIndexOrThrow("id")));
-                log.setMedicineName(cursor.getString(cursor.getColumnIndexOrThrow("medicine_name")));
-                log.setDosage(cursor.getString(cursor.getColumnIndexOrThrow("dosage")));
-                log.setBoxNumber(cursor.getInt(cursor.getColumnIndexOrThrow("box_number")));
-                log.setStatus(cursor.getString(cursor.getColumnIndexOrThrow("status")));
-                log.setTimestamp(new Date(cursor.getLong(cursor.getColumnIndexOrThrow("timestamp"))));
-                logs.add(log);
-            } while (cursor.moveToNext());
+    // Move logs older than the given number of days (counted from local
+    // midnight) out of SQLite into the compressed monthly archive
+    public int archiveLogsOlderThan(int days) {
+        Calendar cutoff = Calendar.getInstance();
+        cutoff.set(Calendar.HOUR_OF_DAY, 0);
+        cutoff.set(Calendar.MINUTE, 0);
+        cutoff.set(Calendar.SECOND, 0);
+        cutoff.set(Calendar.MILLISECOND, 0);
+        cutoff.add(Calendar.DAY_OF_MONTH, -days);
+        try (QueryStats.Timer timer = queryStats.time("archiveLogsOlderThan", "archive medication_logs")) {
+            int archived = logArchive.archive(getWritableDatabase(), cutoff.getTimeInMillis());
+            timer.rows(archived);
+            return archived;
+        } catch (IOException e) {
+            Log.e(TAG, "Error archiving medication logs", e);
+            return 0;
         }
+    }
 
-        cursor.close();
-        db.close();
-        return logs;
+    // Delete logs the policy no longer keeps and shrink the file; see LogRetention
+    public LogRetention.Report applyRetention(RetentionPolicy policy) throws IOException {
+        try (QueryStats.Timer timer = queryStats.time("applyRetention", "DELETE FROM medication_logs")) {
+            LogRetention.Report report =
+                    LogRetention.run(getWritableDatabase(), logArchive, policy, System.currentTimeMillis());
+            timer.rows(report.rowsDeleted + report.archivedRowsDeleted);
+            return report;
+        }
+    }
+
+    // Visit every log matching the filter, newest first, refilling one
+    // MedicationLog per row instead of building a list. The visitor must copy
+    // anything it keeps past its own call.
+    public void forEachMedicationLog(String filter, Consumer<MedicationLog> visitor) {
+        boolean filtered = !filter.equals("All");
+        try (QueryStats.Timer timer = queryStats.time("forEachMedicationLog", medicationLogsQuery(filtered))) {
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            Cursor cursor;
+            if (filtered) {
+                cursor = db.rawQuery(medicationLogsQuery(true), new String[]{LogStatus.arg(filter)});
+            } else {
+                cursor = db.rawQuery(medicationLogsQuery(false), null);
+            }
+
+            try {
+                new MedicationLogMapper(cursor).forEach(cursor, new MedicationLog(), visitor);
+                timer.rows(cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    // Visit every log, archived ones included, oldest first. Like
+    // forEachMedicationLog the instance passed to the visitor may be reused.
+    // Hot rows are read in keyset pages of SNAPSHOT_PAGE_SIZE up to the max id
+    // at the start, under the archive's lock, as forEachMedicationLogForSnapshot
+    // does: no row is moved between the two halves or skipped by a concurrent
+    // delete, and a page never re-steps the rows before it.
+    public void forEachMedicationLogOldestFirst(Consumer<MedicationLog> visitor) throws IOException {
+        try (QueryStats.Timer timer = queryStats.time("forEachMedicationLogOldestFirst",
+                QUERY_LOGS_OLDEST_FIRST_PAGE)) {
+            finishPendingBackfills();
+            SQLiteDatabase db = this.getReadableDatabase();
+            synchronized (logArchive) {
+                long maxId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(id), 0) FROM medication_logs", null);
+                logArchive.forEachOldestFirst(visitor);
+
+                MedicationLog reuse = new MedicationLog();
+                long afterTimestamp = Long.MIN_VALUE;
+                long afterId = -1;
+                long rows = 0;
+                while (true) {
+                    Cursor cursor = db.rawQuery(QUERY_LOGS_OLDEST_FIRST_PAGE, new String[]{
+                            String.valueOf(afterTimestamp), String.valueOf(afterTimestamp),
+                            String.valueOf(afterId), String.valueOf(maxId), String.valueOf(SNAPSHOT_PAGE_SIZE)});
+                    int count;
+                    try {
+                        count = cursor.getCount();
+                        if (count == 0) break;
+                        new MedicationLogMapper(cursor).forEach(cursor, reuse, visitor);
+                    } finally {
+                        cursor.close();
+                    }
+                    rows += count;
+                    afterTimestamp = reuse.getTimestamp().getTime();
+                    afterId = reuse.getId();
+                    if (count < SNAPSHOT_PAGE_SIZE) break;
+                }
+                timer.rows(rows);
+            }
+        }
+    }
+
+    // Every log as of the moment of the call: archived months oldest first,
+    // then hot rows in id order, in pages of SNAPSHOT_PAGE_SIZE. Rows inserted
+    // after the walk starts (higher ids) are left out. No transaction is held,
+    // so writers are never blocked; holding the archive's lock keeps archive()
+    // from moving rows between the two halves mid-walk.
+    void forEachMedicationLogForSnapshot(Consumer<MedicationLog> visitor) throws IOException {
+        try (QueryStats.Timer timer = queryStats.time("forEachMedicationLogForSnapshot",
+                SELECT_LOGS + " WHERE id > ?")) {
+            finishPendingBackfills();
+            SQLiteDatabase db = this.getReadableDatabase();
+            synchronized (logArchive) {
+                long maxId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(id), 0) FROM medication_logs", null);
+                logArchive.forEachOldestFirst(visitor);
+
+                MedicationLog reuse = new MedicationLog();
+                long afterId = 0;
+                long rows = 0;
+                while (afterId < maxId) {
+                    Cursor cursor = db.rawQuery(SELECT_LOGS + " WHERE id > ? AND id <= ?" +
+                                    " ORDER BY id LIMIT " + SNAPSHOT_PAGE_SIZE,
+                            new String[]{String.valueOf(afterId), String.valueOf(maxId)});
+                    try {
+                        if (cursor.getCount() == 0) break;
+                        new MedicationLogMapper(cursor).forEach(cursor, reuse, visitor);
+                        rows += cursor.getCount();
+                    } finally {
+                        cursor.close();
+                    }
+                    afterId = reuse.getId();
+                }
+                timer.rows(rows);
+            }
+        }
+    }
+
+    // Until step 7's backfill is done, pre-upgrade logs are only in
+    // SchemaMigrations.LEGACY_LOGS; a backup or export written then would
+    // leave them out, and restoring it would drop them for good. Usually
+    // nothing is pending and this costs next to nothing.
+    private void finishPendingBackfills() {
+        SchemaMigrations.runPendingBackfills(getWritableDatabase());
+    }
+
+    // Drop the archived segments and watermark; the caller owns the
+    // transaction and must have taken logArchiveLock() before opening it
+    void clearLogArchive(SQLiteDatabase db) {
+        logArchive.clear(db);
+    }
+
+    // Held by archive() while it opens its own transactions, so it must be
+    // taken before a transaction that touches the archive, never inside one
+    Object logArchiveLock() {
+        return logArchive;
+    }
+
+    // Adherence counts per day x medicine x status for days in [fromDay, toDay],
+    // both yyyymmdd (see dayKey). A week or a month is a few dozen rollup rows.
+    public List<AdherenceCount> getAdherence(int fromDay, int toDay) {
+        try (QueryStats.Timer timer = queryStats.time("getAdherence", "SELECT FROM " + AdherenceRollup.TABLE)) {
+            List<AdherenceCount> counts = AdherenceRollup.query(getReadableDatabase(), fromDay, toDay);
+            timer.rows(counts.size());
+            return counts;
+        }
+    }
+
+    public static int dayKey(Calendar calendar) {
+        return AdherenceRollup.dayKey(calendar);
+    }
+
+    // Recompute adherence_daily from medication_logs, e.g. after a timezone change
+    // (archived days are left as they are)
+    public void rebuildAdherenceRollup() {
+        try (QueryStats.Timer timer = queryStats.time("rebuildAdherenceRollup",
+                "INSERT INTO " + AdherenceRollup.TABLE)) {
+            SQLiteDatabase db = getWritableDatabase();
+            AdherenceRollup.rebuild(db, firstHotDay(db));
+        }
+    }
+
+    // Check adherence_daily against a fresh aggregate of medication_logs
+    public boolean verifyAdherenceRollup() {
+        SQLiteDatabase db = getReadableDatabase();
+        return AdherenceRollup.verify(db, firstHotDay(db));
+    }
+
+    // Earliest day whose logs are all still in SQLite
+    static int firstHotDay(SQLiteDatabase db) {
+        long archivedBefore = LogArchive.archivedBefore(db);
+        if (archivedBefore == 0) {
+            return 0;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(archivedBefore);
+        return AdherenceRollup.dayKey(calendar);
     }
 
     // NEW: Clear all medication logs
     public void clearAllMedicationLogs() {
-        SQLiteDatabase db = this.getWritableDatabase();
-        db.delete("medication_logs", null, null);
-        db.close();
+        try (QueryStats.Timer timer = queryStats.time("clearAllMedicationLogs", "DELETE FROM medication_logs")) {
+            SQLiteDatabase db = this.getWritableDatabase();
+            // Archive lock first, then the transaction: the order archive()
+            // takes them in, so the two cannot deadlock
+            synchronized (logArchive) {
+                db.beginTransaction();
+                try {
+                    timer.rows(db.delete("medication_logs", null, null));
+                    SchemaMigrations.dropUnconvertedLogs(db);
+                    db.delete(AdherenceRollup.TABLE, null, null);
+                    db.delete(LogNames.TABLE, null, null);
+                    logArchive.clear(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
     }
 
     // NEW: Log medication taken/missed
     public long logMedication(String medicineName, String dosage, int boxNumber, String status) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put("medicine_name", medicineName);
-        values.put("dosage", dosage);
-        values.put("box_number", boxNumber);
-        values.put("status", status);
-        values.put("timestamp", System.currentTimeMillis());
-
-        long id = db.insert("medication_logs", null, values);
-        db.close();
-        return id;
-    }
-
-    // Close database
-    public void close() {
-        SQLiteDatabase db = this.getWritableDatabase();
-        db.close();
+        try (QueryStats.Timer timer = queryStats.time("logMedication", INSERT_MEDICATION_LOG)) {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement statement = statementCache.get(db, INSERT_MEDICATION_LOG);
+            synchronized (statement) {
+                // The name lookup and the insert must share a transaction, see LogNames
+                db.beginTransactionNonExclusive();
+                try {
+                    bindMedicationLog(statement, logNames(db).idFor(medicineName, dosage), boxNumber, status,
+                            System.currentTimeMillis());
+                    long id = statement.executeInsert();
+                    db.setTransactionSuccessful();
+                    timer.rows(1);
+                    return id;
+                } catch (SQLException e) {
+                    Log.e(TAG, "Error inserting medication log", e);
+                    return -1;
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+    }
+
+    private void bindMedicationLog(SQLiteStatement statement, long nameId, int boxNumber, String status,
+                                   long timestamp) {
+        statement.bindLong(1, nameId);
+        statement.bindLong(2, boxNumber);
+        LogStatus.bind(statement, 3, status);
+        statement.bindLong(4, timestamp);
+    }
+
+    // Name dictionary for one write transaction. Its statements are only ever
+    // used under INSERT_MEDICATION_LOG's lock, like QUERY_LOG_EXISTS.
+    private LogNames logNames(SQLiteDatabase db) {
+        return new LogNames(statementCache.get(db, LogNames.QUERY_ID), statementCache.get(db, LogNames.INSERT));
+    }
+
+    // Insert logs in one transaction, skipping any that match an existing row,
+    // hot or archived, on (timestamp, medicine, box, status). Returns how many
+    // were inserted.
+    public int importMedicationLogs(List<MedicationLog> logs) throws IOException {
+        try (QueryStats.Timer timer = queryStats.time("importMedicationLogs", INSERT_MEDICATION_LOG)) {
+            SQLiteDatabase db = this.getWritableDatabase();
+            SQLiteStatement insert = statementCache.get(db, INSERT_MEDICATION_LOG);
+            // QUERY_LOG_EXISTS is only ever used under the insert statement's lock
+            SQLiteStatement exists = statementCache.get(db, QUERY_LOG_EXISTS);
+            int inserted = 0;
+            // Archive lock first, then the transaction, as archive() takes them:
+            // no row can move into a segment between the two duplicate checks
+            synchronized (logArchive) {
+                long archivedBefore = LogArchive.archivedBefore(db);
+                synchronized (insert) {
+                    db.beginTransactionNonExclusive();
+                    try {
+                        LogNames names = logNames(db);
+                        for (MedicationLog log : logs) {
+                            if (log.getTimestamp().getTime() < archivedBefore && logArchive.contains(log)) {
+                                continue;
+                            }
+                            exists.bindLong(1, log.getTimestamp().getTime());
+                            StatementCache.bindText(exists, 2, log.getMedicineName());
+                            exists.bindLong(3, log.getBoxNumber());
+                            LogStatus.bind(exists, 4, log.getStatus());
+                            if (exists.simpleQueryForLong() > 0) {
+                                continue;
+                            }
+                            bindMedicationLog(insert, names.idFor(log.getMedicineName(), log.getDosage()),
+                                    log.getBoxNumber(), log.getStatus(), log.getTimestamp().getTime());
+                            log.setId(insert.executeInsert());
+                            inserted++;
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            }
+            timer.rows(inserted);
+            return inserted;
+        }
+    }
+
+    // Insert a batch of logs in one transaction and fill in their ids.
+    // Used by MedicationLogWriter so a burst of events costs a single commit.
+    // Logs with a dose key are upserted: every delivery of the same dose,
+    // retries and replays included, ends up in that dose's one row.
+    public void insertMedicationLogs(List<MedicationLog> logs) {
+        try (QueryStats.Timer timer = queryStats.time("insertMedicationLogs", INSERT_MEDICATION_LOG)) {
+            SQLiteDatabase db = this.getWritableDatabase();
+            SQLiteStatement statement = statementCache.get(db, INSERT_MEDICATION_LOG);
+            // Take the statement before the transaction, the same order logMedication uses
+            synchronized (statement) {
+                db.beginTransactionNonExclusive();
+                try {
+                    LogNames names = logNames(db);
+                    for (MedicationLog log : logs) {
+                        long nameId = names.idFor(log.getMedicineName(), log.getDosage());
+                        if (log.hasDoseKey()) {
+                            log.setId(upsertDoseLog(db, log, nameId));
+                            continue;
+                        }
+                        bindMedicationLog(statement, nameId, log.getBoxNumber(), log.getStatus(),
+                                log.getTimestamp().getTime());
+                        log.setId(statement.executeInsert());
+                    }
+                    db.setTransactionSuccessful();
+                    timer.rows(logs.size());
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+    }
+
+    // Only called under INSERT_MEDICATION_LOG's lock and inside its transaction.
+    // No read before the write: the UPDATE and the unique index decide, and the
+    // rollup triggers see exactly one insert or update per call.
+    private long upsertDoseLog(SQLiteDatabase db, MedicationLog log, long nameId) {
+        SQLiteStatement update = statementCache.get(db, UPDATE_DOSE_LOG);
+        bindMedicationLog(update, nameId, log.getBoxNumber(), log.getStatus(), log.getTimestamp().getTime());
+        update.bindLong(5, log.getMedicationId());
+        update.bindLong(6, log.getScheduledAt());
+        if (update.executeUpdateDelete() == 0) {
+            SQLiteStatement insert = statementCache.get(db, INSERT_DOSE_LOG);
+            bindMedicationLog(insert, nameId, log.getBoxNumber(), log.getStatus(), log.getTimestamp().getTime());
+            insert.bindLong(5, log.getMedicationId());
+            insert.bindLong(6, log.getScheduledAt());
+            long id = insert.executeInsert();
+            if (id != -1) {
+                return id;
+            }
+        }
+        SQLiteStatement query = statementCache.get(db, QUERY_DOSE_LOG_ID);
+        query.bindLong(1, log.getMedicationId());
+        query.bindLong(2, log.getScheduledAt());
+        return query.simpleQueryForLong();
     }
 }
\ No newline at end of file
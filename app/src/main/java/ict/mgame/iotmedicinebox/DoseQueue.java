@@ -0,0 +1,163 @@
+package ict.mgame.iotmedicinebox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+
+// Upcoming dose occurrences of every active medication, earliest first.
+//
+// There is one entry per (medication, dose time). When a dose has rung, its
+// entry is replaced by the same dose on the next day its Recurrence allows,
+// so the queue never holds more entries than there are dose times and
+// finding the next alarm is a peek. A dose past its medication's end date
+// drops out. Not thread-safe; DoseScheduler confines it to one thread.
+final class DoseQueue {
+
+    // One dose of one medication at one wall-clock instant
+    static final class Occurrence {
+        final Medication medication;
+        final int minuteOfDay;
+        final long at;
+        final Recurrence recurrence;
+
+        Occurrence(Medication medication, int minuteOfDay, long at, Recurrence recurrence) {
+            this.medication = medication;
+            this.minuteOfDay = minuteOfDay;
+            this.at = at;
+            this.recurrence = recurrence;
+        }
+
+        // The same dose the next time it is due, or null if it never is again
+        Occurrence following() {
+            long next = recurrence.nextAfter(minuteOfDay, at);
+            return next >= 0 ? new Occurrence(medication, minuteOfDay, next, recurrence) : null;
+        }
+    }
+
+    // Same instant: lower medication id first, so the order is stable
+    private static final Comparator<Occurrence> EARLIEST_FIRST = (a, b) -> {
+        int byTime = Long.compare(a.at, b.at);
+        return byTime != 0 ? byTime : Long.compare(a.medication.getId(), b.medication.getId());
+    };
+
+    private final PriorityQueue<Occurrence> queue = new PriorityQueue<>(16, EARLIEST_FIRST);
+
+    // Replace everything with the next occurrence after now of every dose
+    // time of every active medication
+    void rebuild(List<Medication> medications, long now) {
+        List<Occurrence> occurrences = new ArrayList<>();
+        for (Medication medication : medications) {
+            if (!medication.isActive() || medication.getDoseMinutes() == null) {
+                continue;
+            }
+            Recurrence recurrence = Recurrence.of(medication);
+            for (int minute : medication.getDoseMinutes()) {
+                long at = recurrence.nextAfter(minute, now);
+                if (at >= 0) {
+                    occurrences.add(new Occurrence(medication, minute, at, recurrence));
+                }
+            }
+        }
+        queue.clear();
+        queue.addAll(occurrences);
+    }
+
+    Occurrence peek() {
+        return queue.peek();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    // The earliest occurrence and every other one due no more than
+    // windowMillis after it, earliest first; empty if the queue is. Walks the
+    // whole heap, which is one entry per dose time.
+    List<Occurrence> dueWithin(long windowMillis) {
+        List<Occurrence> due = new ArrayList<>();
+        Occurrence head = queue.peek();
+        if (head == null) {
+            return due;
+        }
+        for (Occurrence occurrence : queue) {
+            if (occurrence.at - head.at <= windowMillis) {
+                due.add(occurrence);
+            }
+        }
+        Collections.sort(due, EARLIEST_FIRST);
+        return due;
+    }
+
+    // The dose of medicationId due at scheduledAt has rung: queue its next
+    // due day instead. Returns false if there is no such entry, e.g. the alarm
+    // was a snooze or the schedule changed in the meantime.
+    boolean advance(long medicationId, long scheduledAt) {
+        Occurrence head = queue.peek();
+        Occurrence fired = null;
+        if (head != null && head.medication.getId() == medicationId && head.at == scheduledAt) {
+            fired = queue.poll();
+        } else {
+            for (Occurrence occurrence : queue) {
+                if (occurrence.medication.getId() == medicationId && occurrence.at == scheduledAt) {
+                    fired = occurrence;
+                    break;
+                }
+            }
+            if (fired == null) {
+                return false;
+            }
+            queue.remove(fired);
+        }
+        Occurrence following = fired.following();
+        if (following != null) {
+            queue.add(following);
+        }
+        return true;
+    }
+
+    // Every occurrence in [fromMillis, toMillis) of every active medication,
+    // earliest first. Each one is computed as the iterator reaches it, so a
+    // caller that stops after a few pays for a few whatever the window.
+    static Iterator<Occurrence> occurrencesBetween(List<Medication> medications, long fromMillis, long toMillis) {
+        DoseQueue window = new DoseQueue();
+        window.rebuild(medications, fromMillis - 1);
+        return new Iterator<Occurrence>() {
+            @Override
+            public boolean hasNext() {
+                Occurrence head = window.queue.peek();
+                return head != null && head.at < toMillis;
+            }
+
+            @Override
+            public Occurrence next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Occurrence head = window.queue.poll();
+                Occurrence following = head.following();
+                if (following != null) {
+                    window.queue.add(following);
+                }
+                return head;
+            }
+        };
+    }
+
+    // How many doses of active medications fall in [fromMillis, toMillis),
+    // without expanding them
+    static int countBetween(List<Medication> medications, long fromMillis, long toMillis) {
+        TimeZone zone = TimeZone.getDefault();
+        int count = 0;
+        for (Medication medication : medications) {
+            if (medication.isActive()) {
+                count += Recurrence.of(medication).countBetween(fromMillis, toMillis, zone);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,163 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Dose times of each medication as minutes after local midnight (0..1439),
+// one medication_schedule row per time. Ordering, "due in the next hour"
+// lookups and alarm times are integer comparisons against an index instead of
+// parsing "7:00 am" strings.
+//
+// medications.first_dose_minute is the earliest dose of each medication; the
+// triggers below keep it in step with the schedule so the medication lists can
+// be read in time order straight off an index.
+final class DoseSchedule {
+
+    static final String TABLE = "medication_schedule";
+
+    static final int MINUTES_PER_DAY = 24 * 60;
+
+    private static final int ATTACH_BATCH = 500;
+
+    static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+                    "medication_id INTEGER NOT NULL, " +
+                    "minute_of_day INTEGER NOT NULL CHECK (minute_of_day BETWEEN 0 AND 1439), " +
+                    "PRIMARY KEY (medication_id, minute_of_day)) WITHOUT ROWID";
+
+    // Due-window lookups by time of day
+    static final String INDEX_MINUTE =
+            "CREATE INDEX IF NOT EXISTS idx_schedule_minute ON " + TABLE + " (minute_of_day, medication_id)";
+
+    private static final String UPDATE_FIRST_DOSE =
+            "UPDATE " + DatabaseHelper.TABLE_MEDICATIONS + " SET " + DatabaseHelper.COLUMN_FIRST_DOSE_MINUTE +
+                    " = (SELECT MIN(minute_of_day) FROM " + TABLE + " WHERE medication_id = %1$s.medication_id)" +
+                    " WHERE " + DatabaseHelper.COLUMN_ID + " = %1$s.medication_id; ";
+
+    static final String[] CREATE_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS trg_schedule_insert AFTER INSERT ON " + TABLE + " BEGIN " +
+                    String.format(UPDATE_FIRST_DOSE, "NEW") + "END",
+            "CREATE TRIGGER IF NOT EXISTS trg_schedule_delete AFTER DELETE ON " + TABLE + " BEGIN " +
+                    String.format(UPDATE_FIRST_DOSE, "OLD") + "END",
+            "CREATE TRIGGER IF NOT EXISTS trg_medications_delete_schedule AFTER DELETE ON " +
+                    DatabaseHelper.TABLE_MEDICATIONS + " BEGIN " +
+                    "DELETE FROM " + TABLE + " WHERE medication_id = OLD." + DatabaseHelper.COLUMN_ID + "; END"
+    };
+
+    // Active medications with a dose in [fromMinute, toMinute), earliest first
+    static final String QUERY_DUE_BETWEEN =
+            "SELECT s.minute_of_day AS dose_minute, m.* FROM " + TABLE + " s" +
+                    " JOIN " + DatabaseHelper.TABLE_MEDICATIONS + " m ON m." + DatabaseHelper.COLUMN_ID + " = s.medication_id" +
+                    " WHERE s.minute_of_day >= ? AND s.minute_of_day < ? AND m." + DatabaseHelper.COLUMN_IS_ACTIVE + " = 1" +
+                    " ORDER BY s.minute_of_day, s.medication_id";
+
+    private DoseSchedule() {}
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE);
+        for (String sql : CREATE_TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    // Replace the dose times of one medication; the caller owns the transaction
+    static void write(SQLiteDatabase db, long medicationId, List<Integer> minutes) {
+        db.execSQL("DELETE FROM " + TABLE + " WHERE medication_id = ?", new Object[]{medicationId});
+        if (minutes == null) {
+            return;
+        }
+        for (int minute : minutes) {
+            db.execSQL("INSERT OR IGNORE INTO " + TABLE + " (medication_id, minute_of_day) VALUES (?, ?)",
+                    new Object[]{medicationId, minute});
+        }
+    }
+
+    // Fill in getDoseMinutes() for every medication in the list with one query
+    // per ATTACH_BATCH medications (SQLite before 3.32 allows 999 arguments)
+    static void attach(SQLiteDatabase db, List<Medication> medications) {
+        for (int from = 0; from < medications.size(); from += ATTACH_BATCH) {
+            attachBatch(db, medications.subList(from, Math.min(from + ATTACH_BATCH, medications.size())));
+        }
+    }
+
+    private static void attachBatch(SQLiteDatabase db, List<Medication> medications) {
+        Map<Long, Medication> byId = new HashMap<>();
+        StringBuilder in = new StringBuilder();
+        String[] args = new String[medications.size()];
+        for (int i = 0; i < medications.size(); i++) {
+            Medication medication = medications.get(i);
+            medication.setDoseMinutes(new ArrayList<>());
+            byId.put(medication.getId(), medication);
+            in.append(i == 0 ? "?" : ", ?");
+            args[i] = String.valueOf(medication.getId());
+        }
+
+        Cursor cursor = db.rawQuery("SELECT medication_id, minute_of_day FROM " + TABLE +
+                " WHERE medication_id IN (" + in + ") ORDER BY medication_id, minute_of_day", args);
+        while (cursor.moveToNext()) {
+            byId.get(cursor.getLong(0)).getDoseMinutes().add(cursor.getInt(1));
+        }
+        cursor.close();
+    }
+
+    // "7:00 am" / "12:30 pm" -> minute of day, or -1 if the text is not a time
+    static int parse(String time) {
+        if (time == null) {
+            return -1;
+        }
+        String[] parts = time.trim().split("\\s+");
+        if (parts.length != 2) {
+            return -1;
+        }
+        String[] hourMinute = parts[0].split(":");
+        if (hourMinute.length != 2) {
+            return -1;
+        }
+
+        int hour;
+        int minute;
+        try {
+            hour = Integer.parseInt(hourMinute[0]);
+            minute = Integer.parseInt(hourMinute[1]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (hour < 1 || hour > 12 || minute < 0 || minute > 59) {
+            return -1;
+        }
+
+        boolean pm;
+        if (parts[1].equalsIgnoreCase("pm")) {
+            pm = true;
+        } else if (parts[1].equalsIgnoreCase("am")) {
+            pm = false;
+        } else {
+            return -1;
+        }
+        return ((hour % 12) + (pm ? 12 : 0)) * 60 + minute;
+    }
+
+    // Minute of day -> "7:00 am", the format the rest of the UI already shows
+    static String format(int minuteOfDay) {
+        int hourOfDay = minuteOfDay / 60;
+        int hour = hourOfDay % 12;
+        if (hour == 0) hour = 12;
+        return String.format(Locale.getDefault(), "%d:%02d %s", hour, minuteOfDay % 60,
+                hourOfDay >= 12 ? "pm" : "am");
+    }
+
+    static String formatAll(List<Integer> minutes) {
+        StringBuilder text = new StringBuilder();
+        for (int minute : minutes) {
+            if (text.length() > 0) text.append(", ");
+            text.append(format(minute));
+        }
+        return text.toString();
+    }
+}
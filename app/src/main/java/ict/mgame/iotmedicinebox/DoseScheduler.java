@@ -0,0 +1,248 @@
+package ict.mgame.iotmedicinebox;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Keeps one exact alarm armed: the earliest upcoming dose of all active
+// medications, taken from a DoseQueue built from the MedicationRepository.
+//
+// The alarm launches ReminderActivity directly (an activity PendingIntent is
+// what setAlarmClock needs to show over the lock screen); the activity calls
+// onReminderFired, which moves that dose to the next day its Recurrence
+// allows and arms whatever is earliest now. Any change to the medications
+// rebuilds the queue. However many doses there are, AlarmManager only ever
+// holds this one alarm (plus any snoozes ReminderActivity sets itself).
+//
+// Doses due within the grouping window of the earliest ring together: the
+// alarm carries all of them as one ReminderEvent, so boxes due a few minutes
+// apart wake the phone, play the sound and vibrate once, and each dose is
+// still advanced and logged on its own.
+//
+// All queue work runs on the scheduler's own thread, since rebuilding may
+// read the database. Rebuilds requested while one is still waiting to start
+// share it, so a fresh process woken by a broadcast (Application.onCreate
+// plus RescheduleReceiver) reads the medications once.
+final class DoseScheduler implements MedicationRepository.Observer {
+
+    private static final String TAG = "DoseScheduler";
+
+    // Medication ids start at 1, so this never matches an alarm from before
+    // the scheduler (request code = medication id); ReminderActivity keeps its
+    // snoozes (id * 1000) off it too
+    static final int REQUEST_CODE = 0;
+
+    private static final String PREFS = "dose_scheduler";
+    private static final String KEY_LEGACY_ALARMS_CANCELLED = "legacy_alarms_cancelled";
+    private static final String KEY_GROUPING_WINDOW = "grouping_window_minutes";
+    static final int DEFAULT_GROUPING_WINDOW_MINUTES = 5;
+
+    private final Context context;
+    private final MedicationRepository medicationRepository;
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "dose-scheduler"));
+
+    // Only touched on the executor's thread
+    private final DoseQueue queue = new DoseQueue();
+    private boolean loaded;
+    // What the armed alarm's intent carries, see ReminderEvent.payload
+    private List<Object> armedEvent;
+    private long armedAt = -1;
+
+    // Guarded by pendingCallbacks
+    private final List<Runnable> pendingCallbacks = new ArrayList<>();
+    private boolean rebuildQueued;
+    private boolean forceQueued;
+
+    DoseScheduler(Context context, MedicationRepository medicationRepository) {
+        this.context = context.getApplicationContext();
+        this.medicationRepository = medicationRepository;
+    }
+
+    // Rebuild from the current medications and arm the earliest dose
+    void reschedule() {
+        schedule(false, null);
+    }
+
+    // As reschedule, but sets the alarm even if the earliest dose is the one
+    // already armed: after a reboot or a clock change the armed alarm may be
+    // gone or at the wrong instant. onArmed runs on the scheduler thread once
+    // the alarm is set, or if rebuilding failed.
+    void restore(Runnable onArmed) {
+        schedule(true, onArmed);
+    }
+
+    // When the last alarm was set for, -1 if none; read it from onArmed
+    long getArmedAt() {
+        return armedAt;
+    }
+
+    // How many minutes after the earliest dose another one may be due and
+    // still ring with it; 0 rings every dose time on its own
+    static int getGroupingWindowMinutes(Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+                .getInt(KEY_GROUPING_WINDOW, DEFAULT_GROUPING_WINDOW_MINUTES);
+    }
+
+    // Re-arms straight away, since the armed alarm may now hold too many or
+    // too few doses
+    void setGroupingWindowMinutes(int minutes) {
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putInt(KEY_GROUPING_WINDOW, Math.max(0, minutes)).apply();
+        restore(null);
+    }
+
+    private void schedule(boolean force, Runnable onArmed) {
+        synchronized (pendingCallbacks) {
+            forceQueued |= force;
+            if (onArmed != null) {
+                pendingCallbacks.add(onArmed);
+            }
+            if (rebuildQueued) {
+                return;
+            }
+            rebuildQueued = true;
+        }
+        executor.execute(() -> {
+            boolean forceArm;
+            List<Runnable> callbacks;
+            synchronized (pendingCallbacks) {
+                forceArm = forceQueued;
+                forceQueued = false;
+                rebuildQueued = false;
+                callbacks = new ArrayList<>(pendingCallbacks);
+                pendingCallbacks.clear();
+            }
+            try {
+                if (forceArm) {
+                    armedEvent = null;
+                    armedAt = -1;
+                }
+                rebuild();
+                arm();
+            } finally {
+                for (Runnable callback : callbacks) {
+                    callback.run();
+                }
+            }
+        });
+    }
+
+    // Called by ReminderActivity for the doses it is showing
+    void onReminderFired(ReminderEvent event) {
+        executor.execute(() -> {
+            if (!loaded) {
+                // Fresh process: everything is rebuilt from now, which already
+                // leaves the doses that just rang behind
+                rebuild();
+            } else {
+                for (ReminderEvent.Dose dose : event.doses) {
+                    if (!queue.advance(dose.medicationId, dose.scheduledAt)) {
+                        Log.d(TAG, "No queued dose for " + dose.medicationId + " at " + new Date(dose.scheduledAt));
+                    }
+                }
+            }
+            arm();
+        });
+    }
+
+    @Override
+    public void onMedicationsChanged() {
+        reschedule();
+    }
+
+    private void rebuild() {
+        List<Medication> medications = medicationRepository.getAll();
+        queue.rebuild(medications, System.currentTimeMillis());
+        loaded = true;
+        cancelLegacyAlarms(medications);
+    }
+
+    private void arm() {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager == null) {
+            return;
+        }
+        DoseQueue.Occurrence next = queue.peek();
+        if (next == null) {
+            PendingIntent armed = PendingIntent.getActivity(context, REQUEST_CODE,
+                    new Intent(context, ReminderActivity.class),
+                    PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_IMMUTABLE);
+            if (armed != null) {
+                alarmManager.cancel(armed);
+                armed.cancel();
+            }
+            armedEvent = null;
+            armedAt = -1;
+            Log.d(TAG, "No active doses, alarm cancelled");
+            return;
+        }
+        List<DoseQueue.Occurrence> due = queue.dueWithin(getGroupingWindowMinutes(context) * 60_000L);
+        // Same doses at the same times is not enough: an edited name, box
+        // or instructions must reach the intent too
+        List<Object> event = ReminderEvent.payload(due);
+        if (event.equals(armedEvent)) {
+            return;
+        }
+
+        // FLAG_UPDATE_CURRENT swaps the extras of the one PendingIntent, and
+        // setting it again replaces the previous alarm
+        PendingIntent pendingIntent = PendingIntent.getActivity(context, REQUEST_CODE, reminderIntent(due),
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        try {
+            alarmManager.setAlarmClock(new AlarmManager.AlarmClockInfo(next.at, pendingIntent), pendingIntent);
+        } catch (SecurityException e) {
+            // Exact alarms revoked by the user; a late reminder beats none
+            Log.w(TAG, "Exact alarm not allowed, falling back to an inexact one", e);
+            alarmManager.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next.at, pendingIntent);
+        }
+        armedEvent = event;
+        armedAt = next.at;
+        Log.d(TAG, "Armed " + next.medication.getMedicineName()
+                + (due.size() > 1 ? " and " + (due.size() - 1) + " more" : "") + " for " + new Date(next.at)
+                + " (" + queue.size() + " doses queued)");
+    }
+
+    private Intent reminderIntent(List<DoseQueue.Occurrence> due) {
+        Intent intent = new Intent(context, ReminderActivity.class);
+        ReminderEvent.putExtras(intent, due);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+        return intent;
+    }
+
+    // Before the scheduler every medication had its own alarm; cancel those
+    // once so they do not ring next to the scheduler's
+    private void cancelLegacyAlarms(List<Medication> medications) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        if (prefs.getBoolean(KEY_LEGACY_ALARMS_CANCELLED, false)) {
+            return;
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager == null) {
+            return;
+        }
+        int cancelled = 0;
+        for (Medication medication : medications) {
+            // Extras are not part of PendingIntent matching, so a bare intent finds it
+            PendingIntent legacy = PendingIntent.getActivity(context, (int) medication.getId(),
+                    new Intent(context, ReminderActivity.class),
+                    PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_IMMUTABLE);
+            if (legacy != null) {
+                alarmManager.cancel(legacy);
+                legacy.cancel();
+                cancelled++;
+            }
+        }
+        prefs.edit().putBoolean(KEY_LEGACY_ALARMS_CANCELLED, true).apply();
+        Log.d(TAG, "Cancelled " + cancelled + " per-medication alarms");
+    }
+}
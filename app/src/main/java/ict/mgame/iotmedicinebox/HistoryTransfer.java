@@ -0,0 +1,422 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+// Export and import of the whole medication history as CSV or JSON.
+//
+// Both directions stream: export walks the logs oldest first through a
+// forward-only cursor (archived months one at a time) straight into a
+// buffered writer, and import parses one record at a time and hands them to
+// the database in fixed-size batches, one transaction each. Memory use does not
+// depend on the size of the history.
+//
+// A record is (timestamp, medicine_name, dosage, box_number, status) with the
+// timestamp in ISO-8601 UTC. Ids are not carried over; a row that matches an
+// existing log on timestamp, medicine, box and status is skipped, so
+// importing the same file twice, or re-running an import that failed half-way,
+// adds nothing.
+final class HistoryTransfer {
+
+    enum Format {
+        CSV("text/csv", "csv"),
+        JSON("application/json", "json");
+
+        final String mimeType;
+        final String extension;
+
+        Format(String mimeType, String extension) {
+            this.mimeType = mimeType;
+            this.extension = extension;
+        }
+    }
+
+    static final class ImportResult {
+        int read;
+        int inserted;
+
+        int duplicates() {
+            return read - inserted;
+        }
+    }
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String TIMESTAMP = "timestamp";
+    private static final String MEDICINE_NAME = "medicine_name";
+    private static final String DOSAGE = "dosage";
+    private static final String BOX_NUMBER = "box_number";
+    private static final String STATUS = "status";
+    private static final String[] CSV_HEADER = {TIMESTAMP, MEDICINE_NAME, DOSAGE, BOX_NUMBER, STATUS};
+
+    private HistoryTransfer() {}
+
+    static int export(Context context, Uri uri, Format format) throws IOException {
+        // "wt" truncates, otherwise overwriting a longer file leaves its tail behind
+        OutputStream out = context.getContentResolver().openOutputStream(uri, "wt");
+        if (out == null) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        try {
+            return export(MedBoxApplication.getDatabaseHelper(context), out, format);
+        } finally {
+            out.close();
+        }
+    }
+
+    // Writes every log, archived ones included, oldest first. Returns the
+    // number of records written. Does not close out.
+    static int export(DatabaseHelper databaseHelper, OutputStream out, Format format) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        SimpleDateFormat dateFormat = timestampFormat();
+        int[] count = {0};
+
+        try {
+            if (format == Format.CSV) {
+                writeCsvRecord(writer, CSV_HEADER);
+                String[] fields = new String[CSV_HEADER.length];
+                databaseHelper.forEachMedicationLogOldestFirst(log -> {
+                    fields[0] = dateFormat.format(log.getTimestamp());
+                    fields[1] = log.getMedicineName();
+                    fields[2] = log.getDosage();
+                    fields[3] = String.valueOf(log.getBoxNumber());
+                    fields[4] = log.getStatus();
+                    try {
+                        writeCsvRecord(writer, fields);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    count[0]++;
+                });
+                writer.flush();
+            } else {
+                JsonWriter json = new JsonWriter(writer);
+                json.beginArray();
+                databaseHelper.forEachMedicationLogOldestFirst(log -> {
+                    try {
+                        json.beginObject();
+                        json.name(TIMESTAMP).value(dateFormat.format(log.getTimestamp()));
+                        json.name(MEDICINE_NAME).value(log.getMedicineName());
+                        json.name(DOSAGE).value(log.getDosage());
+                        json.name(BOX_NUMBER).value(log.getBoxNumber());
+                        json.name(STATUS).value(log.getStatus());
+                        json.endObject();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    count[0]++;
+                });
+                json.endArray();
+                json.flush();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return count[0];
+    }
+
+    static ImportResult importFrom(Context context, Uri uri) throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        try {
+            return importFrom(MedBoxApplication.getDatabaseHelper(context), in);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Reads CSV or JSON (told apart by the first character) and inserts the
+    // logs that are not already present. Batches committed before a parse
+    // error stay committed. Does not close in.
+    static ImportResult importFrom(DatabaseHelper databaseHelper, InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+        ImportResult result = new ImportResult();
+        Batch batch = new Batch(databaseHelper, result);
+        if (detectFormat(reader) == Format.JSON) {
+            readJson(reader, batch);
+        } else {
+            readCsv(reader, batch);
+        }
+        batch.flush();
+        return result;
+    }
+
+    // Collects parsed logs and writes them BATCH_SIZE at a time
+    private static final class Batch {
+        private final DatabaseHelper databaseHelper;
+        private final ImportResult result;
+        private final List<MedicationLog> logs = new ArrayList<>(BATCH_SIZE);
+
+        Batch(DatabaseHelper databaseHelper, ImportResult result) {
+            this.databaseHelper = databaseHelper;
+            this.result = result;
+        }
+
+        void add(MedicationLog log) throws IOException {
+            logs.add(log);
+            result.read++;
+            if (logs.size() == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (!logs.isEmpty()) {
+                result.inserted += databaseHelper.importMedicationLogs(logs);
+                logs.clear();
+            }
+        }
+    }
+
+    private static Format detectFormat(BufferedReader reader) throws IOException {
+        while (true) {
+            reader.mark(1);
+            int c = reader.read();
+            if (c == -1) {
+                return Format.CSV;
+            }
+            if (c == '\uFEFF' || Character.isWhitespace(c)) {
+                continue; // byte order mark or leading blank lines
+            }
+            reader.reset();
+            return c == '[' ? Format.JSON : Format.CSV;
+        }
+    }
+
+    private static void readCsv(Reader reader, Batch batch) throws IOException {
+        CsvReader csv = new CsvReader(reader);
+        List<String> fields = new ArrayList<>();
+        if (!csv.readRecord(fields)) {
+            return;
+        }
+
+        // Columns may come in any order; extra columns are ignored
+        int timestampColumn = fields.indexOf(TIMESTAMP);
+        int nameColumn = fields.indexOf(MEDICINE_NAME);
+        int dosageColumn = fields.indexOf(DOSAGE);
+        int boxColumn = fields.indexOf(BOX_NUMBER);
+        int statusColumn = fields.indexOf(STATUS);
+        if (timestampColumn < 0 || nameColumn < 0 || statusColumn < 0) {
+            throw new IOException("CSV header must name " + TIMESTAMP + ", " + MEDICINE_NAME + " and " + STATUS);
+        }
+
+        SimpleDateFormat dateFormat = timestampFormat();
+        while (csv.readRecord(fields)) {
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                continue; // blank line
+            }
+            String where = "Line " + csv.line;
+            MedicationLog log = new MedicationLog();
+            log.setTimestamp(parseTimestamp(dateFormat, field(fields, timestampColumn, where), where));
+            log.setMedicineName(field(fields, nameColumn, where));
+            log.setDosage(dosageColumn >= 0 ? field(fields, dosageColumn, where) : "");
+            log.setBoxNumber(boxColumn >= 0 ? parseBox(field(fields, boxColumn, where), where) : 0);
+            log.setStatus(parseStatus(field(fields, statusColumn, where), where));
+            batch.add(log);
+        }
+    }
+
+    private static String field(List<String> fields, int column, String where) throws IOException {
+        if (column >= fields.size()) {
+            throw new IOException(where + ": expected " + (column + 1) + " fields, found " + fields.size());
+        }
+        return fields.get(column);
+    }
+
+    private static void readJson(Reader reader, Batch batch) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        SimpleDateFormat dateFormat = timestampFormat();
+        int index = 0;
+
+        json.beginArray();
+        while (json.hasNext()) {
+            String where = "Record " + index++;
+            MedicationLog log = new MedicationLog();
+            log.setDosage("");
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if (json.peek() == JsonToken.NULL) {
+                    json.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case TIMESTAMP:
+                        log.setTimestamp(parseTimestamp(dateFormat, json.nextString(), where));
+                        break;
+                    case MEDICINE_NAME:
+                        log.setMedicineName(json.nextString());
+                        break;
+                    case DOSAGE:
+                        log.setDosage(json.nextString());
+                        break;
+                    case BOX_NUMBER:
+                        log.setBoxNumber(parseBox(json.nextString(), where));
+                        break;
+                    case STATUS:
+                        log.setStatus(parseStatus(json.nextString(), where));
+                        break;
+                    default:
+                        json.skipValue();
+                        break;
+                }
+            }
+            json.endObject();
+            if (log.getTimestamp() == null || log.getMedicineName() == null || log.getStatus() == null) {
+                throw new IOException(where + ": needs " + TIMESTAMP + ", " + MEDICINE_NAME + " and " + STATUS);
+            }
+            batch.add(log);
+        }
+        json.endArray();
+    }
+
+    private static SimpleDateFormat timestampFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+
+    // ISO-8601 as written by export, or plain epoch milliseconds
+    private static Date parseTimestamp(SimpleDateFormat format, String text, String where) throws IOException {
+        String value = text.trim();
+        try {
+            if (!value.isEmpty() && Character.isDigit(value.charAt(value.length() - 1))) {
+                return new Date(Long.parseLong(value));
+            }
+            return format.parse(value);
+        } catch (NumberFormatException | ParseException e) {
+            throw new IOException(where + ": bad timestamp \"" + text + "\"");
+        }
+    }
+
+    private static int parseBox(String text, String where) throws IOException {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException(where + ": bad box number \"" + text + "\"");
+        }
+    }
+
+    // The table only stores LogStatus' names, so anything else would come back as null
+    private static String parseStatus(String text, String where) throws IOException {
+        if (!LogStatus.isKnown(text)) {
+            throw new IOException(where + ": unknown status \"" + text + "\"");
+        }
+        return text;
+    }
+
+    // RFC 4180: quote a field only if it holds a comma, quote or line break
+    private static void writeCsvRecord(Writer out, String[] fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) out.write(',');
+            String value = fields[i];
+            if (value == null) continue;
+            boolean quote = false;
+            for (int j = 0; j < value.length() && !quote; j++) {
+                char c = value.charAt(j);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (quote) {
+                out.write('"');
+                out.write(value.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(value);
+            }
+        }
+        out.write("\r\n");
+    }
+
+    // Minimal RFC 4180 reader working off its own buffer, one record per call
+    private static final class CsvReader {
+        private final Reader in;
+        private final char[] buffer = new char[8192];
+        private final StringBuilder field = new StringBuilder();
+        private int position;
+        private int limit;
+        int line;
+
+        CsvReader(Reader in) {
+            this.in = in;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+
+        // Fills fields with the next record; false at end of input
+        boolean readRecord(List<String> fields) throws IOException {
+            fields.clear();
+            field.setLength(0);
+            int c = read();
+            if (c == -1) {
+                return false;
+            }
+            line++;
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("Line " + line + ": unterminated quoted field");
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            quoted = false; // closing quote; c is handled below
+                            continue;
+                        }
+                    } else if (c == '\n') {
+                        line++;
+                    }
+                    field.append((char) c);
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n' || c == -1) {
+                    fields.add(field.toString());
+                    return true;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+        }
+    }
+}
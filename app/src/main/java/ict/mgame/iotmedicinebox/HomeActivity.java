@@ -3,10 +3,13 @@ package ict.mgame.iotmedicinebox;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.HorizontalScrollView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -17,14 +20,25 @@ import java.util.List;
 
 import com.google.android.material.bottomnavigation.BottomNavigationView;
 
-public class HomeActivity extends Activity {
+public class HomeActivity extends Activity implements MedicationRepository.Observer {
 
     private static final String TAG = "HomeActivity";
 
+    // Search runs this long after the last keystroke
+    private static final long SEARCH_DELAY_MS = 150;
+    private static final int SEARCH_LIMIT = 50;
+
     private LinearLayout weekContainer;
     private HorizontalScrollView scrollView;
     private int selectedPosition = 500;
+    private MedicationRepository medicationRepository;
+    private QueryExecutor queryExecutor;
     private DatabaseHelper databaseHelper;
+    private EditText etSearch;
+    private String searchText = "";
+    private int loadGeneration = 0; // drops results of superseded loads
+    private long drawnVersion = -1; // repository version the list was last built from
+    private int drawnPosition = -1;
     private BottomNavigationView bottomNav;
 
     @Override
@@ -35,7 +49,9 @@ public class HomeActivity extends Activity {
         Log.d(TAG, "onCreate started");
 
         // Initialize database
-        databaseHelper = new DatabaseHelper(this);
+        medicationRepository = MedBoxApplication.getMedicationRepository(this);
+        queryExecutor = MedBoxApplication.getQueryExecutor(this);
+        databaseHelper = MedBoxApplication.getDatabaseHelper(this);
 
         // Initialize views
         weekContainer = findViewById(R.id.weekContainer);
@@ -77,6 +93,9 @@ public class HomeActivity extends Activity {
         // Initialize calendar view
         initCalendarView();
 
+        // Search box
+        setupSearch();
+
         // Setup bottom navigation
         setupBottomNavigation();
 
@@ -298,7 +317,21 @@ public class HomeActivity extends Activity {
             bottomNav.setSelectedItemId(R.id.nav_home);
         }
 
-        // Refresh medication list
+        // Redraw only if medications changed while another screen was on top
+        medicationRepository.addObserver(this);
+        if (medicationRepository.getVersion() != drawnVersion || selectedPosition != drawnPosition) {
+            loadMedicationsForSelectedDate();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        medicationRepository.removeObserver(this);
+        super.onPause();
+    }
+
+    @Override
+    public void onMedicationsChanged() {
         loadMedicationsForSelectedDate();
     }
 
@@ -346,7 +379,47 @@ public class HomeActivity extends Activity {
         }
     }
 
+    private void setupSearch() {
+        etSearch = findViewById(R.id.etSearchMedications);
+        if (etSearch == null) return;
+
+        final Runnable search = () -> {
+            searchText = etSearch.getText().toString().trim();
+            loadMedicationsForSelectedDate();
+        };
+        etSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                etSearch.removeCallbacks(search);
+                etSearch.postDelayed(search, SEARCH_DELAY_MS);
+            }
+        });
+    }
+
     private void loadMedicationsForSelectedDate() {
+        // Served from the repository snapshot unless something was saved
+        // since; a miss reads the database on a query thread. While the user
+        // is searching, the full-text index is queried instead.
+        drawnVersion = medicationRepository.getVersion();
+        drawnPosition = selectedPosition;
+        final int generation = ++loadGeneration;
+        final String query = searchText;
+        queryExecutor.query(this, () -> query.isEmpty()
+                ? medicationRepository.getAll()
+                : databaseHelper.searchMedications(query, SEARCH_LIMIT), medications -> {
+            if (generation == loadGeneration) {
+                showMedications(medications);
+            }
+        });
+    }
+
+    private void showMedications(List<Medication> medications) {
         LinearLayout medicationList = findViewById(R.id.medicationList);
         if (medicationList == null) {
             Log.e(TAG, "medicationList not found");
@@ -355,12 +428,11 @@ public class HomeActivity extends Activity {
 
         medicationList.removeAllViews();
 
-        // Get all medications from database
-        List<Medication> medications = databaseHelper.getAllMedications();
-
         if (medications.isEmpty()) {
             TextView emptyText = new TextView(this);
-            emptyText.setText("No medication records\nClick '+' to add first medication");
+            emptyText.setText(searchText.isEmpty()
+                    ? "No medication records\nClick '+' to add first medication"
+                    : "No medications match \"" + searchText + "\"");
             emptyText.setTextSize(16);
             emptyText.setTextColor(0xFF718096);
             emptyText.setGravity(android.view.Gravity.CENTER);
@@ -375,7 +447,11 @@ public class HomeActivity extends Activity {
             View item = LayoutInflater.from(this).inflate(R.layout.item_medication, medicationList, false);
 
             TextView tvTime = item.findViewById(R.id.tvTime);
-            tvTime.setText(medication.getNotificationTime());
+            if (medication.getDoseMinutes() != null && !medication.getDoseMinutes().isEmpty()) {
+                tvTime.setText(DoseSchedule.formatAll(medication.getDoseMinutes()));
+            } else {
+                tvTime.setText(medication.getNotificationTime());
+            }
 
             TextView tvMedName = item.findViewById(R.id.tvMedName);
             String displayName = medication.getMedicineName();
@@ -437,12 +513,4 @@ public class HomeActivity extends Activity {
             return R.color.primary_color;
         }
     }
-
-    @Override
-    protected void onDestroy() {
-        if (databaseHelper != null) {
-            databaseHelper.close();
-        }
-        super.onDestroy();
-    }
 }
\ No newline at end of file
@@ -0,0 +1,514 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Cold storage for old medication_logs rows.
+//
+// Logs older than a cutoff are moved out of SQLite into one append-only
+// segment file per calendar month (logs-yyyymm.seg). Each archive run appends
+// a frame to the segment: [int length][gzip of records]. A torn frame at the
+// end of a file (crash mid-write) is ignored on read, and cut off before the
+// next frame is appended after it. The rows are deleted from
+// SQLite only after their frame is synced, in the same transaction that
+// advances archived_before, so a crash can at worst leave a duplicate frame;
+// readers drop duplicates by log id. Retention rewrites a segment without
+// the rows it expires as a single frame in a temporary file, which is then
+// renamed over the original.
+final class LogArchive {
+
+    private static final String TAG = "LogArchive";
+
+    // Logs younger than this stay in SQLite
+    static final int DEFAULT_HOT_DAYS = 180;
+
+    private static final int BATCH_SIZE = 2000;
+    private static final int FORMAT_VERSION = 1;
+
+    static final String CREATE_STATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS log_archive_state (" +
+                    "id INTEGER PRIMARY KEY CHECK (id = 0), " +
+                    "archived_before INTEGER NOT NULL)";
+
+    private final File directory;
+
+    // Last decoded month; paging through old history usually stays inside one
+    private int cachedMonth = -1;
+    private List<MedicationLog> cachedRows;
+
+    // Duplicate-check keys of one month, built on the first contains() there
+    private int keysMonth = -1;
+    private Set<String> cachedKeys;
+
+    // Length of each segment last known to end on a complete frame
+    private final Map<Integer, Long> checkedLengths = new HashMap<>();
+
+    LogArchive(File directory) {
+        this.directory = directory;
+    }
+
+    // Every archived log has timestamp < this; 0 when nothing was archived
+    static long archivedBefore(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(archived_before), 0) FROM log_archive_state", null);
+    }
+
+    // Move logs with timestamp < cutoffMillis into monthly segments, one
+    // bounded transaction per batch. Returns the number of rows moved.
+    synchronized int archive(SQLiteDatabase db, long cutoffMillis) throws IOException {
+        // Archived days are only counted through the rollup, so wait for its backfill
+        if (!AdherenceRollup.isMaintained(db)) {
+            return 0;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        int moved = 0;
+        while (true) {
+            db.beginTransactionNonExclusive();
+            try {
+                List<MedicationLog> batch = new ArrayList<>();
+                Cursor cursor = db.rawQuery(DatabaseHelper.SELECT_LOGS + " WHERE timestamp < ?" +
+                                " ORDER BY timestamp, id LIMIT " + BATCH_SIZE,
+                        new String[]{String.valueOf(cutoffMillis)});
+                new MedicationLogMapper(cursor).mapAll(cursor, batch);
+                cursor.close();
+
+                if (!batch.isEmpty()) {
+                    appendToSegments(batch);
+
+                    // The rollup keeps counting archived days, so add the batch
+                    // back before the delete trigger subtracts it
+                    MedicationLog last = batch.get(batch.size() - 1);
+                    String where = "timestamp < ? AND (timestamp < ? OR (timestamp = ? AND id <= ?))";
+                    String[] args = {String.valueOf(cutoffMillis),
+                            String.valueOf(last.getTimestamp().getTime()),
+                            String.valueOf(last.getTimestamp().getTime()),
+                            String.valueOf(last.getId())};
+                    AdherenceRollup.addCounts(db, where, args);
+                    db.delete("medication_logs", where, args);
+                    moved += batch.size();
+                }
+
+                if (batch.size() < BATCH_SIZE) {
+                    db.execSQL("INSERT OR REPLACE INTO log_archive_state (id, archived_before)" +
+                                    " VALUES (0, MAX(?, (SELECT IFNULL(MAX(archived_before), 0) FROM log_archive_state)))",
+                            new Object[]{cutoffMillis});
+                }
+                db.setTransactionSuccessful();
+                if (batch.size() < BATCH_SIZE) break;
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        if (moved > 0) {
+            Log.d(TAG, "Archived " + moved + " medication logs older than " + new Date(cutoffMillis));
+        }
+        return moved;
+    }
+
+    // Drop every segment and the archive watermark; the caller owns the transaction
+    synchronized void clear(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM log_archive_state");
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Could not delete " + file);
+                }
+            }
+        }
+        forgetCachedMonths();
+    }
+
+    // Delete the segments of months that end before cutoffMillis, with their
+    // adherence_daily days. A month straddling the cutoff is kept whole.
+    // Returns {rows, bytes} removed. The caller must already have deleted the
+    // SQLite rows older than the cutoff, or their rollup days would go too.
+    synchronized long[] dropMonthsBefore(SQLiteDatabase db, long cutoffMillis) throws IOException {
+        int firstKept = monthKey(cutoffMillis);
+        long rows = 0;
+        long bytes = 0;
+        List<File> dropped = new ArrayList<>();
+        for (int month : monthsDescending()) {
+            if (month >= firstKept) continue;
+            rows += loadMonth(month).size();
+            File file = segmentFile(month);
+            bytes += file.length();
+            dropped.add(file);
+        }
+        if (dropped.isEmpty()) {
+            return new long[]{0, 0};
+        }
+
+        // Rollup first: should the process die before the files go, the next
+        // run finds them again and deletes them
+        db.delete(AdherenceRollup.TABLE, "day < ?", new String[]{String.valueOf(firstKept * 100 + 1)});
+        for (File file : dropped) {
+            if (!file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+        }
+        forgetCachedMonths();
+        return new long[]{rows, bytes};
+    }
+
+    // Delete archived logs with this status (a LogStatus name) and timestamp
+    // < cutoffMillis, and take them out of adherence_daily. Each affected
+    // month is rewritten without them. Returns {rows, bytes} removed.
+    synchronized long[] dropStatusBefore(SQLiteDatabase db, String status, long cutoffMillis) throws IOException {
+        int lastMonth = monthKey(cutoffMillis);
+        long rows = 0;
+        long bytes = 0;
+        for (int month : monthsDescending()) {
+            if (month > lastMonth) continue;
+            List<MedicationLog> kept = new ArrayList<>();
+            List<MedicationLog> expired = new ArrayList<>();
+            for (MedicationLog log : loadMonth(month)) {
+                boolean expires = status.equals(log.getStatus()) && log.getTimestamp().getTime() < cutoffMillis;
+                (expires ? expired : kept).add(log);
+            }
+            if (expired.isEmpty()) continue;
+
+            File file = segmentFile(month);
+            long before = file.length();
+            File rewritten = new File(directory, file.getName() + ".tmp");
+            if (!kept.isEmpty()) {
+                writeFrame(rewritten, false, kept);
+            }
+            // The rollup change commits right after the segment is replaced,
+            // so a crash can at worst leave the expired rows counted
+            db.beginTransactionNonExclusive();
+            try {
+                AdherenceRollup.subtractCounts(db, expired);
+                boolean replaced = kept.isEmpty() ? file.delete() : rewritten.renameTo(file);
+                if (!replaced) {
+                    throw new IOException("Cannot replace " + file);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            forgetCachedMonths();
+            rows += expired.size();
+            bytes += Math.max(0, before - (kept.isEmpty() ? 0 : file.length()));
+        }
+        return new long[]{rows, bytes};
+    }
+
+    // Archived logs in [fromMillis, toMillis) matching filter, newest first
+    synchronized List<MedicationLog> read(String filter, long fromMillis, long toMillis) throws IOException {
+        List<MedicationLog> result = new ArrayList<>();
+        for (int month : monthsDescending()) {
+            if (month < monthKey(fromMillis)) break;
+            if (month > monthKey(toMillis - 1)) continue;
+            for (MedicationLog log : loadMonth(month)) {
+                long time = log.getTimestamp().getTime();
+                if (time >= fromMillis && time < toMillis && matches(log, filter)) {
+                    result.add(log);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Up to limit archived logs strictly older than (beforeTimestamp, beforeId), newest first
+    synchronized List<MedicationLog> readPage(String filter, long beforeTimestamp, long beforeId, int limit)
+            throws IOException {
+        List<MedicationLog> result = new ArrayList<>(limit);
+        int startMonth = beforeTimestamp == Long.MAX_VALUE ? Integer.MAX_VALUE : monthKey(beforeTimestamp);
+        for (int month : monthsDescending()) {
+            if (month > startMonth) continue;
+            for (MedicationLog log : loadMonth(month)) {
+                long time = log.getTimestamp().getTime();
+                boolean older = time < beforeTimestamp || (time == beforeTimestamp && log.getId() < beforeId);
+                if (older && matches(log, filter)) {
+                    result.add(log);
+                    if (result.size() == limit) return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Every archived log, oldest month first and oldest first within a month.
+    // Only one decoded month is held in memory at a time.
+    synchronized void forEachOldestFirst(Consumer<MedicationLog> visitor) throws IOException {
+        List<Integer> months = monthsDescending();
+        Collections.reverse(months);
+        for (int month : months) {
+            List<MedicationLog> rows = loadMonth(month);
+            for (int i = rows.size() - 1; i >= 0; i--) {
+                visitor.accept(rows.get(i));
+            }
+        }
+    }
+
+    // True if an archived log has the same timestamp, medicine, box and status
+    synchronized boolean contains(MedicationLog log) throws IOException {
+        int month = monthKey(log.getTimestamp().getTime());
+        if (month != keysMonth) {
+            Set<String> keys = new HashSet<>();
+            if (segmentFile(month).exists()) {
+                for (MedicationLog archived : loadMonth(month)) {
+                    keys.add(duplicateKey(archived));
+                }
+            }
+            keysMonth = month;
+            cachedKeys = keys;
+        }
+        return cachedKeys.contains(duplicateKey(log));
+    }
+
+    private static String duplicateKey(MedicationLog log) {
+        return log.getTimestamp().getTime() + "|" + log.getBoxNumber() + "|" + log.getStatus() + "|"
+                + log.getMedicineName();
+    }
+
+    // Newest first, by (timestamp, id)
+    static final Comparator<MedicationLog> NEWEST_FIRST = (a, b) -> {
+        int byTime = Long.compare(b.getTimestamp().getTime(), a.getTimestamp().getTime());
+        return byTime != 0 ? byTime : Long.compare(b.getId(), a.getId());
+    };
+
+    private static boolean matches(MedicationLog log, String filter) {
+        return filter.equals("All") || filter.equals(log.getStatus());
+    }
+
+    private void appendToSegments(List<MedicationLog> batch) throws IOException {
+        Map<Integer, List<MedicationLog>> byMonth = new TreeMap<>();
+        for (MedicationLog log : batch) {
+            int month = monthKey(log.getTimestamp().getTime());
+            List<MedicationLog> rows = byMonth.get(month);
+            if (rows == null) {
+                rows = new ArrayList<>();
+                byMonth.put(month, rows);
+            }
+            rows.add(log);
+        }
+
+        for (Map.Entry<Integer, List<MedicationLog>> entry : byMonth.entrySet()) {
+            File file = segmentFile(entry.getKey());
+            truncateTornTail(entry.getKey(), file);
+            writeFrame(file, true, entry.getValue());
+            checkedLengths.put(entry.getKey(), file.length());
+            if (entry.getKey() == cachedMonth) {
+                cachedMonth = -1;
+                cachedRows = null;
+            }
+            if (entry.getKey() == keysMonth) {
+                keysMonth = -1;
+                cachedKeys = null;
+            }
+        }
+    }
+
+    // A crash mid-append leaves a torn frame whose rows are still in SQLite.
+    // Appending after it would make the reader take the torn length and read
+    // into the new frame, so cut the file back to its last complete frame.
+    private void truncateTornTail(int month, File file) throws IOException {
+        Long checked = checkedLengths.get(month);
+        if (!file.exists() || (checked != null && checked == file.length())) {
+            return;
+        }
+        long end = readFrames(file, new HashMap<>());
+        if (end < file.length()) {
+            Log.w(TAG, "Truncating " + file + " from " + file.length() + " to " + end + " bytes");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(end);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    // Write logs as one frame, appended or as the whole file, and sync it
+    private static void writeFrame(File file, boolean append, List<MedicationLog> logs) throws IOException {
+        byte[] frame = encode(logs);
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(frame.length);
+            data.write(frame);
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void forgetCachedMonths() {
+        cachedMonth = -1;
+        cachedRows = null;
+        keysMonth = -1;
+        cachedKeys = null;
+        checkedLengths.clear();
+    }
+
+    private static byte[] encode(List<MedicationLog> logs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(new GZIPOutputStream(bytes));
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(logs.size());
+        for (MedicationLog log : logs) {
+            data.writeLong(log.getId());
+            data.writeLong(log.getTimestamp().getTime());
+            data.writeInt(log.getBoxNumber());
+            writeNullable(data, log.getMedicineName());
+            writeNullable(data, log.getDosage());
+            writeNullable(data, log.getStatus());
+        }
+        data.close();
+        return bytes.toByteArray();
+    }
+
+    // All rows of one month, deduplicated by id, newest first
+    private List<MedicationLog> loadMonth(int month) throws IOException {
+        if (month == cachedMonth) {
+            return cachedRows;
+        }
+
+        Map<Long, MedicationLog> byId = new LinkedHashMap<>();
+        File file = segmentFile(month);
+        if (file.exists()) {
+            readFrames(file, byId);
+        }
+
+        List<MedicationLog> rows = new ArrayList<>(byId.values());
+        Collections.sort(rows, NEWEST_FIRST);
+        cachedMonth = month;
+        cachedRows = rows;
+        return rows;
+    }
+
+    // Decode a segment's frames into byId, stopping at the first one that is
+    // torn or does not decode. Returns the offset just past the last good one.
+    private static long readFrames(File file, Map<Long, MedicationLog> byId) throws IOException {
+        long size = file.length();
+        long end = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (size - end >= 4) {
+                int length = in.readInt();
+                if (length < 0 || length > size - end - 4) {
+                    break; // torn last frame
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                List<MedicationLog> logs;
+                try {
+                    logs = decode(frame);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Unreadable frame at " + end + " in " + file, e);
+                    break;
+                }
+                for (MedicationLog log : logs) {
+                    byId.put(log.getId(), log);
+                }
+                end += 4 + length;
+            }
+        } finally {
+            in.close();
+        }
+        if (end < size) {
+            Log.w(TAG, "Ignoring " + (size - end) + " bytes after the last complete frame of " + file);
+        }
+        return end;
+    }
+
+    private static List<MedicationLog> decode(byte[] frame) throws IOException {
+        DataInputStream data = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(frame)));
+        try {
+            int version = data.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unknown archive format " + version);
+            }
+            int count = data.readInt();
+            List<MedicationLog> logs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                MedicationLog log = new MedicationLog();
+                log.setId(data.readLong());
+                log.setTimestamp(new Date(data.readLong()));
+                log.setBoxNumber(data.readInt());
+                log.setMedicineName(readNullable(data));
+                log.setDosage(readNullable(data));
+                log.setStatus(readNullable(data));
+                logs.add(log);
+            }
+            return logs;
+        } finally {
+            data.close();
+        }
+    }
+
+    private static void writeNullable(DataOutputStream data, String value) throws IOException {
+        data.writeBoolean(value != null);
+        if (value != null) {
+            data.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream data) throws IOException {
+        return data.readBoolean() ? data.readUTF() : null;
+    }
+
+    private List<Integer> monthsDescending() {
+        List<Integer> months = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("logs-") && name.endsWith(".seg")) {
+                    try {
+                        months.add(Integer.parseInt(name.substring(5, name.length() - 4)));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        Collections.sort(months, Collections.reverseOrder());
+        return months;
+    }
+
+    private File segmentFile(int month) {
+        return new File(directory, "logs-" + month + ".seg");
+    }
+
+    // yyyymm in local time
+    private static int monthKey(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+    }
+}
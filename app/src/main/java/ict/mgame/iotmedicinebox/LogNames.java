@@ -0,0 +1,86 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Dictionary of the (medicine_name, dosage) pairs that medication_logs rows
+// point at through name_id. A log keeps the name it was taken under even if
+// the medication is later renamed or deleted, so this is not medications.
+//
+// Lookups and inserts must happen inside the caller's write transaction,
+// which is what keeps two writers from adding the same pair (the pair cannot
+// be UNIQUE because either half may be NULL). One instance serves one
+// transaction: its map remembers ids handed out so a batch of logs costs one
+// lookup per distinct medicine, and it is dropped with the transaction so a
+// rollback can never leave a stale id behind.
+//
+// Entries are deleted in two places only: LogRetention drops the names no
+// log points at in a statement of its own, and clearing or restoring the
+// logs empties the table along with medication_logs. Each runs as its own
+// write, and SQLite lets one write transaction at a time, so none can land
+// in the middle of a transaction holding an instance; ids are only cached
+// for that long, so a cached id never names a deleted entry. A freed name_id
+// may be handed out again later, which is harmless as no log refers to it.
+final class LogNames {
+
+    static final String TABLE = "log_names";
+
+    static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+                    "name_id INTEGER PRIMARY KEY, " +
+                    "medicine_name TEXT, " +
+                    "dosage TEXT)";
+
+    static final String INDEX_PAIR =
+            "CREATE INDEX IF NOT EXISTS idx_log_names ON " + TABLE + " (medicine_name, dosage)";
+
+    static final String QUERY_ID =
+            "SELECT name_id FROM " + TABLE + " WHERE medicine_name IS ? AND dosage IS ?";
+    static final String INSERT =
+            "INSERT INTO " + TABLE + " (medicine_name, dosage) VALUES (?, ?)";
+
+    private final SQLiteStatement query;
+    private final SQLiteStatement insert;
+    private final Map<List<String>, Long> ids = new HashMap<>();
+
+    LogNames(SQLiteStatement query, SQLiteStatement insert) {
+        this.query = query;
+        this.insert = insert;
+    }
+
+    // Uncached statements, for one-off bulk work such as a restore
+    static LogNames compile(SQLiteDatabase db) {
+        return new LogNames(db.compileStatement(QUERY_ID), db.compileStatement(INSERT));
+    }
+
+    long idFor(String medicineName, String dosage) {
+        List<String> key = Arrays.asList(medicineName, dosage);
+        Long id = ids.get(key);
+        if (id == null) {
+            StatementCache.bindText(query, 1, medicineName);
+            StatementCache.bindText(query, 2, dosage);
+            long found;
+            try {
+                found = query.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                StatementCache.bindText(insert, 1, medicineName);
+                StatementCache.bindText(insert, 2, dosage);
+                found = insert.executeInsert();
+            }
+            id = found;
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    void close() {
+        query.close();
+        insert.close();
+    }
+}
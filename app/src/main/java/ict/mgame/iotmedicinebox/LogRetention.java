@@ -0,0 +1,161 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Map;
+
+// Enforces a RetentionPolicy, then gives the freed pages back to the file
+// system.
+//
+// Rows are deleted DELETE_BATCH_SIZE at a time, one short transaction per
+// batch, so the reminder path's log writes wait at most one batch. The
+// rollup triggers see every delete. Freed pages are returned with
+// incremental auto-vacuum, VACUUM_PAGES per statement, instead of a full
+// VACUUM that rewrites the whole file under an exclusive lock. Databases
+// created before auto_vacuum was set get one full VACUUM to convert them,
+// the first time there is something to reclaim.
+final class LogRetention {
+
+    private static final String TAG = "LogRetention";
+
+    static final int DELETE_BATCH_SIZE = 500;
+
+    // Batch conditions and their order, each walked through a log index
+    static final String WHERE_STATUS_EXPIRED = "status = ? AND timestamp < ?";
+    static final String WHERE_EXPIRED = "timestamp < ?";
+    static final String OLDEST_FIRST = "timestamp, id";
+    static final int VACUUM_PAGES = 256;
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    static final class Report {
+        long rowsDeleted;
+        long archivedRowsDeleted;
+        long bytesReclaimed;
+
+        @Override
+        public String toString() {
+            return rowsDeleted + " rows and " + archivedRowsDeleted + " archived rows deleted, "
+                    + bytesReclaimed / 1024 + " KB reclaimed";
+        }
+    }
+
+    private LogRetention() {}
+
+    static Report run(SQLiteDatabase db, LogArchive archive, RetentionPolicy policy, long now)
+            throws IOException {
+        Report report = new Report();
+
+        for (Map.Entry<String, Integer> rule : policy.statusMaxAgeDays().entrySet()) {
+            report.rowsDeleted += deleteInBatches(db, WHERE_STATUS_EXPIRED,
+                    new String[]{LogStatus.arg(rule.getKey()), String.valueOf(cutoff(now, rule.getValue()))},
+                    OLDEST_FIRST);
+        }
+
+        if (policy.maxAgeDays > 0) {
+            long cutoff = cutoff(now, policy.maxAgeDays);
+            report.rowsDeleted += deleteInBatches(db, WHERE_EXPIRED,
+                    new String[]{String.valueOf(cutoff)}, OLDEST_FIRST);
+            long[] dropped = archive.dropMonthsBefore(db, cutoff);
+            report.archivedRowsDeleted += dropped[0];
+            report.bytesReclaimed += dropped[1];
+        }
+
+        // After the whole months are gone, so none is rewritten only to be dropped
+        for (Map.Entry<String, Integer> rule : policy.statusMaxAgeDays().entrySet()) {
+            long[] dropped = archive.dropStatusBefore(db, rule.getKey(), cutoff(now, rule.getValue()));
+            report.archivedRowsDeleted += dropped[0];
+            report.bytesReclaimed += dropped[1];
+        }
+
+        if (policy.maxRows > 0) {
+            long excess = DatabaseUtils.queryNumEntries(db, "medication_logs") - policy.maxRows;
+            while (excess > 0) {
+                int deleted = deleteBatch(db, "1", null, OLDEST_FIRST,
+                        (int) Math.min(excess, DELETE_BATCH_SIZE));
+                if (deleted == 0) break;
+                excess -= deleted;
+                report.rowsDeleted += deleted;
+            }
+        }
+
+        if (report.rowsDeleted > 0) {
+            // Names no log points at any more; one pass over the table
+            db.delete(LogNames.TABLE, "name_id NOT IN (SELECT DISTINCT name_id FROM medication_logs)", null);
+        }
+        report.bytesReclaimed += reclaimFreePages(db);
+
+        Log.i(TAG, "Retention: " + report);
+        return report;
+    }
+
+    private static long cutoff(long now, int days) {
+        return now - days * RetentionPolicy.DAY_MS;
+    }
+
+    private static long deleteInBatches(SQLiteDatabase db, String where, String[] args, String order) {
+        long total = 0;
+        while (true) {
+            int deleted = deleteBatch(db, where, args, order, DELETE_BATCH_SIZE);
+            total += deleted;
+            if (deleted < DELETE_BATCH_SIZE) {
+                return total;
+            }
+        }
+    }
+
+    private static int deleteBatch(SQLiteDatabase db, String where, String[] args, String order, int limit) {
+        db.beginTransactionNonExclusive();
+        try {
+            int deleted = db.delete("medication_logs", "id IN (" + batchQuery(where, order, limit) + ")", args);
+            db.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Ids of the next batch to delete
+    static String batchQuery(String where, String order, int limit) {
+        return "SELECT id FROM medication_logs WHERE " + where + " ORDER BY " + order + " LIMIT " + limit;
+    }
+
+    // Shrinks the database file by its free pages; returns the bytes released
+    static long reclaimFreePages(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) == 0) {
+            return 0;
+        }
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long before = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        } else {
+            long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            while (free > 0) {
+                // Frees one page per step and returns a row for each, so it has
+                // to be read through a cursor (execSQL would stop after one
+                // page). The transaction puts it on the primary connection.
+                db.beginTransactionNonExclusive();
+                try {
+                    Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+                    cursor.moveToFirst();
+                    cursor.close();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                long left = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+                if (left >= free) break;
+                free = left;
+            }
+        }
+
+        long after = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        return Math.max(0, before - after) * pageSize;
+    }
+}
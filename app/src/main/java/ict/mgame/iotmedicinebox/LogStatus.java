@@ -0,0 +1,68 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.sqlite.SQLiteStatement;
+
+// Dose outcomes as stored in medication_logs.status. MedicationLog keeps the
+// display strings; the table stores these codes, so a status filter is an
+// integer compare on a small index. The codes are part of the schema and
+// must never be renumbered. Anything else (including null) is stored as NULL.
+final class LogStatus {
+
+    static final int TAKEN = 0;
+    static final int MISSED = 1;
+    static final int SNOOZED = 2;
+
+    private static final String[] NAMES = {"Taken", "Missed", "Snoozed"};
+
+    private LogStatus() {}
+
+    // -1 if status is not one of the known names
+    static int code(String status) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(status)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String name(int code) {
+        return code >= 0 && code < NAMES.length ? NAMES[code] : null;
+    }
+
+    static boolean isKnown(String status) {
+        return code(status) >= 0;
+    }
+
+    static void bind(SQLiteStatement statement, int index, String status) {
+        int code = code(status);
+        if (code < 0) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, code);
+        }
+    }
+
+    // Query argument for a Tracker filter such as "Missed"
+    static String arg(String status) {
+        return String.valueOf(code(status));
+    }
+
+    // SQL expression turning a status code back into its name, for triggers and aggregates
+    static String nameSql(String codeExpression) {
+        StringBuilder sql = new StringBuilder("CASE ").append(codeExpression);
+        for (int i = 0; i < NAMES.length; i++) {
+            sql.append(" WHEN ").append(i).append(" THEN '").append(NAMES[i]).append('\'');
+        }
+        return sql.append(" END").toString();
+    }
+
+    // The reverse, used when migrating text statuses
+    static String codeSql(String nameExpression) {
+        StringBuilder sql = new StringBuilder("CASE ").append(nameExpression);
+        for (int i = 0; i < NAMES.length; i++) {
+            sql.append(" WHEN '").append(NAMES[i]).append("' THEN ").append(i);
+        }
+        return sql.append(" END").toString();
+    }
+}
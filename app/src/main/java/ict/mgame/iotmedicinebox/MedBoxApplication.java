@@ -0,0 +1,168 @@
+package ict.mgame.iotmedicinebox;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+
+public class MedBoxApplication extends Application {
+
+    private static final String TAG = "MedBoxApplication";
+
+    // How long shutdown waits for queued dose logs to be committed
+    private static final long LOG_WRITER_DRAIN_TIMEOUT_MS = 2000;
+
+    // The backup snapshot is refreshed at most this often
+    private static final long SNAPSHOT_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    // Retention runs at most this often; the time of the last run is kept here
+    private static final long RETENTION_INTERVAL_MS = 24 * 60 * 60 * 1000L;
+    private static final String MAINTENANCE_PREFS = "db_maintenance";
+    private static final String KEY_LAST_RETENTION = "last_retention";
+
+    // One long-lived connection for the whole process
+    private DatabaseHelper databaseHelper;
+    private MedicationLogWriter logWriter;
+    private MedicationRepository medicationRepository;
+    private QueryExecutor queryExecutor;
+    private DoseScheduler doseScheduler;
+    private AlertSound alertSound;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        databaseHelper = new DatabaseHelper(this);
+        logWriter = new MedicationLogWriter(databaseHelper);
+        medicationRepository = new MedicationRepository(databaseHelper);
+        queryExecutor = new QueryExecutor();
+        registerActivityLifecycleCallbacks(queryExecutor);
+
+        // Arms the next dose now and again whenever the medications change
+        doseScheduler = new DoseScheduler(this, medicationRepository);
+        medicationRepository.addObserver(doseScheduler);
+        doseScheduler.reschedule();
+
+        // Decoded before a reminder needs it; when an alarm is what started
+        // the process, this runs while ReminderActivity is being created
+        alertSound = new AlertSound(this);
+        alertSound.preload();
+
+        // Opening the database here also runs any schema upgrade off the main
+        // thread; row backfills then proceed in small batches, and once the
+        // rollup is current old logs are moved to the archive
+        new Thread(() -> {
+            restoreSnapshotIfNewDatabase();
+            SchemaMigrations.runPendingBackfills(databaseHelper.getWritableDatabase());
+            applyRetention();
+            databaseHelper.archiveLogsOlderThan(LogArchive.DEFAULT_HOT_DAYS);
+            refreshSnapshot();
+        }, "db-maintenance").start();
+
+        // Covers an orderly VM exit; onTrimMemory covers the usual background kill
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> logWriter.shutdown(LOG_WRITER_DRAIN_TIMEOUT_MS)));
+    }
+
+    // Auto Backup carries the snapshot but not the database, so a database
+    // created next to an existing snapshot means the app was just restored
+    private void restoreSnapshotIfNewDatabase() {
+        File snapshot = Snapshot.defaultFile(this);
+        if (!snapshot.exists() || !databaseHelper.isNewDatabase()) {
+            return;
+        }
+        try {
+            Snapshot.restore(databaseHelper, snapshot);
+            medicationRepository.invalidate();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not restore " + snapshot, e);
+        }
+    }
+
+    // Before archiving, so logs that are about to expire are not archived first
+    private void applyRetention() {
+        SharedPreferences prefs = getSharedPreferences(MAINTENANCE_PREFS, MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        if (now - prefs.getLong(KEY_LAST_RETENTION, 0) < RETENTION_INTERVAL_MS) {
+            return;
+        }
+        try {
+            // LogRetention logs what it reclaimed
+            databaseHelper.applyRetention(RetentionPolicy.forDevice(this));
+            prefs.edit().putLong(KEY_LAST_RETENTION, now).apply();
+        } catch (IOException e) {
+            Log.e(TAG, "Retention failed", e);
+        }
+    }
+
+    private void refreshSnapshot() {
+        File snapshot = Snapshot.defaultFile(this);
+        if (System.currentTimeMillis() - snapshot.lastModified() < SNAPSHOT_MAX_AGE_MS) {
+            return;
+        }
+        try {
+            Snapshot.write(databaseHelper, snapshot);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + snapshot, e);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The app is leaving the foreground and may be killed without notice,
+        // so push pending dose logs to disk now
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            logWriter.flush();
+        }
+    }
+
+    @Override
+    public void onTerminate() {
+        logWriter.shutdown(LOG_WRITER_DRAIN_TIMEOUT_MS);
+        super.onTerminate();
+    }
+
+    public static MedBoxApplication from(Context context) {
+        return (MedBoxApplication) context.getApplicationContext();
+    }
+
+    public static DatabaseHelper getDatabaseHelper(Context context) {
+        return from(context).databaseHelper;
+    }
+
+    // Points the screens at another database, e.g. one a benchmark filled;
+    // returns the helper it replaced so the caller can put it back. The log
+    // writer and medication repository keep the original.
+    @VisibleForTesting
+    static DatabaseHelper replaceDatabaseHelper(Context context, DatabaseHelper databaseHelper) {
+        MedBoxApplication application = from(context);
+        DatabaseHelper previous = application.databaseHelper;
+        application.databaseHelper = databaseHelper;
+        return previous;
+    }
+
+    public static MedicationLogWriter getLogWriter(Context context) {
+        return from(context).logWriter;
+    }
+
+    public static MedicationRepository getMedicationRepository(Context context) {
+        return from(context).medicationRepository;
+    }
+
+    public static QueryExecutor getQueryExecutor(Context context) {
+        return from(context).queryExecutor;
+    }
+
+    static DoseScheduler getDoseScheduler(Context context) {
+        return from(context).doseScheduler;
+    }
+
+    static AlertSound getAlertSound(Context context) {
+        return from(context).alertSound;
+    }
+}
@@ -1,5 +1,7 @@
 package ict.mgame.iotmedicinebox;
 
+import java.util.List;
+
 public class Medication {
     private long id;
     private int boxNumber;
@@ -9,6 +11,11 @@ public class Medication {
     private String days;
     private String times;
     private String notificationTime;
+    private List<Integer> doseMinutes; // minutes after midnight, ascending
+    private int weekdayMask = Recurrence.EVERY_DAY; // see Recurrence
+    private int intervalDays = 1;
+    private int startDay; // yyyymmdd, 0 = none
+    private int endDay;   // yyyymmdd, inclusive, 0 = none
     private String instructions;
     private boolean isActive;
 
@@ -47,6 +54,21 @@ public class Medication {
     public String getNotificationTime() { return notificationTime; }
     public void setNotificationTime(String notificationTime) { this.notificationTime = notificationTime; }
 
+    public List<Integer> getDoseMinutes() { return doseMinutes; }
+    public void setDoseMinutes(List<Integer> doseMinutes) { this.doseMinutes = doseMinutes; }
+
+    public int getWeekdayMask() { return weekdayMask; }
+    public void setWeekdayMask(int weekdayMask) { this.weekdayMask = weekdayMask; }
+
+    public int getIntervalDays() { return intervalDays; }
+    public void setIntervalDays(int intervalDays) { this.intervalDays = intervalDays; }
+
+    public int getStartDay() { return startDay; }
+    public void setStartDay(int startDay) { this.startDay = startDay; }
+
+    public int getEndDay() { return endDay; }
+    public void setEndDay(int endDay) { this.endDay = endDay; }
+
     public String getInstructions() { return instructions; }
     public void setInstructions(String instructions) { this.instructions = instructions; }
 
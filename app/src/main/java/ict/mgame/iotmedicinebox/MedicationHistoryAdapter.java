@@ -0,0 +1,157 @@
+package ict.mgame.iotmedicinebox;
+
+import android.graphics.Color;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Tracker list: date headers followed by the logs for that date, newest first.
+// Pages are appended as they arrive so only visible rows ever hold a view.
+public class MedicationHistoryAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+
+    private static final int TYPE_HEADER = 0;
+    private static final int TYPE_LOG = 1;
+
+    // Box colors matching AddMedicineActivity
+    private static final int[] BOX_COLORS = {
+            Color.parseColor("#FF6B6B"), // Box 1 - Red/Orange
+            Color.parseColor("#4ECDC4"), // Box 2 - Teal/Blue
+            Color.parseColor("#FFD166")  // Box 3 - Yellow
+    };
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("EEEE, dd MMMM", Locale.ENGLISH);
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("h:mm a", Locale.ENGLISH);
+
+    // Either a String date header or a MedicationLog
+    private final List<Object> items = new ArrayList<>();
+    private String lastDateKey;
+    private MedicationLog lastLog;
+
+    public void clear() {
+        items.clear();
+        lastDateKey = null;
+        lastLog = null;
+        notifyDataSetChanged();
+    }
+
+    public void appendPage(List<MedicationLog> logs) {
+        int start = items.size();
+        for (MedicationLog log : logs) {
+            String dateKey = dateFormat.format(log.getTimestamp());
+            if (!dateKey.equals(lastDateKey)) {
+                items.add(dateKey);
+                lastDateKey = dateKey;
+            }
+            items.add(log);
+            lastLog = log;
+        }
+        notifyItemRangeInserted(start, items.size() - start);
+    }
+
+    // Last loaded row, used as the keyset cursor for the next page
+    public MedicationLog getLastLog() {
+        return lastLog;
+    }
+
+    @Override
+    public int getItemCount() {
+        return items.size();
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return items.get(position) instanceof String ? TYPE_HEADER : TYPE_LOG;
+    }
+
+    @NonNull
+    @Override
+    public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        if (viewType == TYPE_HEADER) {
+            TextView dateHeader = new TextView(parent.getContext());
+            dateHeader.setTextSize(16);
+            dateHeader.setTextColor(Color.parseColor("#718096"));
+            dateHeader.setPadding(0, 24, 0, 16);
+            dateHeader.setLayoutParams(new RecyclerView.LayoutParams(
+                    RecyclerView.LayoutParams.MATCH_PARENT,
+                    RecyclerView.LayoutParams.WRAP_CONTENT));
+            return new HeaderViewHolder(dateHeader);
+        }
+
+        View itemView = LayoutInflater.from(parent.getContext()).inflate(
+                R.layout.item_medication_history, parent, false);
+        return new LogViewHolder(itemView);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
+        Object item = items.get(position);
+        if (holder instanceof HeaderViewHolder) {
+            ((HeaderViewHolder) holder).tvDate.setText((String) item);
+        } else {
+            ((LogViewHolder) holder).bind((MedicationLog) item);
+        }
+    }
+
+    static class HeaderViewHolder extends RecyclerView.ViewHolder {
+        final TextView tvDate;
+
+        HeaderViewHolder(TextView itemView) {
+            super(itemView);
+            tvDate = itemView;
+        }
+    }
+
+    class LogViewHolder extends RecyclerView.ViewHolder {
+        final View pillIcon;
+        final TextView tvMedicationName;
+        final TextView tvDosage;
+        final TextView tvTime;
+        final LinearLayout statusBadge;
+        final TextView tvStatus;
+
+        LogViewHolder(View itemView) {
+            super(itemView);
+            pillIcon = itemView.findViewById(R.id.pillIcon);
+            tvMedicationName = itemView.findViewById(R.id.tvMedicationName);
+            tvDosage = itemView.findViewById(R.id.tvDosage);
+            tvTime = itemView.findViewById(R.id.tvTime);
+            statusBadge = itemView.findViewById(R.id.statusBadge);
+            tvStatus = itemView.findViewById(R.id.tvStatus);
+        }
+
+        void bind(MedicationLog log) {
+            tvMedicationName.setText(log.getMedicineName());
+            tvDosage.setText(log.getDosage());
+            tvTime.setText(timeFormat.format(log.getTimestamp()));
+
+            // Set pill color based on box number (recycled views need the default back)
+            int boxNumber = log.getBoxNumber();
+            if (boxNumber > 0 && boxNumber <= BOX_COLORS.length) {
+                pillIcon.setBackgroundColor(BOX_COLORS[boxNumber - 1]);
+            } else {
+                pillIcon.setBackgroundResource(R.drawable.pill_icon_bg);
+            }
+
+            // Set status badge
+            if ("Taken".equals(log.getStatus())) {
+                statusBadge.setBackgroundResource(R.drawable.status_taken_bg);
+                tvStatus.setText("Taken");
+                tvStatus.setTextColor(Color.parseColor("#22543D"));
+            } else {
+                statusBadge.setBackgroundResource(R.drawable.status_missed_bg);
+                tvStatus.setText("Missed");
+                tvStatus.setTextColor(Color.parseColor("#742A2A"));
+            }
+        }
+    }
+}
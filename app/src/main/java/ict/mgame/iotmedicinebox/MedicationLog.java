@@ -9,6 +9,9 @@ public class MedicationLog {
     private int boxNumber;
     private String status; // "Taken" or "Missed"
     private Date timestamp;
+    // The scheduled dose this log answers, 0 if it answers none
+    private long medicationId;
+    private long scheduledAt; // dose time, millis
 
     public MedicationLog() {}
 
@@ -38,4 +41,16 @@ public class MedicationLog {
 
     public Date getTimestamp() { return timestamp; }
     public void setTimestamp(Date timestamp) { this.timestamp = timestamp; }
+
+    public long getMedicationId() { return medicationId; }
+    public long getScheduledAt() { return scheduledAt; }
+
+    // Ties this log to one dose occurrence; logging the same dose again
+    // updates its row instead of adding one
+    public void setDoseKey(long medicationId, long scheduledAt) {
+        this.medicationId = medicationId;
+        this.scheduledAt = scheduledAt;
+    }
+
+    public boolean hasDoseKey() { return medicationId > 0 && scheduledAt > 0; }
 }
\ No newline at end of file
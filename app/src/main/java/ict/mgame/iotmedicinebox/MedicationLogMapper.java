@@ -0,0 +1,53 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.Cursor;
+
+import java.util.Date;
+
+// Row mapper for medication_logs rows read through DatabaseHelper.SELECT_LOGS
+class MedicationLogMapper extends RowMapper<MedicationLog> {
+
+    private final int idIndex;
+    private final int medicineNameIndex;
+    private final int dosageIndex;
+    private final int boxNumberIndex;
+    private final int statusIndex;
+    private final int timestampIndex;
+    private final int medicationIdIndex;
+    private final int scheduledAtIndex;
+
+    MedicationLogMapper(Cursor cursor) {
+        idIndex = cursor.getColumnIndexOrThrow("id");
+        medicineNameIndex = cursor.getColumnIndexOrThrow("medicine_name");
+        dosageIndex = cursor.getColumnIndexOrThrow("dosage");
+        boxNumberIndex = cursor.getColumnIndexOrThrow("box_number");
+        statusIndex = cursor.getColumnIndexOrThrow("status");
+        timestampIndex = cursor.getColumnIndexOrThrow("timestamp");
+        medicationIdIndex = cursor.getColumnIndexOrThrow("medication_id");
+        scheduledAtIndex = cursor.getColumnIndexOrThrow("scheduled_at");
+    }
+
+    @Override
+    protected MedicationLog newInstance() {
+        return new MedicationLog();
+    }
+
+    @Override
+    protected void fill(Cursor cursor, MedicationLog log) {
+        log.setId(cursor.getLong(idIndex));
+        log.setMedicineName(cursor.getString(medicineNameIndex));
+        log.setDosage(cursor.getString(dosageIndex));
+        log.setBoxNumber(cursor.getInt(boxNumberIndex));
+        log.setStatus(cursor.isNull(statusIndex) ? null : LogStatus.name(cursor.getInt(statusIndex)));
+        // getLong gives 0 for NULL, which is "no dose key"
+        log.setDoseKey(cursor.getLong(medicationIdIndex), cursor.getLong(scheduledAtIndex));
+
+        // Reuse the Date when refilling an existing instance
+        long timestamp = cursor.getLong(timestampIndex);
+        if (log.getTimestamp() != null) {
+            log.getTimestamp().setTime(timestamp);
+        } else {
+            log.setTimestamp(new Date(timestamp));
+        }
+    }
+}
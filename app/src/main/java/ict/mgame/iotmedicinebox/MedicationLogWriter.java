@@ -0,0 +1,160 @@
+package ict.mgame.iotmedicinebox;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Single background thread that queues dose log events and commits them in
+// batches. A batch is written once it reaches MAX_BATCH_SIZE events or its
+// oldest event has waited MAX_BATCH_DELAY_MS, whichever comes first.
+public class MedicationLogWriter {
+
+    private static final String TAG = "MedicationLogWriter";
+
+    static final int MAX_BATCH_SIZE = 64;
+    static final long MAX_BATCH_DELAY_MS = 250;
+
+    private final DatabaseHelper databaseHelper;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private boolean shutDown = false;
+
+    // A queued log event, or a barrier (log == null) that completes once
+    // everything queued before it has been committed
+    private static class Pending {
+        final MedicationLog log;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        final boolean stop;
+
+        Pending(MedicationLog log, boolean stop) {
+            this.log = log;
+            this.stop = stop;
+        }
+    }
+
+    public MedicationLogWriter(DatabaseHelper databaseHelper) {
+        this.databaseHelper = databaseHelper;
+        writerThread = new Thread(this::runLoop, "medication-log-writer");
+        writerThread.start();
+    }
+
+    // Queue a log event; returns at once. The future completes with the row id
+    // once the event is durable, or exceptionally if the batch failed.
+    public CompletableFuture<Long> log(String medicineName, String dosage, int boxNumber, String status) {
+        MedicationLog log = new MedicationLog(medicineName, dosage, boxNumber, status,
+                new Date(System.currentTimeMillis()));
+        return enqueue(new Pending(log, false));
+    }
+
+    // Log the answer to one scheduled dose. Every call for the same
+    // (medicationId, scheduledAt) lands in the same row, so a repeated
+    // reminder, a retry or a replay can be logged again without a duplicate.
+    public CompletableFuture<Long> logDose(long medicationId, long scheduledAt, String medicineName, String dosage,
+                                           int boxNumber, String status) {
+        MedicationLog log = new MedicationLog(medicineName, dosage, boxNumber, status,
+                new Date(System.currentTimeMillis()));
+        log.setDoseKey(medicationId, scheduledAt);
+        return enqueue(new Pending(log, false));
+    }
+
+    // Commit whatever is queued now instead of waiting for the time threshold
+    public CompletableFuture<Long> flush() {
+        return enqueue(new Pending(null, false));
+    }
+
+    // Drain the queue and stop the writer thread, waiting up to timeoutMs
+    public void shutdown(long timeoutMs) {
+        synchronized (this) {
+            if (shutDown) return;
+            shutDown = true;
+            queue.add(new Pending(null, true));
+        }
+        try {
+            writerThread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized CompletableFuture<Long> enqueue(Pending pending) {
+        if (shutDown) {
+            pending.future.completeExceptionally(new IllegalStateException("Log writer is shut down"));
+            return pending.future;
+        }
+        queue.add(pending);
+        return pending.future;
+    }
+
+    private void runLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        List<Pending> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        boolean running = true;
+        while (running) {
+            try {
+                Pending first = queue.take();
+                batch.add(first);
+                boolean cutBatch = first.log == null;
+
+                long deadline = SystemClock.uptimeMillis() + MAX_BATCH_DELAY_MS;
+                while (!cutBatch && batch.size() < MAX_BATCH_SIZE) {
+                    long wait = deadline - SystemClock.uptimeMillis();
+                    if (wait <= 0) break;
+                    Pending next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    cutBatch = next.log == null;
+                }
+            } catch (InterruptedException e) {
+                // Treat an interrupt like a stop request: drain and exit
+                queue.drainTo(batch);
+                running = false;
+            }
+
+            for (Pending pending : batch) {
+                if (pending.stop) {
+                    running = false;
+                }
+            }
+            if (!running) {
+                // Nothing can be queued after the stop marker, so this is the last batch
+                queue.drainTo(batch);
+            }
+
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        List<MedicationLog> logs = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            if (pending.log != null) {
+                logs.add(pending.log);
+            }
+        }
+
+        try {
+            if (!logs.isEmpty()) {
+                databaseHelper.insertMedicationLogs(logs);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to write " + logs.size() + " medication logs", e);
+            for (Pending pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        for (Pending pending : batch) {
+            pending.future.complete(pending.log != null ? pending.log.getId() : null);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.Cursor;
+
+// Row mapper for the medications table
+class MedicationMapper extends RowMapper<Medication> {
+
+    private final int idIndex;
+    private final int boxNumberIndex;
+    private final int boxNameIndex;
+    private final int medicineNameIndex;
+    private final int frequencyIndex;
+    private final int daysIndex;
+    private final int timesIndex;
+    private final int notificationTimeIndex;
+    private final int weekdayMaskIndex;
+    private final int intervalDaysIndex;
+    private final int startDayIndex;
+    private final int endDayIndex;
+    private final int instructionsIndex;
+    private final int isActiveIndex;
+
+    MedicationMapper(Cursor cursor) {
+        idIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_ID);
+        boxNumberIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_BOX_NUMBER);
+        boxNameIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_BOX_NAME);
+        medicineNameIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MEDICINE_NAME);
+        frequencyIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_FREQUENCY);
+        daysIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_DAYS);
+        timesIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_TIMES);
+        notificationTimeIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_NOTIFICATION_TIME);
+        weekdayMaskIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_WEEKDAY_MASK);
+        intervalDaysIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_INTERVAL_DAYS);
+        startDayIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_START_DAY);
+        endDayIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_END_DAY);
+        instructionsIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_INSTRUCTIONS);
+        isActiveIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_IS_ACTIVE);
+    }
+
+    @Override
+    protected Medication newInstance() {
+        return new Medication();
+    }
+
+    @Override
+    protected void fill(Cursor cursor, Medication medication) {
+        medication.setId(cursor.getLong(idIndex));
+        medication.setBoxNumber(cursor.getInt(boxNumberIndex));
+        medication.setBoxName(cursor.getString(boxNameIndex));
+        medication.setMedicineName(cursor.getString(medicineNameIndex));
+        medication.setFrequency(cursor.getString(frequencyIndex));
+        medication.setDays(cursor.getString(daysIndex));
+        medication.setTimes(cursor.getString(timesIndex));
+        medication.setNotificationTime(cursor.getString(notificationTimeIndex));
+        medication.setWeekdayMask(cursor.getInt(weekdayMaskIndex));
+        medication.setIntervalDays(cursor.getInt(intervalDaysIndex));
+        // NULL reads as 0, which is what "no bound" is
+        medication.setStartDay(cursor.getInt(startDayIndex));
+        medication.setEndDay(cursor.getInt(endDayIndex));
+        medication.setInstructions(cursor.getString(instructionsIndex));
+        medication.setActive(cursor.getInt(isActiveIndex) == 1);
+    }
+}
@@ -0,0 +1,161 @@
+package ict.mgame.iotmedicinebox;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Application-wide view of the medications table. The first read loads the
+// whole table (a few dozen rows at most) into an immutable snapshot; later
+// reads are served from memory until a write through this class drops it.
+// Screens register an Observer and are told on the main thread when the data
+// changed, and can compare getVersion() with what they last drew.
+//
+// The Medication objects handed out are shared by every reader and must be
+// treated as read-only; build a new one to save changes.
+public class MedicationRepository {
+
+    public interface Observer {
+        void onMedicationsChanged();
+    }
+
+    private final DatabaseHelper databaseHelper;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Observer> observers = new CopyOnWriteArrayList<>();
+
+    // Guarded by this
+    private List<Medication> snapshot;
+    private Map<Long, Medication> snapshotById;
+    private long version;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    MedicationRepository(DatabaseHelper databaseHelper) {
+        this.databaseHelper = databaseHelper;
+    }
+
+    // All medications in dose-time order, as getAllMedications() returns them
+    public synchronized List<Medication> getAll() {
+        ensureLoaded();
+        return snapshot;
+    }
+
+    public synchronized Medication getById(long id) {
+        ensureLoaded();
+        return snapshotById.get(id);
+    }
+
+    // The loaded medications by id, or null if they are not in memory right
+    // now; never reads the database, for callers that must not wait on it
+    public synchronized Map<Long, Medication> peekById() {
+        return snapshotById;
+    }
+
+    public synchronized List<Medication> getForBox(int boxNumber) {
+        ensureLoaded();
+        List<Medication> medications = new ArrayList<>();
+        for (Medication medication : snapshot) {
+            if (medication.getBoxNumber() == boxNumber && medication.isActive()) {
+                medications.add(medication);
+            }
+        }
+        return medications;
+    }
+
+    public synchronized boolean hasMedicationInBox(int boxNumber) {
+        ensureLoaded();
+        for (Medication medication : snapshot) {
+            if (medication.getBoxNumber() == boxNumber && medication.isActive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Bumped on every change; starts at 0 before anything was written
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public long add(Medication medication) {
+        long id = databaseHelper.addMedication(medication);
+        if (id != -1) {
+            invalidate();
+        }
+        return id;
+    }
+
+    public int update(Medication medication) {
+        int updated = databaseHelper.updateMedication(medication);
+        if (updated > 0) {
+            invalidate();
+        }
+        return updated;
+    }
+
+    public int updateBoxName(int boxNumber, String boxName) {
+        int updated = databaseHelper.updateBoxName(boxNumber, boxName);
+        if (updated > 0) {
+            invalidate();
+        }
+        return updated;
+    }
+
+    public void delete(long id) {
+        databaseHelper.deleteMedication(id);
+        invalidate();
+    }
+
+    // For writes that bypassed the repository (restore, import, ...)
+    public void invalidate() {
+        synchronized (this) {
+            snapshot = null;
+            snapshotById = null;
+            version++;
+        }
+        mainHandler.post(() -> {
+            for (Observer observer : observers) {
+                observer.onMedicationsChanged();
+            }
+        });
+    }
+
+    public void addObserver(Observer observer) {
+        observers.add(observer);
+    }
+
+    public void removeObserver(Observer observer) {
+        observers.remove(observer);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private void ensureLoaded() {
+        if (snapshot != null) {
+            hits.incrementAndGet();
+            return;
+        }
+        misses.incrementAndGet();
+
+        List<Medication> medications = databaseHelper.getAllMedications();
+        Map<Long, Medication> byId = new HashMap<>();
+        for (Medication medication : medications) {
+            byId.put(medication.getId(), medication);
+        }
+        snapshot = Collections.unmodifiableList(medications);
+        snapshotById = Collections.unmodifiableMap(byId);
+    }
+}
@@ -0,0 +1,33 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.sqlite.SQLiteDatabase;
+
+// One schema step from fromVersion to fromVersion + 1. See SchemaMigrations.
+abstract class Migration {
+
+    final int fromVersion;
+
+    Migration(int fromVersion) {
+        this.fromVersion = fromVersion;
+    }
+
+    // Schema change. Runs inside onUpgrade's single transaction, so it should
+    // only do work that does not grow with the number of rows.
+    abstract void migrate(SQLiteDatabase db);
+
+    // Indexes to (re)create right after migrate(), e.g. for a rebuilt table
+    String[] indexes() {
+        return new String[0];
+    }
+
+    // Whether this step leaves rows to rewrite after the upgrade
+    boolean hasBackfill() {
+        return false;
+    }
+
+    // Rewrite at most limit rows with rowid > afterRowId. Returns the last
+    // rowid handled, or -1 once there is nothing left to do.
+    long backfillBatch(SQLiteDatabase db, long afterRowId, int limit) {
+        return -1;
+    }
+}
@@ -39,6 +39,8 @@ public class ProfileActivity extends Activity {
 
     private static final int PICK_IMAGE_REQUEST = 1;
     private static final String PREFS_NAME = "MedTrackerPrefs";
+    // Grouping window choices in minutes, as listed in spinnerGroupingWindow
+    private static final int[] GROUPING_WINDOWS = {0, 2, 5, 10, 15};
     private static final String TAG = "ProfileActivity";
 
     // UI Components
@@ -50,7 +52,7 @@ public class ProfileActivity extends Activity {
     private TextView tvDateOfBirth;
     private RadioGroup rgGender;
     private RadioButton rbMale, rbFemale, rbOther;
-    private Spinner spinnerBloodType;
+    private Spinner spinnerBloodType, spinnerGroupingWindow;
     private SwitchCompat switchMedicationReminders, switchRefillAlerts, switchMissedDoseAlerts;
     private Button btnSaveProfile;
     private BottomNavigationView bottomNav;
@@ -67,6 +69,7 @@ public class ProfileActivity extends Activity {
 
         initializeViews();
         setupBloodTypeSpinner();
+        setupGroupingWindowSpinner();
         setupDatePicker();
         setupListeners();
         loadSavedData();
@@ -107,6 +110,7 @@ public class ProfileActivity extends Activity {
             switchMedicationReminders = findViewById(R.id.switchMedicationReminders);
             switchRefillAlerts = findViewById(R.id.switchRefillAlerts);
             switchMissedDoseAlerts = findViewById(R.id.switchMissedDoseAlerts);
+            spinnerGroupingWindow = findViewById(R.id.spinnerGroupingWindow);
 
             // Save button
             btnSaveProfile = findViewById(R.id.btnSaveProfile);
@@ -167,6 +171,20 @@ public class ProfileActivity extends Activity {
         spinnerBloodType.setAdapter(adapter);
     }
 
+    private void setupGroupingWindowSpinner() {
+        String[] labels = new String[GROUPING_WINDOWS.length];
+        for (int i = 0; i < GROUPING_WINDOWS.length; i++) {
+            labels[i] = GROUPING_WINDOWS[i] == 0 ? "Off" : GROUPING_WINDOWS[i] + " min";
+        }
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(
+                this,
+                android.R.layout.simple_spinner_item,
+                labels
+        );
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinnerGroupingWindow.setAdapter(adapter);
+    }
+
     private void setupDatePicker() {
         layoutDateOfBirth.setOnClickListener(v -> showDatePicker());
     }
@@ -222,6 +240,15 @@ public class ProfileActivity extends Activity {
         if (ivProfilePicture != null) {
             ivProfilePicture.setOnClickListener(v -> openImagePicker());
         }
+
+        // Debug builds only: database latency screen
+        View title = findViewById(R.id.tvProfileTitle);
+        if (title != null && QueryStatsActivity.isAvailable(this)) {
+            title.setOnLongClickListener(v -> {
+                QueryStatsActivity.start(this);
+                return true;
+            });
+        }
     }
 
     private void showExitConfirmationDialog() {
@@ -339,6 +366,11 @@ public class ProfileActivity extends Activity {
         editor.putBoolean("medicationReminders", switchMedicationReminders.isChecked());
         editor.putBoolean("refillAlerts", switchRefillAlerts.isChecked());
         editor.putBoolean("missedDoseAlerts", switchMissedDoseAlerts.isChecked());
+        // Kept with the scheduler's own prefs; re-arms only if it changed
+        int groupingWindow = GROUPING_WINDOWS[spinnerGroupingWindow.getSelectedItemPosition()];
+        if (groupingWindow != DoseScheduler.getGroupingWindowMinutes(this)) {
+            MedBoxApplication.getDoseScheduler(this).setGroupingWindowMinutes(groupingWindow);
+        }
 
         // Profile picture URI
         if (selectedImageUri != null) {
@@ -404,6 +436,12 @@ public class ProfileActivity extends Activity {
         switchMedicationReminders.setChecked(prefs.getBoolean("medicationReminders", true));
         switchRefillAlerts.setChecked(prefs.getBoolean("refillAlerts", true));
         switchMissedDoseAlerts.setChecked(prefs.getBoolean("missedDoseAlerts", true));
+        int groupingWindow = DoseScheduler.getGroupingWindowMinutes(this);
+        for (int i = 0; i < GROUPING_WINDOWS.length; i++) {
+            if (GROUPING_WINDOWS[i] == groupingWindow) {
+                spinnerGroupingWindow.setSelection(i);
+            }
+        }
 
         // Profile picture
         String imageUriString = prefs.getString("profileImageUri", "");
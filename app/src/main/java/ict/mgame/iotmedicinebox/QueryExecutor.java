@@ -0,0 +1,209 @@
+package ict.mgame.iotmedicinebox;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs database work off the main thread and hands results back on it.
+//
+// Every task belongs to an Activity. When that activity is destroyed its
+// pending reads are cancelled and no result is delivered to it any more;
+// writes still run to completion, only their callback is dropped. The pool is
+// small and its queue bounded: with WAL, two readers are enough to keep the
+// screens fed, and writers serialize inside SQLite anyway. A read that finds
+// the queue full is dropped; a write never is, it goes to an overflow thread.
+//
+// Callbacks run on the main thread; everything passed as work runs on a pool
+// thread and must not touch views.
+public final class QueryExecutor implements Application.ActivityLifecycleCallbacks {
+
+    private static final String TAG = "QueryExecutor";
+
+    private static final int THREADS = 2;
+    private static final int QUEUE_CAPACITY = 64;
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    // Called instead of the Callback when the work threw
+    public interface ErrorCallback {
+        void onError(Exception error);
+    }
+
+    // A submitted task; cancel() is safe to call from the main thread at any time
+    public final class Task<T> implements Runnable {
+        private final Activity owner;
+        private final Callable<T> work;
+        private final Callback<T> callback;
+        private final ErrorCallback onError;
+        private final boolean isWrite;
+        private volatile boolean cancelled;
+
+        private Task(Activity owner, Callable<T> work, Callback<T> callback, ErrorCallback onError,
+                     boolean isWrite) {
+            this.owner = owner;
+            this.work = work;
+            this.callback = callback;
+            this.onError = onError;
+            this.isWrite = isWrite;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled && !isWrite) return;
+
+            final T result;
+            try {
+                result = work.call();
+            } catch (Exception e) {
+                Log.e(TAG, "Database task failed", e);
+                mainHandler.post(() -> {
+                    untrack(this);
+                    if (!cancelled && onError != null) {
+                        onError.onError(e);
+                    }
+                });
+                return;
+            }
+            mainHandler.post(() -> {
+                untrack(this);
+                if (!cancelled && callback != null) {
+                    callback.onResult(result);
+                }
+            });
+        }
+
+        public void cancel() {
+            cancelled = true;
+            if (!isWrite) {
+                executor.remove(this);
+            }
+        }
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor;
+    // Takes writes the pool's queue has no room for; unbounded, one at a time
+    private final ThreadPoolExecutor overflow;
+
+    // Owner -> tasks not yet delivered; only touched on the main thread
+    private final Map<Activity, List<Task<?>>> pending = new HashMap<>();
+
+    QueryExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "db-query-" + count.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        overflow = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "db-write-overflow"));
+        overflow.allowCoreThreadTimeOut(true);
+    }
+
+    // Read work; skipped entirely if owner is gone before it starts. Returns
+    // null if the queue is full, in which case the caller simply gets no result.
+    public <T> Task<T> query(Activity owner, Callable<T> work, Callback<T> callback) {
+        Task<T> task = new Task<>(owner, work, callback, null, false);
+        try {
+            submit(task);
+        } catch (RejectedExecutionException e) {
+            untrack(task);
+            Log.w(TAG, "Query queue full, dropping read for " + owner.getClass().getSimpleName());
+            return null;
+        }
+        return task;
+    }
+
+    // Write work; always runs, even if owner is destroyed before it finishes
+    public <T> Task<T> write(Activity owner, Callable<T> work, Callback<T> callback) {
+        return write(owner, work, callback, null);
+    }
+
+    // As above; onError runs on the main thread instead of callback if the work throws
+    public <T> Task<T> write(Activity owner, Callable<T> work, Callback<T> callback, ErrorCallback onError) {
+        Task<T> task = new Task<>(owner, work, callback, onError, true);
+        try {
+            submit(task);
+        } catch (RejectedExecutionException e) {
+            // Still tracked: it untracks itself once it has run, like any other
+            Log.w(TAG, "Query queue full, running write for " + owner.getClass().getSimpleName()
+                    + " on the overflow thread");
+            overflow.execute(task);
+        }
+        return task;
+    }
+
+    private void submit(Task<?> task) {
+        List<Task<?>> tasks = pending.get(task.owner);
+        if (tasks == null) {
+            tasks = new ArrayList<>();
+            pending.put(task.owner, tasks);
+        }
+        tasks.add(task);
+        executor.execute(task);
+    }
+
+    private void untrack(Task<?> task) {
+        List<Task<?>> tasks = pending.get(task.owner);
+        if (tasks != null) {
+            tasks.remove(task);
+            if (tasks.isEmpty()) {
+                pending.remove(task.owner);
+            }
+        }
+    }
+
+    // Cancels everything owner still has queued or in flight
+    public void cancelAll(Activity owner) {
+        List<Task<?>> tasks = pending.remove(owner);
+        if (tasks != null) {
+            for (Task<?> task : tasks) {
+                task.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+        cancelAll(activity);
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+    @Override
+    public void onActivityStarted(Activity activity) {}
+
+    @Override
+    public void onActivityResumed(Activity activity) {}
+
+    @Override
+    public void onActivityPaused(Activity activity) {}
+
+    @Override
+    public void onActivityStopped(Activity activity) {}
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+}
@@ -0,0 +1,282 @@
+package ict.mgame.iotmedicinebox;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Latency of every DatabaseHelper operation, kept in memory for the process.
+//
+// Each operation is wrapped in a Timer: it opens an android.os.Trace section
+// (visible in Perfetto / systrace as "db:<operation>") and, when closed, adds
+// the elapsed time to that operation's histogram. Operations slower than the
+// threshold also go into a fixed-size ring buffer with their SQL and row
+// count, oldest entry overwritten first.
+//
+// Histograms use log-linear buckets: 8 per power of two of microseconds, so
+// a reported percentile is within about 6% of the true value, and recording
+// is a shift and an increment with no allocation.
+final class QueryStats {
+
+    private static final String TAG = "QueryStats";
+
+    static final long DEFAULT_SLOW_MILLIS = 50;
+    static final int SLOW_LOG_CAPACITY = 64;
+
+    // Trace section names are cut off by the platform past this length
+    private static final int MAX_TRACE_NAME = 127;
+
+    // Histogram buckets per power of two, see bucketOf
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // About 18 minutes; anything longer is counted as that
+    private static final long MAX_MICROS = (1L << 30) - 1;
+    private static final int BUCKETS = bucketOf(MAX_MICROS) + 1;
+
+    // One operation's totals at the time of the call, in microseconds
+    static final class OperationStats {
+        final String operation;
+        final long count;
+        final long p50Micros;
+        final long p95Micros;
+        final long p99Micros;
+        final long maxMicros;
+        final long totalMicros;
+
+        OperationStats(String operation, long count, long p50Micros, long p95Micros, long p99Micros,
+                       long maxMicros, long totalMicros) {
+            this.operation = operation;
+            this.count = count;
+            this.p50Micros = p50Micros;
+            this.p95Micros = p95Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+            this.totalMicros = totalMicros;
+        }
+    }
+
+    // A call that took longer than the threshold
+    static final class SlowQuery {
+        final long at; // wall clock, when the call finished
+        final String operation;
+        final String sql;
+        final long micros;
+        final long rows; // -1 if the operation did not report one
+        final String thread;
+
+        SlowQuery(long at, String operation, String sql, long micros, long rows, String thread) {
+            this.at = at;
+            this.operation = operation;
+            this.sql = sql;
+            this.micros = micros;
+            this.rows = rows;
+            this.thread = thread;
+        }
+    }
+
+    // One timed call. Close it on the thread that opened it, in a
+    // try-with-resources block, so trace sections nest properly.
+    final class Timer implements AutoCloseable {
+        private final Histogram histogram;
+        private final String operation;
+        private String sql;
+        private long rows = -1;
+        private final long startNanos;
+
+        private Timer(Histogram histogram, String operation, String sql) {
+            this.histogram = histogram;
+            this.operation = operation;
+            this.sql = sql;
+            this.startNanos = SystemClock.elapsedRealtimeNanos();
+        }
+
+        // Rows returned or changed, for the slow query log
+        Timer rows(long rows) {
+            this.rows = rows;
+            return this;
+        }
+
+        // For operations that only know their SQL once the arguments are seen
+        Timer sql(String sql) {
+            this.sql = sql;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            long micros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+            Trace.endSection();
+            record(histogram, operation, sql, micros, rows);
+        }
+    }
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private volatile long slowMicros = DEFAULT_SLOW_MILLIS * 1000;
+
+    // Ring buffer; slowNext is where the next entry goes
+    private final SlowQuery[] slowLog = new SlowQuery[SLOW_LOG_CAPACITY];
+    private int slowNext;
+    private long slowTotal;
+
+    Timer time(String operation, String sql) {
+        Histogram histogram = histogramFor(operation);
+        Trace.beginSection(histogram.traceName);
+        return new Timer(histogram, operation, sql);
+    }
+
+    // A call timed elsewhere; tests use it to feed known latencies
+    void record(String operation, String sql, long micros, long rows) {
+        record(histogramFor(operation), operation, sql, micros, rows);
+    }
+
+    private void record(Histogram histogram, String operation, String sql, long micros, long rows) {
+        histogram.record(micros);
+        if (micros >= slowMicros) {
+            recordSlow(new SlowQuery(System.currentTimeMillis(), operation, sql, micros, rows,
+                    Thread.currentThread().getName()));
+        }
+    }
+
+    private Histogram histogramFor(String operation) {
+        Histogram histogram = histograms.get(operation);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(operation, Histogram::new);
+        }
+        return histogram;
+    }
+
+    void setSlowThresholdMillis(long millis) {
+        slowMicros = millis * 1000;
+    }
+
+    long getSlowThresholdMillis() {
+        return slowMicros / 1000;
+    }
+
+    // Every operation called at least once, slowest p99 first
+    List<OperationStats> operations() {
+        List<OperationStats> result = new ArrayList<>(histograms.size());
+        for (Histogram histogram : histograms.values()) {
+            OperationStats stats = histogram.stats();
+            if (stats.count > 0) {
+                result.add(stats);
+            }
+        }
+        Collections.sort(result, (a, b) -> Long.compare(b.p99Micros, a.p99Micros));
+        return result;
+    }
+
+    // Entries still in the ring buffer, newest first
+    synchronized List<SlowQuery> slowQueries() {
+        int size = (int) Math.min(slowTotal, SLOW_LOG_CAPACITY);
+        List<SlowQuery> result = new ArrayList<>(size);
+        for (int i = 1; i <= size; i++) {
+            result.add(slowLog[(slowNext - i + SLOW_LOG_CAPACITY) % SLOW_LOG_CAPACITY]);
+        }
+        return result;
+    }
+
+    // Slow calls since the last reset, including those overwritten since
+    synchronized long slowQueryCount() {
+        return slowTotal;
+    }
+
+    synchronized void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.clear();
+        }
+        for (int i = 0; i < SLOW_LOG_CAPACITY; i++) {
+            slowLog[i] = null;
+        }
+        slowNext = 0;
+        slowTotal = 0;
+    }
+
+    private synchronized void recordSlow(SlowQuery query) {
+        slowLog[slowNext] = query;
+        slowNext = (slowNext + 1) % SLOW_LOG_CAPACITY;
+        slowTotal++;
+        Log.w(TAG, "Slow " + query.operation + ": " + query.micros / 1000 + " ms, " + query.rows + " rows");
+    }
+
+    // Bucket i < SUB_BUCKETS holds exactly i microseconds; above that each
+    // power of two is split into SUB_BUCKETS equal buckets
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        micros = Math.min(micros, MAX_MICROS);
+        int msb = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (msb - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Middle of the bucket's range
+    static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return low + ((1L << shift) >> 1);
+    }
+
+    private static final class Histogram {
+        final String operation;
+        final String traceName;
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+        private long max;
+        private long total;
+
+        Histogram(String operation) {
+            this.operation = operation;
+            String name = "db:" + operation;
+            this.traceName = name.length() > MAX_TRACE_NAME ? name.substring(0, MAX_TRACE_NAME) : name;
+        }
+
+        synchronized void record(long micros) {
+            counts[bucketOf(micros)]++;
+            count++;
+            total += micros;
+            if (micros > max) {
+                max = micros;
+            }
+        }
+
+        synchronized OperationStats stats() {
+            return new OperationStats(operation, count, percentile(0.50), percentile(0.95), percentile(0.99),
+                    max, total);
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = 0;
+            }
+            count = 0;
+            max = 0;
+            total = 0;
+        }
+
+        // Smallest bucket value with at least fraction of the calls at or below it
+        private long percentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(valueOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ict.mgame.iotmedicinebox;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.os.Bundle;
+import android.widget.Button;
+import android.widget.TextView;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+// Debug screen for QueryStats: per-operation percentiles and the slow query
+// log. Only reachable in debuggable builds (long-press the Profile title).
+// Everything shown is already in memory, so it is read on the main thread.
+public class QueryStatsActivity extends Activity {
+
+    private QueryStats queryStats;
+    private TextView tvSlowThreshold, tvOperations, tvSlowTitle, tvSlowQueries;
+
+    static boolean isAvailable(Context context) {
+        return (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    }
+
+    static void start(Context context) {
+        if (isAvailable(context)) {
+            context.startActivity(new Intent(context, QueryStatsActivity.class));
+        }
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        if (!isAvailable(this)) {
+            finish();
+            return;
+        }
+        setContentView(R.layout.activity_query_stats);
+
+        queryStats = MedBoxApplication.getDatabaseHelper(this).getQueryStats();
+        tvSlowThreshold = findViewById(R.id.tvSlowThreshold);
+        tvOperations = findViewById(R.id.tvOperations);
+        tvSlowTitle = findViewById(R.id.tvSlowTitle);
+        tvSlowQueries = findViewById(R.id.tvSlowQueries);
+
+        Button btnRefresh = findViewById(R.id.btnRefresh);
+        Button btnReset = findViewById(R.id.btnReset);
+        btnRefresh.setOnClickListener(v -> refresh());
+        btnReset.setOnClickListener(v -> {
+            queryStats.reset();
+            refresh();
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    private void refresh() {
+        tvSlowThreshold.setText("Slow query threshold: " + queryStats.getSlowThresholdMillis() + " ms");
+
+        List<QueryStats.OperationStats> operations = queryStats.operations();
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.US, "%-30s %7s %8s %8s %8s %8s%n",
+                "operation", "count", "p50", "p95", "p99", "max"));
+        for (QueryStats.OperationStats stats : operations) {
+            text.append(String.format(Locale.US, "%-30s %7d %8d %8d %8d %8d%n",
+                    stats.operation, stats.count, stats.p50Micros, stats.p95Micros, stats.p99Micros,
+                    stats.maxMicros));
+        }
+        if (operations.isEmpty()) {
+            text.append("No operations yet");
+        }
+        tvOperations.setText(text);
+
+        List<QueryStats.SlowQuery> slow = queryStats.slowQueries();
+        tvSlowTitle.setText("Slow queries (" + slow.size() + " of " + queryStats.slowQueryCount() + ")");
+        SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.getDefault());
+        text.setLength(0);
+        for (QueryStats.SlowQuery query : slow) {
+            text.append(timeFormat.format(new Date(query.at)))
+                    .append("  ").append(query.operation)
+                    .append("  ").append(query.micros / 1000).append(" ms")
+                    .append(query.rows >= 0 ? "  " + query.rows + " rows" : "")
+                    .append("  [").append(query.thread).append("]\n")
+                    .append(query.sql).append("\n\n");
+        }
+        tvSlowQueries.setText(text);
+    }
+}
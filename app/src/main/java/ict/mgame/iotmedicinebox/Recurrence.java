@@ -0,0 +1,380 @@
+package ict.mgame.iotmedicinebox;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.function.LongConsumer;
+
+// When a medication is due: its dose times on every day that passes its rules.
+//
+// A day passes if it lies within [startDay, endDay], is a whole number of
+// intervalDays after startDay, and its weekday is in weekdayMask. Days are
+// local calendar days, stored as yyyymmdd like the adherence rollup and
+// worked on as days since 1970-01-01 so stepping and counting are integer
+// arithmetic; only turning a (day, minute) into an instant asks the time
+// zone. Nothing is expanded ahead of time: nextAfter finds one occurrence in
+// at most seven strides of the interval, and countBetween counts a window of
+// any length in constant time.
+final class Recurrence {
+
+    // Bit 0 is Monday, bit 6 Sunday
+    static final int EVERY_DAY = 0x7F;
+    static final int WEEKDAYS = 0x1F;
+    static final int WEEKENDS = 0x60;
+
+    private static final long MINUTE = 60_000L;
+    private static final long DAY = 24 * 60 * MINUTE;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private static final String[] DAY_NAMES = {
+            "monday", "tuesday", "wednesday", "thursday", "friday", "saturday", "sunday"
+    };
+
+    private final int[] minutes; // ascending, distinct
+    private final int weekdayMask;
+    private final int intervalDays;
+    private final long firstDay; // epoch days, inclusive
+    private final long lastDay;
+    private final long anchorDay;
+
+    // startDay and endDay are yyyymmdd, 0 for open-ended
+    Recurrence(List<Integer> doseMinutes, int weekdayMask, int intervalDays, int startDay, int endDay) {
+        int[] sorted = new int[doseMinutes != null ? doseMinutes.size() : 0];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = doseMinutes.get(i);
+        }
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        this.minutes = Arrays.copyOf(sorted, distinct);
+        this.weekdayMask = weekdayMask & EVERY_DAY;
+        this.intervalDays = Math.max(1, intervalDays);
+        this.firstDay = startDay > 0 ? epochDay(startDay) : Long.MIN_VALUE / 2;
+        this.lastDay = endDay > 0 ? epochDay(endDay) : Long.MAX_VALUE / 2;
+        // Without a start day, every-N-days counts from 1970-01-01
+        this.anchorDay = startDay > 0 ? firstDay : 0;
+    }
+
+    static Recurrence of(Medication medication) {
+        return new Recurrence(medication.getDoseMinutes(), medication.getWeekdayMask(),
+                medication.getIntervalDays(), medication.getStartDay(), medication.getEndDay());
+    }
+
+    boolean isEmpty() {
+        return minutes.length == 0 || weekdayMask == 0 || lastDay < firstDay;
+    }
+
+    // Whether the medication is due at all on the local day yyyymmdd
+    boolean occursOn(int yyyymmdd) {
+        return matches(epochDay(yyyymmdd));
+    }
+
+    // Earliest occurrence strictly after millis, or -1 if there is none
+    long nextAfter(long millis) {
+        return next(millis, -1);
+    }
+
+    // Earliest occurrence of one dose time strictly after millis, or -1
+    long nextAfter(int minuteOfDay, long millis) {
+        return next(millis, minuteOfDay);
+    }
+
+    // Number of occurrences in [fromMillis, toMillis). Whole days in between
+    // are counted by arithmetic, so a year costs the same as a day.
+    int countBetween(long fromMillis, long toMillis) {
+        return countBetween(fromMillis, toMillis, TimeZone.getDefault());
+    }
+
+    // For callers counting many medications: getDefault() copies the zone
+    int countBetween(long fromMillis, long toMillis, TimeZone zone) {
+        if (toMillis <= fromMillis || isEmpty()) {
+            return 0;
+        }
+        long first = localDay(fromMillis, zone);
+        long last = localDay(toMillis - 1, zone);
+        if (first == last) {
+            return matches(first) ? countOnDay(first, fromMillis, toMillis, zone) : 0;
+        }
+        int count = matchingDays(first + 1, last - 1) * minutes.length;
+        if (matches(first)) count += countOnDay(first, fromMillis, toMillis, zone);
+        if (matches(last)) count += countOnDay(last, fromMillis, toMillis, zone);
+        return count;
+    }
+
+    // Every occurrence in [fromMillis, toMillis), day by day and each day in
+    // dose-time order (which is time order except across a skipped hour)
+    void forEachBetween(long fromMillis, long toMillis, LongConsumer visitor) {
+        if (toMillis <= fromMillis || isEmpty()) {
+            return;
+        }
+        TimeZone zone = TimeZone.getDefault();
+        long last = localDay(toMillis - 1, zone);
+        for (long day = firstMatchingDay(localDay(fromMillis, zone)); day != NONE && day <= last;
+             day = firstMatchingDay(day + 1)) {
+            for (int minute : minutes) {
+                long at = toMillis(day, minute, zone);
+                if (at >= fromMillis && at < toMillis) {
+                    visitor.accept(at);
+                }
+            }
+        }
+    }
+
+    private long next(long millis, int onlyMinute) {
+        if (isEmpty() || (onlyMinute >= 0 && Arrays.binarySearch(minutes, onlyMinute) < 0)) {
+            return -1;
+        }
+        TimeZone zone = TimeZone.getDefault();
+        for (long day = firstMatchingDay(localDay(millis, zone)); day != NONE; day = firstMatchingDay(day + 1)) {
+            if (onlyMinute >= 0) {
+                long at = toMillis(day, onlyMinute, zone);
+                if (at > millis) return at;
+                continue;
+            }
+            // Not simply the first later minute: a dose moved out of a
+            // skipped hour can land after the next dose time
+            long earliest = Long.MAX_VALUE;
+            for (int minute : minutes) {
+                long at = toMillis(day, minute, zone);
+                if (at > millis) earliest = Math.min(earliest, at);
+            }
+            if (earliest != Long.MAX_VALUE) return earliest;
+        }
+        return -1;
+    }
+
+    private int countOnDay(long day, long fromMillis, long toMillis, TimeZone zone) {
+        int count = 0;
+        for (int minute : minutes) {
+            long at = toMillis(day, minute, zone);
+            if (at >= fromMillis && at < toMillis) count++;
+        }
+        return count;
+    }
+
+    private boolean matches(long day) {
+        return day >= firstDay && day <= lastDay
+                && Math.floorMod(day - anchorDay, (long) intervalDays) == 0
+                && (weekdayMask & (1 << weekday(day))) != 0;
+    }
+
+    // First day >= day that passes the rules, or NONE. Days on the interval
+    // stride run through the weekdays with period seven, so seven strides
+    // either find one or prove there is none.
+    private long firstMatchingDay(long day) {
+        day = Math.max(day, firstDay);
+        long offset = Math.floorMod(day - anchorDay, (long) intervalDays);
+        if (offset != 0) {
+            day += intervalDays - offset;
+        }
+        for (int i = 0; i < 7 && day <= lastDay; i++, day += intervalDays) {
+            if ((weekdayMask & (1 << weekday(day))) != 0) {
+                return day;
+            }
+        }
+        return NONE;
+    }
+
+    // Days in [from, to] that pass the rules. Of the n stride days in the
+    // range, those j strides in with j % 7 == k share stride day k's weekday.
+    private int matchingDays(long from, long to) {
+        from = Math.max(from, firstDay);
+        to = Math.min(to, lastDay);
+        if (from > to) {
+            return 0;
+        }
+        long offset = Math.floorMod(from - anchorDay, (long) intervalDays);
+        if (offset != 0) {
+            from += intervalDays - offset;
+        }
+        if (from > to) {
+            return 0;
+        }
+        long n = (to - from) / intervalDays + 1;
+        long count = 0;
+        for (int k = 0; k < 7 && k < n; k++) {
+            if ((weekdayMask & (1 << weekday(from + (long) k * intervalDays))) != 0) {
+                count += (n - k + 6) / 7;
+            }
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    // 1970-01-01 was a Thursday
+    private static int weekday(long epochDay) {
+        return (int) Math.floorMod(epochDay + 3, 7L);
+    }
+
+    private static long localDay(long millis, TimeZone zone) {
+        return Math.floorDiv(millis + zone.getOffset(millis), DAY);
+    }
+
+    // Local day and minute -> instant. A time skipped by a daylight saving
+    // change comes out an hour later, a repeated one at its second instance,
+    // the same as a lenient Calendar.
+    private static long toMillis(long epochDay, int minuteOfDay, TimeZone zone) {
+        long local = epochDay * DAY + minuteOfDay * MINUTE;
+        int offset = zone.getOffset(local - zone.getRawOffset());
+        long at = local - offset;
+        int actual = zone.getOffset(at);
+        if (actual == offset) {
+            return at;
+        }
+        long other = local - actual;
+        // Neither offset fits inside a skipped hour; take the later instant
+        return zone.getOffset(other) == actual ? other : Math.max(at, other);
+    }
+
+    // yyyymmdd <-> days since 1970-01-01, proleptic Gregorian
+    static long epochDay(int yyyymmdd) {
+        long year = yyyymmdd / 10000;
+        int month = yyyymmdd / 100 % 100;
+        int day = yyyymmdd % 100;
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400L);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    static int dayKey(long epochDay) {
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097L);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return (int) (year * 10000 + month * 100 + day);
+    }
+
+    // Rules read from the free-text days field, e.g. "Mon/Wed/Fri",
+    // "Weekdays", "Every 3 days", "Every other day for 2 weeks", "Tue-Sat"
+    static final class Days {
+        int weekdayMask = EVERY_DAY;
+        int intervalDays = 1;
+        int forDays; // 0 = no end
+
+        // Last day, yyyymmdd, for a course that starts on startDay; 0 if open-ended
+        int endDay(int startDay) {
+            return forDays > 0 && startDay > 0 ? dayKey(epochDay(startDay) + forDays - 1) : 0;
+        }
+    }
+
+    // Blank text is every day; null if any word is not understood
+    static Days parseDays(String text) {
+        Days days = new Days();
+        if (text == null || text.trim().isEmpty()) {
+            return days;
+        }
+        String[] words = text.toLowerCase(Locale.US)
+                .replaceAll("[,/&;.]", " ")
+                .replaceAll("\\s*-\\s*", "-")
+                .trim().split("\\s+");
+        int mask = 0;
+        for (int i = 0; i < words.length; i++) {
+            String word = words[i];
+            if (word.equals("and") || word.equals("on") || word.equals("daily") || word.equals("everyday")) {
+                continue;
+            }
+            if (word.equals("weekdays")) {
+                mask |= WEEKDAYS;
+            } else if (word.equals("weekends")) {
+                mask |= WEEKENDS;
+            } else if (word.equals("every") || word.equals("for")) {
+                // "every day", "every other day", "every 3 days", "every 2 weeks",
+                // "for 10 days", "for 4 weeks"; "every monday" falls through to the name
+                boolean every = word.equals("every");
+                int count = 1;
+                int next = i + 1;
+                if (next < words.length && every && words[next].equals("other")) {
+                    count = 2;
+                    next++;
+                } else if (next < words.length && words[next].matches("\\d{1,4}")) {
+                    count = Integer.parseInt(words[next]);
+                    next++;
+                } else if (!every) {
+                    return null;
+                }
+                int unit = next < words.length ? unitDays(words[next]) : 0;
+                if (unit == 0) {
+                    if (every && count == 1 && next < words.length && dayBit(words[next]) != 0) {
+                        continue;
+                    }
+                    return null;
+                }
+                if (count < 1) {
+                    return null;
+                }
+                if (every) {
+                    days.intervalDays = count * unit;
+                } else {
+                    days.forDays = count * unit;
+                }
+                i = next;
+            } else if (word.indexOf('-') > 0) {
+                String[] range = word.split("-");
+                int from = range.length == 2 ? dayIndex(range[0]) : -1;
+                int to = range.length == 2 ? dayIndex(range[1]) : -1;
+                if (from < 0 || to < 0) {
+                    return null;
+                }
+                for (int d = from; ; d = (d + 1) % 7) {
+                    mask |= 1 << d;
+                    if (d == to) break;
+                }
+            } else {
+                int bit = dayBit(word);
+                if (bit == 0) {
+                    return null;
+                }
+                mask |= bit;
+            }
+        }
+        if (mask != 0) {
+            days.weekdayMask = mask;
+        }
+        return days;
+    }
+
+    private static int unitDays(String word) {
+        switch (word) {
+            case "day":
+            case "days":
+                return 1;
+            case "week":
+            case "weeks":
+                return 7;
+            default:
+                return 0;
+        }
+    }
+
+    private static int dayBit(String word) {
+        int index = dayIndex(word);
+        return index >= 0 ? 1 << index : 0;
+    }
+
+    // "mon", "monday", "mondays", "tues", "thurs" ... -> 0..6, else -1
+    private static int dayIndex(String word) {
+        if (word.length() < 3) {
+            return -1;
+        }
+        for (int i = 0; i < DAY_NAMES.length; i++) {
+            String singular = word.length() > DAY_NAMES[i].length() && word.endsWith("s")
+                    ? word.substring(0, word.length() - 1) : word;
+            if (DAY_NAMES[i].startsWith(singular)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
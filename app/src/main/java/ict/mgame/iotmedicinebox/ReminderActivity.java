@@ -3,30 +3,46 @@ package ict.mgame.iotmedicinebox;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.media.MediaPlayer;
-import android.media.RingtoneManager;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.os.Vibrator;
+import android.util.Log;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.widget.LinearLayout;
 import android.widget.TextView;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+// Shown by the dose alarm. Everything it displays and logs comes in the
+// intent and the tone is already decoded (see AlertSound), so nothing on the
+// way to the first frame and the first sound touches the database or decodes
+// audio. How long each took from onCreate is logged.
 public class ReminderActivity extends Activity {
 
-    private MediaPlayer mediaPlayer;
-    private DatabaseHelper databaseHelper;
-    private long medicationId;
-    private int boxNumber;
+    private static final String TAG = "ReminderActivity";
+
+    private AlertSound alertSound;
+    // Every dose this reminder rings for; one alarm, one sound, one answer
+    private ReminderEvent event;
     private Handler handler;
     private Runnable stopAlarmRunnable;
     private Vibrator vibrator;
 
+    // uptimeMillis; visible is the first frame drawn, audible the first sound
+    private long createdAt;
+    private volatile long visibleAt = -1;
+    private volatile long audibleAt = -1;
+    private boolean latencyLogged;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        createdAt = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
 
         // 确保在锁屏状态下也能显示
@@ -35,83 +51,132 @@ public class ReminderActivity extends Activity {
                 WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON |
                 WindowManager.LayoutParams.FLAG_DISMISS_KEYGUARD);
 
-        setContentView(R.layout.activity_reminder);
-
-        databaseHelper = new DatabaseHelper(this);
         handler = new Handler();
 
         // 初始化振动器
         vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
 
         // 获取传递的药物信息
-        Intent intent = getIntent();
-        if (intent != null) {
-            medicationId = intent.getLongExtra("medication_id", -1);
-            boxNumber = intent.getIntExtra("box_number", -1);
-            String time = intent.getStringExtra("reminder_time");
-            String medicineName = intent.getStringExtra("medicine_name");
-            String dosage = intent.getStringExtra("dosage");
-            String instructions = intent.getStringExtra("instructions");
-
-            // 更新UI显示
-            updateReminderUI(time, medicineName, dosage, instructions);
+        // Kept across snoozes, since scheduleSnooze copies the extras. A
+        // medication deleted or paused since the alarm was set is dropped,
+        // if the repository has the medications in memory to tell.
+        event = ReminderEvent.from(getIntent());
+        Map<Long, Medication> medications = MedBoxApplication.getMedicationRepository(this).peekById();
+        if (medications != null && !event.isEmpty()) {
+            event = event.withoutRemoved(medications);
+            if (event.isEmpty()) {
+                Log.d(TAG, "Every dose of this reminder was removed, not ringing");
+                finish();
+                return;
+            }
         }
 
         // 启动闹钟和振动
+        // Before inflating: the tone starts on its own thread meanwhile
         startAlarm();
         startVibration();
 
+        setContentView(R.layout.activity_reminder);
+        watchFirstFrame();
+
+        if (!event.isEmpty()) {
+            // 更新UI显示
+            updateReminderUI(event);
+
+            // These doses have rung; the scheduler moves on to the next ones
+            if (savedInstanceState == null) {
+                MedBoxApplication.getDoseScheduler(this).onReminderFired(event);
+            }
+        }
+
         // 设置按钮点击事件
         setupButtonListeners();
     }
 
-    private void updateReminderUI(String time, String medicineName, String dosage, String instructions) {
+    private void updateReminderUI(ReminderEvent event) {
         TextView tvTime = findViewById(R.id.tvReminderTime);
-        TextView tvMedName = findViewById(R.id.tvMedName);
-        TextView tvDosage = findViewById(R.id.tvDosage);
-        TextView tvInstructions = findViewById(R.id.tvInstructions);
-
-        if (tvTime != null && time != null) {
-            tvTime.setText("Time: " + time);
-        }
-        if (tvMedName != null && medicineName != null) {
-            tvMedName.setText(medicineName);
+        int minuteOfDay = event.first().minuteOfDay;
+        if (tvTime != null && minuteOfDay >= 0) {
+            tvTime.setText("Time: " + DoseSchedule.format(minuteOfDay));
         }
-        if (tvDosage != null && dosage != null) {
+
+        // One card per due dose, earliest first
+        LinearLayout container = findViewById(R.id.containerMedications);
+        LayoutInflater inflater = LayoutInflater.from(this);
+        for (ReminderEvent.Dose dose : event.doses) {
+            View card = inflater.inflate(R.layout.item_reminder_medication, container, false);
+            TextView tvMedName = card.findViewById(R.id.tvMedName);
+            TextView tvDosage = card.findViewById(R.id.tvDosage);
+            TextView tvInstructions = card.findViewById(R.id.tvInstructions);
+
+            if (dose.medicineName != null) {
+                tvMedName.setText(dose.medicineName);
+            }
+            String dosage = dose.dosage;
+            if (dose.minuteOfDay >= 0 && dose.minuteOfDay != minuteOfDay) {
+                // Grouped with an earlier dose; say when this one was due
+                dosage += " • " + DoseSchedule.format(dose.minuteOfDay);
+            }
             tvDosage.setText(dosage);
-        }
-        if (tvInstructions != null && instructions != null) {
-            tvInstructions.setText(instructions);
+            tvInstructions.setText(dose.instructions != null ? dose.instructions : "");
+            container.addView(card);
         }
     }
 
-    private void startAlarm() {
-        try {
-            // 使用系统默认的通知铃声
-            Uri alarmSound = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
-            if (alarmSound == null) {
-                alarmSound = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-                if (alarmSound == null) {
-                    alarmSound = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_RINGTONE);
+    private void watchFirstFrame() {
+        View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            @Override
+            public void onDraw() {
+                if (visibleAt >= 0) {
+                    return;
                 }
+                visibleAt = SystemClock.uptimeMillis();
+                // A draw listener cannot remove itself while it is being called
+                handler.post(() -> decorView.getViewTreeObserver().removeOnDrawListener(this));
+                logLatency();
             }
+        });
+    }
 
-            mediaPlayer = MediaPlayer.create(this, alarmSound);
-            mediaPlayer.setLooping(true); // 循环播放
-            mediaPlayer.start();
+    // Milliseconds from onCreate to the first frame, -1 until it is drawn
+    long getVisibleMillis() {
+        long at = visibleAt;
+        return at >= 0 ? at - createdAt : -1;
+    }
 
-            // 自动停止闹钟的计时器（5分钟后自动停止）
-            stopAlarmRunnable = new Runnable() {
-                @Override
-                public void run() {
-                    stopAlarm();
-                    stopVibration();
-                }
-            };
-            handler.postDelayed(stopAlarmRunnable, 5 * 60 * 1000); // 5分钟
-        } catch (Exception e) {
-            e.printStackTrace();
+    // Milliseconds from onCreate to the first sound, -1 until it plays
+    long getAudibleMillis() {
+        long at = audibleAt;
+        return at >= 0 ? at - createdAt : -1;
+    }
+
+    private synchronized void logLatency() {
+        if (latencyLogged || visibleAt < 0 || audibleAt < 0) {
+            return;
         }
+        latencyLogged = true;
+        Log.i(TAG, event.doses.size() + " dose(s) visible in " + getVisibleMillis() + " ms, audible in "
+                + getAudibleMillis() + " ms");
+    }
+
+    private void startAlarm() {
+        // 循环播放系统闹钟铃声，已预先解码
+        alertSound = MedBoxApplication.getAlertSound(this);
+        alertSound.start(uptimeMillis -> {
+            audibleAt = uptimeMillis;
+            logLatency();
+        });
+
+        // 自动停止闹钟的计时器（5分钟后自动停止）
+        stopAlarmRunnable = new Runnable() {
+            @Override
+            public void run() {
+                stopAlarm();
+                stopVibration();
+            }
+        };
+        handler.postDelayed(stopAlarmRunnable, 5 * 60 * 1000); // 5分钟
     }
 
     private void startVibration() {
@@ -123,12 +188,9 @@ public class ReminderActivity extends Activity {
     }
 
     private void stopAlarm() {
-        if (mediaPlayer != null) {
-            if (mediaPlayer.isPlaying()) {
-                mediaPlayer.stop();
-            }
-            mediaPlayer.release();
-            mediaPlayer = null;
+        if (alertSound != null) {
+            alertSound.stop();
+            alertSound = null;
         }
         if (stopAlarmRunnable != null) {
             handler.removeCallbacks(stopAlarmRunnable);
@@ -153,7 +215,14 @@ public class ReminderActivity extends Activity {
                     stopVibration();
 
                     // 如果已连接蓝牙，发送开盒指令
-                    if (boxNumber > 0) {
+                    // Each box once, even if two of its doses are due
+                    Set<Integer> boxes = new LinkedHashSet<>();
+                    for (ReminderEvent.Dose dose : event.doses) {
+                        if (dose.boxNumber > 0) {
+                            boxes.add(dose.boxNumber);
+                        }
+                    }
+                    for (int boxNumber : boxes) {
                         sendOpenBoxCommand(boxNumber);
                     }
 
@@ -195,17 +264,24 @@ public class ReminderActivity extends Activity {
         }
     }
 
+    // One log row per dose, so each medication's adherence counts its own.
+    // Everything a row needs came with the alarm, so answering reads nothing
+    // from the database; the writer commits the rows on its own thread and
+    // they outlive this screen, which finishes right after.
     private void logMedicationStatus(String status) {
-        if (medicationId != -1) {
-            Medication medication = databaseHelper.getMedicationById(medicationId);
-            if (medication != null) {
-                // 记录到日志
-                databaseHelper.logMedication(
-                        medication.getMedicineName(),
-                        "1 tablet", // 默认剂量，可以根据需要修改
-                        medication.getBoxNumber(),
-                        status
-                );
+        MedicationLogWriter logWriter = MedBoxApplication.getLogWriter(this);
+        for (ReminderEvent.Dose dose : event.doses) {
+            if (dose.medicationId == -1 || dose.medicineName == null) {
+                continue;
+            }
+            // 记录到日志（后台批量写入，不阻塞按钮）
+            if (dose.scheduledAt > 0) {
+                // Snooze, then Taken on the next ring: one row for the dose
+                logWriter.logDose(dose.medicationId, dose.scheduledAt, dose.medicineName, dose.dosage,
+                        dose.boxNumber, status);
+            } else {
+                // Alarm set before dose keys existed
+                logWriter.log(dose.medicineName, dose.dosage, dose.boxNumber, status);
             }
         }
     }
@@ -217,6 +293,11 @@ public class ReminderActivity extends Activity {
     }
 
     private void scheduleSnooze() {
+        // Nothing to ring for again
+        if (event.isEmpty()) {
+            return;
+        }
+
         // 5分钟后再次提醒
         Intent snoozeIntent = new Intent(this, ReminderActivity.class);
         if (getIntent() != null) {
@@ -231,9 +312,15 @@ public class ReminderActivity extends Activity {
         if (alarmManager != null) {
             long snoozeTime = System.currentTimeMillis() + 5 * 60 * 1000; // 5分钟后
 
+            // 使用不同的requestCode; never the scheduler's, or the snooze would
+            // replace its extras and its armed alarm
+            int requestCode = (int) (event.first().medicationId * 1000);
+            if (requestCode == DoseScheduler.REQUEST_CODE) {
+                requestCode = -1;
+            }
             android.app.PendingIntent pendingIntent = android.app.PendingIntent.getActivity(
                     this,
-                    (int) (medicationId * 1000), // 使用不同的requestCode
+                    requestCode,
                     snoozeIntent,
                     android.app.PendingIntent.FLAG_UPDATE_CURRENT | android.app.PendingIntent.FLAG_IMMUTABLE
             );
@@ -277,8 +364,5 @@ public class ReminderActivity extends Activity {
         }
 
         stopAlarm();
-        if (databaseHelper != null) {
-            databaseHelper.close();
-        }
     }
 }
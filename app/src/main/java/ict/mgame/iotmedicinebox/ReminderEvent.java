@@ -0,0 +1,150 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Intent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// The doses one reminder rings for: every dose DoseScheduler found due
+// within the grouping window of the earliest. It travels in the alarm's
+// intent as parallel arrays, so the reminder screen can show each dose and
+// log each one under its own dose key.
+final class ReminderEvent {
+
+    static final class Dose {
+        final long medicationId;
+        final long scheduledAt; // -1 for a reminder set before dose keys existed
+        final int minuteOfDay;  // -1 if unknown
+        final String medicineName;
+        final String dosage;
+        final int boxNumber;
+        final String instructions;
+
+        Dose(long medicationId, long scheduledAt, int minuteOfDay, String medicineName, String dosage,
+             int boxNumber, String instructions) {
+            this.medicationId = medicationId;
+            this.scheduledAt = scheduledAt;
+            this.minuteOfDay = minuteOfDay;
+            this.medicineName = medicineName;
+            this.dosage = dosage;
+            this.boxNumber = boxNumber;
+            this.instructions = instructions;
+        }
+    }
+
+    private static final String EXTRA_MEDICATION_IDS = "medication_ids";
+    private static final String EXTRA_SCHEDULED_ATS = "scheduled_ats";
+    private static final String EXTRA_MINUTES = "minutes_of_day";
+    private static final String EXTRA_MEDICINE_NAMES = "medicine_names";
+    private static final String EXTRA_DOSAGES = "dosages";
+    private static final String EXTRA_BOX_NUMBERS = "box_numbers";
+    private static final String EXTRA_INSTRUCTIONS = "instructions_list";
+
+    // Every dose is one tablet until medications carry a dosage
+    static final String DEFAULT_DOSAGE = "1 tablet";
+
+    final List<Dose> doses;
+
+    private ReminderEvent(List<Dose> doses) {
+        this.doses = Collections.unmodifiableList(doses);
+    }
+
+    static void putExtras(Intent intent, List<DoseQueue.Occurrence> occurrences) {
+        int count = occurrences.size();
+        long[] medicationIds = new long[count];
+        long[] scheduledAts = new long[count];
+        int[] minutes = new int[count];
+        String[] medicineNames = new String[count];
+        String[] dosages = new String[count];
+        int[] boxNumbers = new int[count];
+        String[] instructions = new String[count];
+        for (int i = 0; i < count; i++) {
+            DoseQueue.Occurrence occurrence = occurrences.get(i);
+            Medication medication = occurrence.medication;
+            medicationIds[i] = medication.getId();
+            scheduledAts[i] = occurrence.at;
+            minutes[i] = occurrence.minuteOfDay;
+            medicineNames[i] = medication.getMedicineName();
+            dosages[i] = DEFAULT_DOSAGE;
+            boxNumbers[i] = medication.getBoxNumber();
+            instructions[i] = medication.getInstructions();
+        }
+        intent.putExtra(EXTRA_MEDICATION_IDS, medicationIds);
+        intent.putExtra(EXTRA_SCHEDULED_ATS, scheduledAts);
+        intent.putExtra(EXTRA_MINUTES, minutes);
+        intent.putExtra(EXTRA_MEDICINE_NAMES, medicineNames);
+        intent.putExtra(EXTRA_DOSAGES, dosages);
+        intent.putExtra(EXTRA_BOX_NUMBERS, boxNumbers);
+        intent.putExtra(EXTRA_INSTRUCTIONS, instructions);
+    }
+
+    // Everything putExtras writes for these occurrences, flattened, so two
+    // alarms can be compared without building their intents
+    static List<Object> payload(List<DoseQueue.Occurrence> occurrences) {
+        List<Object> payload = new ArrayList<>(occurrences.size() * 7);
+        for (DoseQueue.Occurrence occurrence : occurrences) {
+            Medication medication = occurrence.medication;
+            payload.add(medication.getId());
+            payload.add(occurrence.at);
+            payload.add(occurrence.minuteOfDay);
+            payload.add(medication.getMedicineName());
+            payload.add(DEFAULT_DOSAGE);
+            payload.add(medication.getBoxNumber());
+            payload.add(medication.getInstructions());
+        }
+        return payload;
+    }
+
+    // Also reads the single-dose extras of alarms and snoozes set by older
+    // versions; an intent with neither gives an empty event
+    static ReminderEvent from(Intent intent) {
+        List<Dose> doses = new ArrayList<>();
+        long[] medicationIds = intent != null ? intent.getLongArrayExtra(EXTRA_MEDICATION_IDS) : null;
+        if (medicationIds != null) {
+            long[] scheduledAts = intent.getLongArrayExtra(EXTRA_SCHEDULED_ATS);
+            int[] minutes = intent.getIntArrayExtra(EXTRA_MINUTES);
+            String[] medicineNames = intent.getStringArrayExtra(EXTRA_MEDICINE_NAMES);
+            String[] dosages = intent.getStringArrayExtra(EXTRA_DOSAGES);
+            int[] boxNumbers = intent.getIntArrayExtra(EXTRA_BOX_NUMBERS);
+            String[] instructions = intent.getStringArrayExtra(EXTRA_INSTRUCTIONS);
+            for (int i = 0; i < medicationIds.length; i++) {
+                doses.add(new Dose(medicationIds[i], scheduledAts[i], minutes[i], medicineNames[i],
+                        dosages[i], boxNumbers[i], instructions[i]));
+            }
+        } else if (intent != null && intent.hasExtra("medication_id")) {
+            String dosage = intent.getStringExtra("dosage");
+            doses.add(new Dose(intent.getLongExtra("medication_id", -1),
+                    intent.getLongExtra("scheduled_at", -1),
+                    DoseSchedule.parse(intent.getStringExtra("reminder_time")),
+                    intent.getStringExtra("medicine_name"),
+                    dosage != null ? dosage : DEFAULT_DOSAGE,
+                    intent.getIntExtra("box_number", -1),
+                    intent.getStringExtra("instructions")));
+        }
+        return new ReminderEvent(doses);
+    }
+
+    // The doses whose medication is still among medications and active. A
+    // dose from an older version's reminder may have no id and is kept.
+    ReminderEvent withoutRemoved(Map<Long, Medication> medications) {
+        List<Dose> kept = new ArrayList<>(doses.size());
+        for (Dose dose : doses) {
+            Medication medication = medications.get(dose.medicationId);
+            if (dose.medicationId <= 0 || (medication != null && medication.isActive())) {
+                kept.add(dose);
+            }
+        }
+        return kept.size() == doses.size() ? this : new ReminderEvent(kept);
+    }
+
+    boolean isEmpty() {
+        return doses.isEmpty();
+    }
+
+    // The earliest dose; the alarm rings at its time
+    Dose first() {
+        return doses.get(0);
+    }
+}
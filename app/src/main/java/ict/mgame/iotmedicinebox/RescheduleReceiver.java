@@ -0,0 +1,40 @@
+package ict.mgame.iotmedicinebox;
+
+import android.app.AlarmManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Puts the next dose alarm back after anything that drops or moves it: a
+// reboot clears AlarmManager, an app update restarts the process, a clock or
+// time zone change shifts every wall-clock dose time, and exact alarms can be
+// granted after the fallback inexact one was set.
+//
+// DoseScheduler rebuilds the whole queue in one pass and sets its single
+// alarm; goAsync keeps the process alive until then, which takes a few
+// milliseconds even for hundreds of medications (see DoseSchedulerTest).
+public class RescheduleReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "RescheduleReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(action)
+                && !Intent.ACTION_TIME_CHANGED.equals(action)
+                && !Intent.ACTION_TIMEZONE_CHANGED.equals(action)
+                && !Intent.ACTION_MY_PACKAGE_REPLACED.equals(action)
+                && !AlarmManager.ACTION_SCHEDULE_EXACT_ALARM_PERMISSION_STATE_CHANGED.equals(action)) {
+            return;
+        }
+
+        PendingResult result = goAsync();
+        long start = SystemClock.elapsedRealtime();
+        MedBoxApplication.getDoseScheduler(context).restore(() -> {
+            Log.d(TAG, action + ": schedule restored in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            result.finish();
+        });
+    }
+}
@@ -0,0 +1,51 @@
+package ict.mgame.iotmedicinebox;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// How much medication history to keep. Enforced by LogRetention.
+//
+// maxAgeDays applies to every log, archived ones included (the archive drops
+// whole months). A status rule can only shorten that for its status, e.g.
+// snoozes are noise once the dose was answered; it also applies to both,
+// rewriting the archived months that hold expired rows. maxRows caps the SQLite
+// table, newest rows kept; the archive already bounds it by age, this bounds
+// it for heavy users. 0 means no limit.
+final class RetentionPolicy {
+
+    static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    final int maxAgeDays;
+    final int maxRows;
+    private final Map<String, Integer> statusMaxAgeDays = new HashMap<>();
+
+    RetentionPolicy(int maxAgeDays, int maxRows) {
+        this.maxAgeDays = maxAgeDays;
+        this.maxRows = maxRows;
+    }
+
+    // Keep logs with this status (a LogStatus name) for at most days
+    RetentionPolicy keepStatusFor(String status, int days) {
+        if (!LogStatus.isKnown(status)) {
+            throw new IllegalArgumentException("Unknown status " + status);
+        }
+        statusMaxAgeDays.put(status, days);
+        return this;
+    }
+
+    Map<String, Integer> statusMaxAgeDays() {
+        return statusMaxAgeDays;
+    }
+
+    // Tighter limits where storage is scarce
+    static RetentionPolicy forDevice(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null && activityManager.isLowRamDevice()) {
+            return new RetentionPolicy(365, 20_000).keepStatusFor("Snoozed", 30);
+        }
+        return new RetentionPolicy(3 * 365, 100_000).keepStatusFor("Snoozed", 90);
+    }
+}
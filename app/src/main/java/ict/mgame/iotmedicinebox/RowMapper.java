@@ -0,0 +1,37 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.Cursor;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+// Maps cursor rows to model objects. Column indices are resolved once, when
+// the mapper is created for a cursor, instead of once per row per column.
+abstract class RowMapper<T> {
+
+    protected abstract T newInstance();
+
+    // Overwrite every mapped field of target with the current row
+    protected abstract void fill(Cursor cursor, T target);
+
+    T map(Cursor cursor) {
+        T row = newInstance();
+        fill(cursor, row);
+        return row;
+    }
+
+    void mapAll(Cursor cursor, List<T> into) {
+        while (cursor.moveToNext()) {
+            into.add(map(cursor));
+        }
+    }
+
+    // Walk the cursor refilling one caller-supplied instance per row.
+    // The visitor must copy anything it wants to keep.
+    void forEach(Cursor cursor, T reuse, Consumer<T> visitor) {
+        while (cursor.moveToNext()) {
+            fill(cursor, reuse);
+            visitor.accept(reuse);
+        }
+    }
+}
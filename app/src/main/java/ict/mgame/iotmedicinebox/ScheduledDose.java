@@ -0,0 +1,16 @@
+package ict.mgame.iotmedicinebox;
+
+// One upcoming dose: a medication and the time of day it is due
+public class ScheduledDose {
+    private final Medication medication;
+    private final int minuteOfDay; // minutes after local midnight
+
+    public ScheduledDose(Medication medication, int minuteOfDay) {
+        this.medication = medication;
+        this.minuteOfDay = minuteOfDay;
+    }
+
+    public Medication getMedication() { return medication; }
+
+    public int getMinuteOfDay() { return minuteOfDay; }
+}
@@ -0,0 +1,382 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Ordered, non-destructive schema migrations for medbox.db.
+//
+// An upgrade happens in two phases. onUpgrade runs each step's migrate() and
+// indexes() in version order; this is cheap DDL and never touches row data in
+// bulk. Steps that must rewrite existing rows register a backfill, which
+// runPendingBackfills() later works through on a background thread in
+// transactions of BACKFILL_BATCH_SIZE rows. Progress is stored in
+// schema_backfills, so a killed process resumes where it stopped.
+final class SchemaMigrations {
+
+    private static final String TAG = "SchemaMigrations";
+
+    static final int BACKFILL_BATCH_SIZE = 500;
+
+    // Logs in the layout before version 8, until step 7's backfill moves them
+    static final String LEGACY_LOGS = "medication_logs_v7";
+
+    static final String CREATE_BACKFILLS_TABLE =
+            "CREATE TABLE IF NOT EXISTS schema_backfills (" +
+                    "version INTEGER PRIMARY KEY, " +
+                    "last_row_id INTEGER NOT NULL DEFAULT 0)";
+
+    static final List<Migration> MIGRATIONS = Arrays.asList(
+            // 1 -> 2: medication log table, with the text columns step 7 replaces
+            new Migration(1) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE IF NOT EXISTS medication_logs (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "medicine_name TEXT, " +
+                            "dosage TEXT, " +
+                            "box_number INTEGER, " +
+                            "status TEXT, " +
+                            "timestamp INTEGER)");
+                }
+            },
+            // 2 -> 3: secondary indexes
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                }
+
+                // The medication indexes as they were in version 3; step 5
+                // replaces them once first_dose_minute exists
+                @Override
+                String[] indexes() {
+                    return new String[]{
+                            "CREATE INDEX IF NOT EXISTS idx_medications_box ON medications" +
+                                    " (box_number, is_active, notification_time)",
+                            "CREATE INDEX IF NOT EXISTS idx_medications_time ON medications (notification_time)",
+                            DatabaseHelper.INDEX_LOGS_TIMESTAMP,
+                            DatabaseHelper.INDEX_LOGS_STATUS_TIMESTAMP
+                    };
+                }
+            },
+            // 3 -> 4: daily adherence rollup, filled from existing logs by backfill
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(AdherenceRollup.CREATE_TABLE);
+                }
+
+                @Override
+                boolean hasBackfill() {
+                    return true;
+                }
+
+                @Override
+                long backfillBatch(SQLiteDatabase db, long afterRowId, int limit) {
+                    return AdherenceRollup.backfillBatch(db, afterRowId, limit);
+                }
+            },
+            // 4 -> 5: watermark for logs moved to the archive segments
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(LogArchive.CREATE_STATE_TABLE);
+                }
+            },
+            // 5 -> 6: dose times as integer minutes in medication_schedule.
+            // medications holds a handful of rows, so the strings are parsed
+            // here rather than in a backfill.
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + DatabaseHelper.TABLE_MEDICATIONS +
+                            " ADD COLUMN " + DatabaseHelper.COLUMN_FIRST_DOSE_MINUTE + " INTEGER");
+                    DoseSchedule.create(db);
+
+                    Cursor cursor = db.rawQuery("SELECT " + DatabaseHelper.COLUMN_ID + ", " +
+                            DatabaseHelper.COLUMN_NOTIFICATION_TIME + " FROM " + DatabaseHelper.TABLE_MEDICATIONS, null);
+                    int unparsed = 0;
+                    while (cursor.moveToNext()) {
+                        int minute = DoseSchedule.parse(cursor.getString(1));
+                        if (minute >= 0) {
+                            DoseSchedule.write(db, cursor.getLong(0), Collections.singletonList(minute));
+                        } else {
+                            unparsed++;
+                        }
+                    }
+                    cursor.close();
+                    if (unparsed > 0) {
+                        Log.w(TAG, unparsed + " medications had no parseable notification time");
+                    }
+
+                    db.execSQL("DROP INDEX IF EXISTS idx_medications_box");
+                    db.execSQL("DROP INDEX IF EXISTS idx_medications_time");
+                }
+
+                @Override
+                String[] indexes() {
+                    return new String[]{
+                            DatabaseHelper.INDEX_MEDICATIONS_BOX,
+                            DatabaseHelper.INDEX_MEDICATIONS_FIRST_DOSE,
+                            DoseSchedule.INDEX_MINUTE
+                    };
+                }
+            },
+            // 6 -> 7: full-text search over medications. Version 7 also indexed
+            // every log by backfill; step 7 replaces that with the log_names
+            // index, so a backfill left over from 7 finds nothing to do.
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    SearchIndex.createMedicationsForUpgrade(db);
+                }
+            },
+            // 7 -> 8: medication_logs points at log_names instead of repeating
+            // the name and dosage, and stores status as a LogStatus code. The
+            // old table is renamed to LEGACY_LOGS and an empty one in the new
+            // layout takes its place; the backfill moves rows across in id
+            // order. Readers only ever see the new layout, so until it finishes
+            // older history is missing from them rather than half-converted.
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(LogNames.CREATE_TABLE);
+                    db.execSQL(LogNames.INDEX_PAIR);
+
+                    // The rollup and search triggers and the indexes would follow
+                    // the table through the rename, and the indexes' names are
+                    // needed for the new table. Legacy rows are read by id only.
+                    List<String> drops = new ArrayList<>();
+                    Cursor cursor = db.rawQuery("SELECT type, name FROM sqlite_master" +
+                            " WHERE tbl_name = 'medication_logs' AND type IN ('trigger', 'index')" +
+                            " AND sql IS NOT NULL", null);
+                    while (cursor.moveToNext()) {
+                        drops.add("DROP " + cursor.getString(0) + " IF EXISTS " + cursor.getString(1));
+                    }
+                    cursor.close();
+                    for (String sql : drops) {
+                        db.execSQL(sql);
+                    }
+                    db.execSQL("DROP TABLE IF EXISTS medication_logs_fts");
+
+                    // Keep the ids already handed out (archived logs still use
+                    // them); the moved rows keep theirs
+                    long sequence = DatabaseUtils.longForQuery(db,
+                            "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence WHERE name = 'medication_logs'", null);
+                    db.execSQL("ALTER TABLE medication_logs RENAME TO " + LEGACY_LOGS);
+                    db.execSQL("CREATE TABLE medication_logs (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "name_id INTEGER NOT NULL, " +
+                            "box_number INTEGER, " +
+                            "status INTEGER, " +
+                            "timestamp INTEGER)");
+                    sequence = Math.max(sequence, DatabaseUtils.longForQuery(db,
+                            "SELECT IFNULL(MAX(id), 0) FROM " + LEGACY_LOGS, null));
+                    db.execSQL("DELETE FROM sqlite_sequence WHERE name = 'medication_logs'");
+                    db.execSQL("INSERT INTO sqlite_sequence (name, seq) VALUES ('medication_logs', ?)",
+                            new Object[]{sequence});
+
+                    SearchIndex.createNamesForUpgrade(db);
+
+                    // No legacy row is counted in the rollup from here on: the
+                    // hot days are cleared and the triggers count each row as
+                    // the backfill moves it. Archived days are kept. A step 3
+                    // backfill still pending finds the triggers and stops.
+                    db.execSQL(AdherenceRollup.CREATE_TABLE);
+                    db.execSQL("DELETE FROM " + AdherenceRollup.TABLE + " WHERE day >= " +
+                            DatabaseHelper.firstHotDay(db));
+                    for (String sql : AdherenceRollup.CREATE_TRIGGERS) {
+                        db.execSQL(sql);
+                    }
+                }
+
+                @Override
+                String[] indexes() {
+                    return new String[]{
+                            DatabaseHelper.INDEX_LOGS_TIMESTAMP,
+                            DatabaseHelper.INDEX_LOGS_STATUS_TIMESTAMP
+                    };
+                }
+
+                @Override
+                boolean hasBackfill() {
+                    return true;
+                }
+
+                @Override
+                long backfillBatch(SQLiteDatabase db, long afterRowId, int limit) {
+                    // Gone once every row has moved, or if the logs were
+                    // cleared or restored from a snapshot in the meantime
+                    if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master" +
+                            " WHERE type = 'table' AND name = ?", new String[]{LEGACY_LOGS}) == 0) {
+                        return -1;
+                    }
+                    long lastRowId = DatabaseUtils.longForQuery(db,
+                            "SELECT IFNULL(MAX(id), -1) FROM (SELECT id FROM " + LEGACY_LOGS +
+                                    " WHERE id > ? ORDER BY id LIMIT ?)",
+                            new String[]{String.valueOf(afterRowId), String.valueOf(limit)});
+                    if (lastRowId < 0) {
+                        dropUnconvertedLogs(db);
+                        return -1;
+                    }
+
+                    Object[] range = {afterRowId, lastRowId};
+                    db.execSQL("INSERT INTO " + LogNames.TABLE + " (medicine_name, dosage)" +
+                            " SELECT DISTINCT l.medicine_name, l.dosage FROM " + LEGACY_LOGS + " l" +
+                            " WHERE l.id > ? AND l.id <= ? AND NOT EXISTS (SELECT 1 FROM " + LogNames.TABLE + " n" +
+                            " WHERE n.medicine_name IS l.medicine_name AND n.dosage IS l.dosage)", range);
+                    // Statuses other than LogStatus' names become NULL
+                    db.execSQL("INSERT INTO medication_logs (id, name_id, box_number, status, timestamp)" +
+                            " SELECT l.id, (SELECT MIN(n.name_id) FROM " + LogNames.TABLE + " n" +
+                            " WHERE n.medicine_name IS l.medicine_name AND n.dosage IS l.dosage)," +
+                            " l.box_number, " + LogStatus.codeSql("l.status") + ", l.timestamp" +
+                            " FROM " + LEGACY_LOGS + " l WHERE l.id > ? AND l.id <= ?", range);
+                    db.execSQL("DELETE FROM " + LEGACY_LOGS + " WHERE id > ? AND id <= ?", range);
+                    return lastRowId;
+                }
+            },
+            // 8 -> 9: dose key for reminder logs. Existing logs keep NULL keys
+            // (nothing recorded which dose they answered), so nothing to fill.
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE medication_logs ADD COLUMN medication_id INTEGER");
+                    db.execSQL("ALTER TABLE medication_logs ADD COLUMN scheduled_at INTEGER");
+                }
+
+                @Override
+                String[] indexes() {
+                    return new String[]{DatabaseHelper.INDEX_LOGS_DOSE};
+                }
+            },
+            // 9 -> 10: recurrence rules. Every-N-days counts from the day the
+            // medication was added; the free-text days field is read into
+            // the rules here, like step 5, since medications is small.
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + DatabaseHelper.TABLE_MEDICATIONS + " ADD COLUMN " +
+                            DatabaseHelper.COLUMN_WEEKDAY_MASK + " INTEGER NOT NULL DEFAULT " + Recurrence.EVERY_DAY);
+                    db.execSQL("ALTER TABLE " + DatabaseHelper.TABLE_MEDICATIONS + " ADD COLUMN " +
+                            DatabaseHelper.COLUMN_INTERVAL_DAYS + " INTEGER NOT NULL DEFAULT 1");
+                    db.execSQL("ALTER TABLE " + DatabaseHelper.TABLE_MEDICATIONS + " ADD COLUMN " +
+                            DatabaseHelper.COLUMN_START_DAY + " INTEGER");
+                    db.execSQL("ALTER TABLE " + DatabaseHelper.TABLE_MEDICATIONS + " ADD COLUMN " +
+                            DatabaseHelper.COLUMN_END_DAY + " INTEGER");
+                    db.execSQL("UPDATE " + DatabaseHelper.TABLE_MEDICATIONS + " SET " + DatabaseHelper.COLUMN_START_DAY +
+                            " = CAST(strftime('%Y%m%d', " + DatabaseHelper.COLUMN_CREATED_AT + ", 'localtime') AS INTEGER)");
+
+                    Cursor cursor = db.rawQuery("SELECT " + DatabaseHelper.COLUMN_ID + ", " +
+                            DatabaseHelper.COLUMN_DAYS + ", " + DatabaseHelper.COLUMN_START_DAY +
+                            " FROM " + DatabaseHelper.TABLE_MEDICATIONS +
+                            " WHERE IFNULL(TRIM(" + DatabaseHelper.COLUMN_DAYS + "), '') != ''", null);
+                    int unparsed = 0;
+                    while (cursor.moveToNext()) {
+                        Recurrence.Days days = Recurrence.parseDays(cursor.getString(1));
+                        if (days == null) {
+                            // Left as every day, which is what it rang on before
+                            unparsed++;
+                            continue;
+                        }
+                        int endDay = days.endDay(cursor.getInt(2));
+                        db.execSQL("UPDATE " + DatabaseHelper.TABLE_MEDICATIONS + " SET " +
+                                        DatabaseHelper.COLUMN_WEEKDAY_MASK + " = ?, " +
+                                        DatabaseHelper.COLUMN_INTERVAL_DAYS + " = ?, " +
+                                        DatabaseHelper.COLUMN_END_DAY + " = ? WHERE " + DatabaseHelper.COLUMN_ID + " = ?",
+                                new Object[]{days.weekdayMask, days.intervalDays,
+                                        endDay > 0 ? endDay : null, cursor.getLong(0)});
+                    }
+                    cursor.close();
+                    if (unparsed > 0) {
+                        Log.w(TAG, unparsed + " medications have days text that is not a schedule");
+                    }
+                }
+            }
+    );
+
+    private SchemaMigrations() {}
+
+    // Drop the logs step 7 has not moved yet. For callers replacing every
+    // log, so the backfill does not bring old ones back afterwards.
+    static void dropUnconvertedLogs(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + LEGACY_LOGS);
+    }
+
+    static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL(CREATE_BACKFILLS_TABLE);
+        for (int version = oldVersion; version < newVersion; version++) {
+            Migration migration = find(version);
+            if (migration == null) {
+                throw new IllegalStateException("No migration from schema version " + version);
+            }
+
+            migration.migrate(db);
+            for (String sql : migration.indexes()) {
+                db.execSQL(sql);
+            }
+            if (migration.hasBackfill()) {
+                db.execSQL("INSERT OR REPLACE INTO schema_backfills (version, last_row_id) VALUES (?, 0)",
+                        new Object[]{migration.fromVersion});
+            }
+            Log.d(TAG, "Migrated schema " + version + " -> " + (version + 1));
+        }
+    }
+
+    // Work through every registered backfill, one bounded transaction at a
+    // time so readers and the log writer are never locked out for long. One
+    // caller at a time: another waits, then finds nothing left to do.
+    static synchronized void runPendingBackfills(SQLiteDatabase db) {
+        db.execSQL(CREATE_BACKFILLS_TABLE);
+
+        List<long[]> pending = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT version, last_row_id FROM schema_backfills ORDER BY version", null);
+        while (cursor.moveToNext()) {
+            pending.add(new long[]{cursor.getLong(0), cursor.getLong(1)});
+        }
+        cursor.close();
+
+        for (long[] entry : pending) {
+            Migration migration = find((int) entry[0]);
+            long lastRowId = entry[1];
+            int batches = 0;
+            while (true) {
+                boolean done;
+                db.beginTransactionNonExclusive();
+                try {
+                    long next = migration != null
+                            ? migration.backfillBatch(db, lastRowId, BACKFILL_BATCH_SIZE)
+                            : -1;
+                    done = next < 0;
+                    if (done) {
+                        db.execSQL("DELETE FROM schema_backfills WHERE version = ?", new Object[]{entry[0]});
+                    } else {
+                        db.execSQL("UPDATE schema_backfills SET last_row_id = ? WHERE version = ?",
+                                new Object[]{next, entry[0]});
+                        lastRowId = next;
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                batches++;
+                if (done) break;
+            }
+            Log.d(TAG, "Backfill for schema " + entry[0] + " finished in " + batches + " batches");
+        }
+    }
+
+    private static Migration find(int fromVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.fromVersion == fromVersion) {
+                return migration;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,195 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// FTS4 full-text index over medicine names and instructions.
+//
+// Both index tables are external-content FTS4 tables: they store only the
+// term index and read the text back from medications / log_names. Logs are
+// searched through log_names, which holds each distinct medicine once, so the
+// log index grows with the number of medicines rather than doses taken. The
+// triggers below keep them in sync; the BEFORE triggers must see the old row,
+// which an external-content delete needs to find the terms to remove.
+//
+// Searches are prefix searches: every word the user typed must start a word
+// of the indexed text, so "vit c" finds "Vitamin C".
+final class SearchIndex {
+
+    static final String MEDICATIONS_FTS = "medications_fts";
+    static final String NAMES_FTS = "log_names_fts";
+
+    static final String CREATE_MEDICATIONS_FTS =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + MEDICATIONS_FTS + " USING fts4(" +
+                    "content=\"" + DatabaseHelper.TABLE_MEDICATIONS + "\", " +
+                    DatabaseHelper.COLUMN_MEDICINE_NAME + ", " + DatabaseHelper.COLUMN_INSTRUCTIONS + ")";
+
+    static final String CREATE_NAMES_FTS =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + NAMES_FTS + " USING fts4(" +
+                    "content=\"" + LogNames.TABLE + "\", medicine_name)";
+
+    private static final String MEDICATION_COLUMNS =
+            DatabaseHelper.COLUMN_MEDICINE_NAME + ", " + DatabaseHelper.COLUMN_INSTRUCTIONS;
+
+    static final String[] CREATE_MEDICATION_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS trg_medications_fts_before_delete BEFORE DELETE ON " +
+                    DatabaseHelper.TABLE_MEDICATIONS + " BEGIN " +
+                    "DELETE FROM " + MEDICATIONS_FTS + " WHERE docid = OLD." + DatabaseHelper.COLUMN_ID + "; END",
+            "CREATE TRIGGER IF NOT EXISTS trg_medications_fts_before_update BEFORE UPDATE OF " + MEDICATION_COLUMNS +
+                    " ON " + DatabaseHelper.TABLE_MEDICATIONS + " BEGIN " +
+                    "DELETE FROM " + MEDICATIONS_FTS + " WHERE docid = OLD." + DatabaseHelper.COLUMN_ID + "; END",
+            "CREATE TRIGGER IF NOT EXISTS trg_medications_fts_after_update AFTER UPDATE OF " + MEDICATION_COLUMNS +
+                    " ON " + DatabaseHelper.TABLE_MEDICATIONS + " BEGIN " +
+                    "INSERT INTO " + MEDICATIONS_FTS + " (docid, " + MEDICATION_COLUMNS + ") VALUES (NEW." +
+                    DatabaseHelper.COLUMN_ID + ", NEW." + DatabaseHelper.COLUMN_MEDICINE_NAME + ", NEW." +
+                    DatabaseHelper.COLUMN_INSTRUCTIONS + "); END",
+            "CREATE TRIGGER IF NOT EXISTS trg_medications_fts_after_insert AFTER INSERT ON " +
+                    DatabaseHelper.TABLE_MEDICATIONS + " BEGIN " +
+                    "INSERT INTO " + MEDICATIONS_FTS + " (docid, " + MEDICATION_COLUMNS + ") VALUES (NEW." +
+                    DatabaseHelper.COLUMN_ID + ", NEW." + DatabaseHelper.COLUMN_MEDICINE_NAME + ", NEW." +
+                    DatabaseHelper.COLUMN_INSTRUCTIONS + "); END"
+    };
+
+    static final String[] CREATE_NAME_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS trg_log_names_fts_before_delete BEFORE DELETE ON " + LogNames.TABLE +
+                    " BEGIN DELETE FROM " + NAMES_FTS + " WHERE docid = OLD.name_id; END",
+            "CREATE TRIGGER IF NOT EXISTS trg_log_names_fts_before_update BEFORE UPDATE OF medicine_name ON " +
+                    LogNames.TABLE + " BEGIN DELETE FROM " + NAMES_FTS + " WHERE docid = OLD.name_id; END",
+            "CREATE TRIGGER IF NOT EXISTS trg_log_names_fts_after_update AFTER UPDATE OF medicine_name ON " +
+                    LogNames.TABLE + " BEGIN INSERT INTO " + NAMES_FTS +
+                    " (docid, medicine_name) VALUES (NEW.name_id, NEW.medicine_name); END",
+            "CREATE TRIGGER IF NOT EXISTS trg_log_names_fts_after_insert AFTER INSERT ON " + LogNames.TABLE +
+                    " BEGIN INSERT INTO " + NAMES_FTS +
+                    " (docid, medicine_name) VALUES (NEW.name_id, NEW.medicine_name); END"
+    };
+
+    // offsets() lists "column term offset size" for every hit, used for ranking
+    static final String QUERY_MEDICATIONS =
+            "SELECT m.*, offsets(" + MEDICATIONS_FTS + ") AS match_offsets FROM " + MEDICATIONS_FTS +
+                    " JOIN " + DatabaseHelper.TABLE_MEDICATIONS + " m ON m." + DatabaseHelper.COLUMN_ID + " = " +
+                    MEDICATIONS_FTS + ".docid WHERE " + MEDICATIONS_FTS + " MATCH ?";
+
+    // The MATCH picks a handful of name ids; the logs are then read newest
+    // first off the timestamp (or status, timestamp) index and LIMIT stops
+    // early instead of sorting every hit
+    static String logsQuery(boolean filtered) {
+        return DatabaseHelper.SELECT_LOGS + " WHERE name_id IN (SELECT docid FROM " + NAMES_FTS +
+                " WHERE " + NAMES_FTS + " MATCH ?)" + (filtered ? " AND status = ?" : "") +
+                " ORDER BY timestamp DESC, id DESC LIMIT ?";
+    }
+
+    private SearchIndex() {}
+
+    // Fresh database: both indexes and all triggers, nothing to fill
+    static void create(SQLiteDatabase db) {
+        db.execSQL(CREATE_MEDICATIONS_FTS);
+        db.execSQL(CREATE_NAMES_FTS);
+        for (String sql : CREATE_MEDICATION_TRIGGERS) {
+            db.execSQL(sql);
+        }
+        for (String sql : CREATE_NAME_TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    // Upgrade: medications is tiny and indexed in one go
+    static void createMedicationsForUpgrade(SQLiteDatabase db) {
+        db.execSQL(CREATE_MEDICATIONS_FTS);
+        db.execSQL("INSERT INTO " + MEDICATIONS_FTS + " (" + MEDICATIONS_FTS + ") VALUES ('rebuild')");
+        for (String sql : CREATE_MEDICATION_TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    // Upgrade: log_names has one row per distinct medicine, also indexed in one go
+    static void createNamesForUpgrade(SQLiteDatabase db) {
+        db.execSQL(CREATE_NAMES_FTS);
+        db.execSQL("INSERT INTO " + NAMES_FTS + " (" + NAMES_FTS + ") VALUES ('rebuild')");
+        for (String sql : CREATE_NAME_TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    // User text -> FTS MATCH expression, e.g. "vit c" -> "vit* c*". Returns
+    // null when nothing searchable is left (FTS syntax characters are dropped).
+    static String matchExpression(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) continue;
+            if (match.length() > 0) match.append(' ');
+            // Lower case so AND / OR / NOT are never read as operators
+            match.append(word.toLowerCase(Locale.ROOT)).append('*');
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    // Medications whose name or instructions match, best first: a hit in the
+    // name counts double, then more hits, then name order
+    static List<Medication> searchMedications(SQLiteDatabase db, String text, int limit) {
+        List<Medication> results = new ArrayList<>();
+        String match = matchExpression(text);
+        if (match == null) {
+            return results;
+        }
+
+        List<int[]> scores = new ArrayList<>();
+        Cursor cursor = db.rawQuery(QUERY_MEDICATIONS, new String[]{match});
+        MedicationMapper mapper = new MedicationMapper(cursor);
+        int offsetsIndex = cursor.getColumnIndexOrThrow("match_offsets");
+        while (cursor.moveToNext()) {
+            Medication medication = mapper.map(cursor);
+            scores.add(new int[]{score(cursor.getString(offsetsIndex)), results.size()});
+            results.add(medication);
+        }
+        cursor.close();
+
+        final List<Medication> unranked = results;
+        Collections.sort(scores, (a, b) -> {
+            if (a[0] != b[0]) return Integer.compare(b[0], a[0]);
+            return unranked.get(a[1]).getMedicineName().compareToIgnoreCase(unranked.get(b[1]).getMedicineName());
+        });
+
+        List<Medication> ranked = new ArrayList<>(Math.min(limit, scores.size()));
+        for (int i = 0; i < scores.size() && i < limit; i++) {
+            ranked.add(unranked.get(scores.get(i)[1]));
+        }
+        return ranked;
+    }
+
+    private static int score(String offsets) {
+        if (offsets == null || offsets.isEmpty()) {
+            return 0;
+        }
+        String[] values = offsets.split(" ");
+        int score = 0;
+        for (int i = 0; i + 3 < values.length; i += 4) {
+            score += values[i].equals("0") ? 2 : 1; // column 0 is medicine_name
+        }
+        return score;
+    }
+
+    // Logs whose medicine name matches, newest first
+    static List<MedicationLog> searchLogs(SQLiteDatabase db, String text, String filter, int limit) {
+        List<MedicationLog> logs = new ArrayList<>();
+        String match = matchExpression(text);
+        if (match == null) {
+            return logs;
+        }
+
+        boolean filtered = !filter.equals("All");
+        Cursor cursor = db.rawQuery(logsQuery(filtered), filtered
+                ? new String[]{match, LogStatus.arg(filter), String.valueOf(limit)}
+                : new String[]{match, String.valueOf(limit)});
+        new MedicationLogMapper(cursor).mapAll(cursor, logs);
+        cursor.close();
+        return logs;
+    }
+}
@@ -0,0 +1,608 @@
+package ict.mgame.iotmedicinebox;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// App-level backup: medications, their dose times and every log (archived
+// ones included) in one compact, checksummed file.
+//
+// Layout, all integers big-endian:
+//   header   int magic "MBSN", int format version, int schema version, long created millis
+//   records  byte tag, then its fields:
+//            MEDICATION  varint id, varint box, varint is_active, 8 strings (MEDICATION_TEXT),
+//                        varint weekday mask, interval days, start day and
+//                        end day, days yyyymmdd or 0 for none (format 3 on)
+//            DOSE        varint medication id, varint minute of day
+//            LOG         signed varint id delta, signed varint timestamp delta,
+//                        signed varint box, string name, string dosage, string status,
+//                        varint medication id (0 = no dose key), and if not 0
+//                        signed varint scheduled time - timestamp (format 2 on)
+//            END         varint medication, dose and log counts
+//   trailer  int CRC32 of everything before it
+//
+// Strings are dictionary coded, which is where most of the saving over the
+// database file comes from: varint 0 is null, 1 is a new UTF-8 literal
+// (varint length, bytes) that both sides append to their dictionary, and
+// n >= 2 repeats dictionary entry n - 2. Medicine names, dosages and
+// statuses repeat on every log, so after the first few rows a log costs a
+// handful of bytes.
+//
+// Writing streams in constant memory and never holds a transaction (see
+// DatabaseHelper.forEachMedicationLogForSnapshot). Restore memory-maps the
+// file, checks the trailer and every record before touching the database,
+// then replaces all data in a single transaction.
+final class Snapshot {
+
+    private static final String TAG = "Snapshot";
+
+    private static final int MAGIC = 0x4D42534E; // "MBSN"
+    static final int FORMAT_VERSION = 3;
+    private static final int HEADER_SIZE = 20;
+    private static final int TRAILER_SIZE = 4;
+
+    private static final int TAG_END = 0;
+    private static final int TAG_MEDICATION = 1;
+    private static final int TAG_DOSE = 2;
+    private static final int TAG_LOG = 3;
+
+    private static final int MAX_DICTIONARY = 1 << 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Auto Backup carries this file instead of the database, see backup_rules.xml
+    static final String DIRECTORY = "backups";
+    static final String FILE_NAME = "medbox.snapshot";
+
+    // Text columns of a medication, in record order
+    private static final String[] MEDICATION_TEXT = {
+            DatabaseHelper.COLUMN_BOX_NAME, DatabaseHelper.COLUMN_MEDICINE_NAME, DatabaseHelper.COLUMN_FREQUENCY,
+            DatabaseHelper.COLUMN_DAYS, DatabaseHelper.COLUMN_TIMES, DatabaseHelper.COLUMN_NOTIFICATION_TIME,
+            DatabaseHelper.COLUMN_INSTRUCTIONS, DatabaseHelper.COLUMN_CREATED_AT
+    };
+
+    // Recurrence columns of a medication, in record order
+    private static final String[] MEDICATION_RULE = {
+            DatabaseHelper.COLUMN_WEEKDAY_MASK, DatabaseHelper.COLUMN_INTERVAL_DAYS,
+            DatabaseHelper.COLUMN_START_DAY, DatabaseHelper.COLUMN_END_DAY
+    };
+    // What a medication from a format 1 or 2 snapshot gets: every day, no bounds
+    private static final int[] DEFAULT_RULE = {Recurrence.EVERY_DAY, 1, 0, 0};
+
+    // One statement, so medications and dose times come from the same instant
+    private static final String QUERY_MEDICATIONS_WITH_DOSES =
+            "SELECT m." + DatabaseHelper.COLUMN_ID + ", m." + DatabaseHelper.COLUMN_BOX_NUMBER + ", m." +
+                    DatabaseHelper.COLUMN_IS_ACTIVE + ", m." + TextUtils.join(", m.", MEDICATION_TEXT) +
+                    ", m." + TextUtils.join(", m.", MEDICATION_RULE) +
+                    ", s.minute_of_day FROM " + DatabaseHelper.TABLE_MEDICATIONS + " m" +
+                    " LEFT JOIN " + DoseSchedule.TABLE + " s ON s.medication_id = m." + DatabaseHelper.COLUMN_ID +
+                    " ORDER BY m." + DatabaseHelper.COLUMN_ID + ", s.minute_of_day";
+
+    private static final String INSERT_MEDICATION =
+            "INSERT INTO " + DatabaseHelper.TABLE_MEDICATIONS + " (" + DatabaseHelper.COLUMN_ID + ", " +
+                    DatabaseHelper.COLUMN_BOX_NUMBER + ", " + DatabaseHelper.COLUMN_IS_ACTIVE + ", " +
+                    TextUtils.join(", ", MEDICATION_TEXT) + ", " + TextUtils.join(", ", MEDICATION_RULE) +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_DOSE =
+            "INSERT INTO " + DoseSchedule.TABLE + " (medication_id, minute_of_day) VALUES (?, ?)";
+    private static final String INSERT_LOG =
+            "INSERT INTO medication_logs (id, name_id, box_number, status, timestamp, medication_id, scheduled_at)" +
+                    " VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    static final class Summary {
+        long createdAt;
+        int formatVersion = FORMAT_VERSION;
+        int schemaVersion;
+        int medications;
+        int doses;
+        long logs;
+        long bytes;
+    }
+
+    private Snapshot() {}
+
+    static File defaultFile(Context context) {
+        return new File(new File(context.getFilesDir(), DIRECTORY), FILE_NAME);
+    }
+
+    // Writes to a temporary file and renames it over file once synced, so an
+    // interrupted write never replaces a good snapshot
+    static Summary write(DatabaseHelper databaseHelper, File file) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        SQLiteDatabase db = databaseHelper.getReadableDatabase();
+        Summary summary = new Summary();
+        summary.createdAt = System.currentTimeMillis();
+        summary.schemaVersion = db.getVersion();
+
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            Encoder encoder = new Encoder(out);
+            encoder.writeInt(MAGIC);
+            encoder.writeInt(FORMAT_VERSION);
+            encoder.writeInt(summary.schemaVersion);
+            encoder.writeLong(summary.createdAt);
+
+            writeMedications(db, encoder, summary);
+
+            long[] previous = {0, 0}; // id, timestamp
+            try {
+                databaseHelper.forEachMedicationLogForSnapshot(log -> {
+                    try {
+                        long timestamp = log.getTimestamp().getTime();
+                        encoder.writeByte(TAG_LOG);
+                        encoder.writeSigned(log.getId() - previous[0]);
+                        encoder.writeSigned(timestamp - previous[1]);
+                        encoder.writeSigned(log.getBoxNumber());
+                        encoder.writeString(log.getMedicineName());
+                        encoder.writeString(log.getDosage());
+                        encoder.writeString(log.getStatus());
+                        if (log.hasDoseKey()) {
+                            encoder.writeVarint(log.getMedicationId());
+                            encoder.writeSigned(log.getScheduledAt() - timestamp);
+                        } else {
+                            encoder.writeVarint(0);
+                        }
+                        previous[0] = log.getId();
+                        previous[1] = timestamp;
+                        summary.logs++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            encoder.writeByte(TAG_END);
+            encoder.writeVarint(summary.medications);
+            encoder.writeVarint(summary.doses);
+            encoder.writeVarint(summary.logs);
+            summary.bytes = encoder.finish();
+            out.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        }
+        out.close();
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        return summary;
+    }
+
+    private static void writeMedications(SQLiteDatabase db, Encoder encoder, Summary summary) throws IOException {
+        Cursor cursor = db.rawQuery(QUERY_MEDICATIONS_WITH_DOSES, null);
+        try {
+            int ruleIndex = 3 + MEDICATION_TEXT.length;
+            int minuteIndex = ruleIndex + MEDICATION_RULE.length;
+            long currentId = -1;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                if (id != currentId) {
+                    currentId = id;
+                    encoder.writeByte(TAG_MEDICATION);
+                    encoder.writeVarint(id);
+                    encoder.writeVarint(cursor.getInt(1));
+                    encoder.writeVarint(cursor.isNull(2) ? 1 : cursor.getInt(2));
+                    for (int i = 0; i < MEDICATION_TEXT.length; i++) {
+                        encoder.writeString(cursor.getString(3 + i));
+                    }
+                    for (int i = 0; i < MEDICATION_RULE.length; i++) {
+                        // NULL bounds read as 0
+                        encoder.writeVarint(cursor.getInt(ruleIndex + i));
+                    }
+                    summary.medications++;
+                }
+                if (!cursor.isNull(minuteIndex)) {
+                    encoder.writeByte(TAG_DOSE);
+                    encoder.writeVarint(id);
+                    encoder.writeVarint(cursor.getInt(minuteIndex));
+                    summary.doses++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Checks header, checksum and every record without touching the database
+    static Summary verify(File file) throws IOException {
+        ByteBuffer body = map(file);
+        Summary summary = readHeader(body, file);
+        decode(body, summary, null);
+        return summary;
+    }
+
+    // Replaces all medications, dose times and logs with the snapshot's. The
+    // file is verified in full first; a bad file leaves the database untouched.
+    // Callers must invalidate the MedicationRepository afterwards.
+    static Summary restore(DatabaseHelper databaseHelper, File file) throws IOException {
+        ByteBuffer mapped = map(file);
+        Summary summary = readHeader(mapped.duplicate(), file);
+        decode(positionedAfterHeader(mapped), summary, null);
+
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        SQLiteStatement insertMedication = db.compileStatement(INSERT_MEDICATION);
+        SQLiteStatement insertDose = db.compileStatement(INSERT_DOSE);
+        SQLiteStatement insertLog = db.compileStatement(INSERT_LOG);
+        LogNames names = LogNames.compile(db);
+        long start = System.currentTimeMillis();
+        // Archive lock before the transaction, the order archive() takes them
+        // in; clearLogArchive below needs the lock while the transaction is open
+        synchronized (databaseHelper.logArchiveLock()) {
+            db.beginTransaction();
+            try {
+                // The delete triggers clear the schedule, search index and rollup rows
+                db.delete(DatabaseHelper.TABLE_MEDICATIONS, null, null);
+                db.delete("medication_logs", null, null);
+                SchemaMigrations.dropUnconvertedLogs(db);
+                db.delete(AdherenceRollup.TABLE, null, null);
+                db.delete(LogNames.TABLE, null, null);
+
+                Summary restored = new Summary();
+                restored.formatVersion = summary.formatVersion;
+                decode(positionedAfterHeader(mapped), restored, new Sink() {
+                    @Override
+                    public void medication(long id, int boxNumber, int isActive, String[] text, int[] rule) {
+                        insertMedication.bindLong(1, id);
+                        insertMedication.bindLong(2, boxNumber);
+                        insertMedication.bindLong(3, isActive);
+                        for (int i = 0; i < text.length; i++) {
+                            StatementCache.bindText(insertMedication, 4 + i, text[i]);
+                        }
+                        for (int i = 0; i < rule.length; i++) {
+                            int index = 4 + text.length + i;
+                            if (i >= 2 && rule[i] == 0) {
+                                insertMedication.bindNull(index);
+                            } else {
+                                insertMedication.bindLong(index, rule[i]);
+                            }
+                        }
+                        insertMedication.executeInsert();
+                    }
+
+                    @Override
+                    public void dose(long medicationId, int minuteOfDay) {
+                        insertDose.bindLong(1, medicationId);
+                        insertDose.bindLong(2, minuteOfDay);
+                        insertDose.executeInsert();
+                    }
+
+                    @Override
+                    public void log(long id, long timestamp, int boxNumber, String medicineName, String dosage,
+                                    String status, long medicationId, long scheduledAt) {
+                        insertLog.bindLong(1, id);
+                        insertLog.bindLong(2, names.idFor(medicineName, dosage));
+                        insertLog.bindLong(3, boxNumber);
+                        LogStatus.bind(insertLog, 4, status);
+                        insertLog.bindLong(5, timestamp);
+                        if (medicationId > 0) {
+                            insertLog.bindLong(6, medicationId);
+                            insertLog.bindLong(7, scheduledAt);
+                        } else {
+                            insertLog.bindNull(6);
+                            insertLog.bindNull(7);
+                        }
+                        insertLog.executeInsert();
+                    }
+                });
+
+                // Last, so a failed restore still has its archive files
+                databaseHelper.clearLogArchive(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insertMedication.close();
+                insertDose.close();
+                insertLog.close();
+                names.close();
+            }
+        }
+        Log.d(TAG, "Restored " + summary.medications + " medications and " + summary.logs + " logs in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return summary;
+    }
+
+    private interface Sink {
+        // rule is weekday mask, interval days, start day, end day (0 = none)
+        void medication(long id, int boxNumber, int isActive, String[] text, int[] rule);
+
+        void dose(long medicationId, int minuteOfDay);
+
+        void log(long id, long timestamp, int boxNumber, String medicineName, String dosage, String status,
+                 long medicationId, long scheduledAt);
+    }
+
+    // The whole file, read-only, with the limit set before the trailer once
+    // the checksum has been checked
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        MappedByteBuffer mapped;
+        try {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a snapshot (" + size + " bytes)");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            input.close();
+        }
+
+        int bodySize = mapped.capacity() - TRAILER_SIZE;
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[BUFFER_SIZE];
+        ByteBuffer body = mapped.duplicate();
+        body.limit(bodySize);
+        while (body.hasRemaining()) {
+            int length = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        if ((int) crc.getValue() != mapped.getInt(bodySize)) {
+            throw new IOException(file + " is corrupt: checksum mismatch");
+        }
+
+        body.position(0);
+        return body;
+    }
+
+    private static ByteBuffer positionedAfterHeader(ByteBuffer mapped) {
+        ByteBuffer body = mapped.duplicate();
+        body.position(HEADER_SIZE);
+        return body;
+    }
+
+    private static Summary readHeader(ByteBuffer body, File file) throws IOException {
+        if (body.getInt() != MAGIC) {
+            throw new IOException(file + " is not a snapshot");
+        }
+        int formatVersion = body.getInt();
+        // Version 1 logs have no dose key, versions 1 and 2 medications no rules
+        if (formatVersion < 1 || formatVersion > FORMAT_VERSION) {
+            throw new IOException(file + " has unsupported format version " + formatVersion);
+        }
+        Summary summary = new Summary();
+        summary.formatVersion = formatVersion;
+        summary.schemaVersion = body.getInt();
+        summary.createdAt = body.getLong();
+        summary.bytes = body.limit() + TRAILER_SIZE;
+        return summary;
+    }
+
+    // Walks every record, counting into summary and passing rows to sink if
+    // it is not null. Fails on anything malformed, including counts that do
+    // not match the END record.
+    private static void decode(ByteBuffer body, Summary summary, Sink sink) throws IOException {
+        Decoder in = new Decoder(body);
+        String[] text = new String[MEDICATION_TEXT.length];
+        int[] rule = DEFAULT_RULE.clone();
+        long previousId = 0;
+        long previousTimestamp = 0;
+        while (true) {
+            int tag = in.readByte();
+            switch (tag) {
+                case TAG_MEDICATION: {
+                    long id = in.readVarint();
+                    int boxNumber = (int) in.readVarint();
+                    int isActive = (int) in.readVarint();
+                    for (int i = 0; i < text.length; i++) {
+                        text[i] = in.readString();
+                    }
+                    if (summary.formatVersion >= 3) {
+                        for (int i = 0; i < rule.length; i++) {
+                            rule[i] = (int) in.readVarint();
+                        }
+                    }
+                    if (sink != null) sink.medication(id, boxNumber, isActive, text, rule);
+                    summary.medications++;
+                    break;
+                }
+                case TAG_DOSE: {
+                    long medicationId = in.readVarint();
+                    long minute = in.readVarint();
+                    if (minute >= DoseSchedule.MINUTES_PER_DAY) {
+                        throw new IOException("Bad dose minute " + minute);
+                    }
+                    if (sink != null) sink.dose(medicationId, (int) minute);
+                    summary.doses++;
+                    break;
+                }
+                case TAG_LOG: {
+                    previousId += in.readSigned();
+                    previousTimestamp += in.readSigned();
+                    int boxNumber = (int) in.readSigned();
+                    String medicineName = in.readString();
+                    String dosage = in.readString();
+                    String status = in.readString();
+                    long medicationId = summary.formatVersion >= 2 ? in.readVarint() : 0;
+                    long scheduledAt = medicationId > 0 ? previousTimestamp + in.readSigned() : 0;
+                    if (sink != null) {
+                        sink.log(previousId, previousTimestamp, boxNumber, medicineName, dosage, status,
+                                medicationId, scheduledAt);
+                    }
+                    summary.logs++;
+                    break;
+                }
+                case TAG_END:
+                    if (in.readVarint() != summary.medications || in.readVarint() != summary.doses
+                            || in.readVarint() != summary.logs) {
+                        throw new IOException("Snapshot record counts do not match");
+                    }
+                    if (body.hasRemaining()) {
+                        throw new IOException("Unexpected data after the end of the snapshot");
+                    }
+                    return;
+                default:
+                    throw new IOException("Unknown snapshot record " + tag);
+            }
+        }
+    }
+
+    // Buffered writer of the primitives above that checksums as it goes
+    private static final class Encoder {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final CRC32 crc = new CRC32();
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private int position;
+        private long written;
+
+        Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeByte(int value) throws IOException {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeInt(int value) throws IOException {
+            writeByte(value >>> 24);
+            writeByte(value >>> 16);
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        void writeLong(long value) throws IOException {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        // Zigzag, so small negative deltas stay small
+        void writeSigned(long value) throws IOException {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            Integer index = dictionary.get(value);
+            if (index != null) {
+                writeVarint(index + 2);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(1);
+            writeVarint(bytes.length);
+            for (byte b : bytes) {
+                writeByte(b);
+            }
+            if (dictionary.size() < MAX_DICTIONARY) {
+                dictionary.put(value, dictionary.size());
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            crc.update(buffer, 0, position);
+            out.write(buffer, 0, position);
+            written += position;
+            position = 0;
+        }
+
+        // Writes the checksum trailer; returns the file size
+        long finish() throws IOException {
+            flushBuffer();
+            int checksum = (int) crc.getValue();
+            out.write(new byte[]{(byte) (checksum >>> 24), (byte) (checksum >>> 16),
+                    (byte) (checksum >>> 8), (byte) checksum});
+            out.flush();
+            return written + TRAILER_SIZE;
+        }
+    }
+
+    private static final class Decoder {
+        private final ByteBuffer buffer;
+        private final List<String> dictionary = new ArrayList<>();
+
+        Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int readByte() throws IOException {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Snapshot is truncated");
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in snapshot");
+        }
+
+        long readSigned() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() throws IOException {
+            long code = readVarint();
+            if (code == 0) {
+                return null;
+            }
+            if (code == 1) {
+                long length = readVarint();
+                if (length > buffer.remaining()) {
+                    throw new IOException("Snapshot is truncated");
+                }
+                byte[] bytes = new byte[(int) length];
+                buffer.get(bytes);
+                String value = new String(bytes, StandardCharsets.UTF_8);
+                if (dictionary.size() < MAX_DICTIONARY) {
+                    dictionary.add(value);
+                }
+                return value;
+            }
+            if (code - 2 >= dictionary.size()) {
+                throw new IOException("Bad string reference in snapshot");
+            }
+            return dictionary.get((int) (code - 2));
+        }
+    }
+}
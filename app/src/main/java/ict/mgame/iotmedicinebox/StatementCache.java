@@ -0,0 +1,48 @@
+package ict.mgame.iotmedicinebox;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Compiled SQLiteStatements for the hot insert/update paths. Each SQL string
+// is compiled once per connection; if the helper hands out a new
+// SQLiteDatabase the old statements are closed and compiled again.
+// Callers must hold the statement's monitor while binding and executing,
+// since the bindings live on the shared statement object.
+class StatementCache {
+
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+    private SQLiteDatabase database;
+
+    synchronized SQLiteStatement get(SQLiteDatabase db, String sql) {
+        if (db != database) {
+            clear();
+            database = db;
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    synchronized void clear() {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        database = null;
+    }
+
+    // bindString rejects null, unlike ContentValues
+    static void bindText(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
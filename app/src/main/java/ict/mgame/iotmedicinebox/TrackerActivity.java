@@ -1,45 +1,72 @@
 package ict.mgame.iotmedicinebox;
 
 import android.app.AlertDialog;
+import android.content.Context;
+import android.content.Intent;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.Bundle;
-import android.view.LayoutInflater;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
-import android.widget.LinearLayout;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.bottomnavigation.BottomNavigationView;
-
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+
 import java.util.*;
 
 public class TrackerActivity extends AppCompatActivity {
 
     private static final String TAG = "MedicationTracker";
 
-    private LinearLayout historyContainer;
+    // Rows fetched per query; the next page is requested when the list
+    // gets within PREFETCH_DISTANCE rows of the end
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 15;
+
+    // Search results are a single page of the newest matches
+    private static final int SEARCH_LIMIT = 200;
+    private static final long SEARCH_DELAY_MS = 150;
+
+    private static final int REQUEST_EXPORT_CSV = 1;
+    private static final int REQUEST_EXPORT_JSON = 2;
+    private static final int REQUEST_IMPORT = 3;
+
+    private RecyclerView historyList;
+    private LinearLayoutManager layoutManager;
+    private MedicationHistoryAdapter historyAdapter;
     private TextView tvEmptyState;
     private Button btnFilterAll, btnFilterTaken, btnFilterMissed;
     private Button btnClearAllData;
     private DatabaseHelper databaseHelper;
+    private QueryExecutor queryExecutor;
 
     private String currentFilter = "All";
+    private EditText etSearch;
+    private String searchText = "";
 
-    // Box colors matching AddMedicineActivity
-    private static final int[] BOX_COLORS = {
-            Color.parseColor("#FF6B6B"), // Box 1 - Red/Orange
-            Color.parseColor("#4ECDC4"), // Box 2 - Teal/Blue
-            Color.parseColor("#FFD166")  // Box 3 - Yellow
-    };
+    // Paging state; loadGeneration discards pages for a filter that is no longer shown
+    private int loadGeneration = 0;
+    private boolean isLoadingPage = false;
+    private boolean reachedEnd = false;
+    private boolean reportedFullyDrawn = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_tracker);
 
-        databaseHelper = new DatabaseHelper(this);
+        databaseHelper = MedBoxApplication.getDatabaseHelper(this);
+        queryExecutor = MedBoxApplication.getQueryExecutor(this);
 
         initViews();
         setupFilterButtons();
@@ -47,7 +74,7 @@ public class TrackerActivity extends AppCompatActivity {
     }
 
     private void initViews() {
-        historyContainer = findViewById(R.id.historyContainer);
+        historyList = findViewById(R.id.historyList);
         tvEmptyState = findViewById(R.id.tvEmptyState);
         btnFilterAll = findViewById(R.id.btnFilterAll);
         btnFilterTaken = findViewById(R.id.btnFilterTaken);
@@ -55,10 +82,7 @@ public class TrackerActivity extends AppCompatActivity {
         btnClearAllData = findViewById(R.id.btnClearAllData);
 
         // Menu button (you can add drawer functionality if needed)
-        findViewById(R.id.btnMenu).setOnClickListener(v -> {
-            // Open navigation drawer or menu
-            Toast.makeText(this, "Menu clicked", Toast.LENGTH_SHORT).show();
-        });
+        findViewById(R.id.btnMenu).setOnClickListener(v -> showTransferMenu());
 
         // Notification button
         findViewById(R.id.btnNotification).setOnClickListener(v -> {
@@ -68,6 +92,41 @@ public class TrackerActivity extends AppCompatActivity {
 
         // Clear all data button
         btnClearAllData.setOnClickListener(v -> showClearDataDialog());
+
+        // Search box; queries the full-text index as the user types
+        etSearch = findViewById(R.id.etSearchHistory);
+        final Runnable search = () -> {
+            searchText = etSearch.getText().toString().trim();
+            loadMedicationHistory();
+        };
+        etSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                etSearch.removeCallbacks(search);
+                etSearch.postDelayed(search, SEARCH_DELAY_MS);
+            }
+        });
+
+        // History list
+        layoutManager = new LinearLayoutManager(this);
+        historyAdapter = new MedicationHistoryAdapter();
+        historyList.setLayoutManager(layoutManager);
+        historyList.setAdapter(historyAdapter);
+        historyList.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int lastVisible = layoutManager.findLastVisibleItemPosition();
+                if (lastVisible >= historyAdapter.getItemCount() - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
     }
 
     private void setupFilterButtons() {
@@ -117,106 +176,77 @@ public class TrackerActivity extends AppCompatActivity {
     }
 
     private void loadMedicationHistory() {
-        historyContainer.removeAllViews();
-
-        // Get medication history from database
-        List<MedicationLog> logs = databaseHelper.getMedicationLogs(currentFilter);
-
-        if (logs.isEmpty()) {
-            tvEmptyState.setVisibility(View.VISIBLE);
-            tvEmptyState.setText("No " + currentFilter.toLowerCase() + " medication records");
-            return;
-        }
-
+        // Start over from the newest row; any page still in flight is dropped
+        loadGeneration++;
+        isLoadingPage = false;
+        reachedEnd = false;
+        historyAdapter.clear();
         tvEmptyState.setVisibility(View.GONE);
 
-        // Group by date
-        Map<String, List<MedicationLog>> groupedLogs = groupLogsByDate(logs);
-
-        // Sort dates in descending order
-        List<String> sortedDates = new ArrayList<>(groupedLogs.keySet());
-        Collections.sort(sortedDates, Collections.reverseOrder());
-
-        for (String date : sortedDates) {
-            // Add date header
-            addDateHeader(date);
-
-            // Add medication items for this date
-            List<MedicationLog> dateLogs = groupedLogs.get(date);
-            for (MedicationLog log : dateLogs) {
-                addMedicationItem(log);
-            }
-        }
+        loadNextPage();
     }
 
-    private Map<String, List<MedicationLog>> groupLogsByDate(List<MedicationLog> logs) {
-        Map<String, List<MedicationLog>> grouped = new LinkedHashMap<>();
-        SimpleDateFormat dateFormat = new SimpleDateFormat("EEEE, dd MMMM", Locale.ENGLISH);
-
-        for (MedicationLog log : logs) {
-            String dateKey = dateFormat.format(log.getTimestamp());
-
-            if (!grouped.containsKey(dateKey)) {
-                grouped.put(dateKey, new ArrayList<>());
+    private void loadNextPage() {
+        if (isLoadingPage || reachedEnd) return;
+        isLoadingPage = true;
+
+        final int generation = loadGeneration;
+        final String filter = currentFilter;
+        final String query = searchText;
+        if (!query.isEmpty()) {
+            QueryExecutor.Task<List<MedicationLog>> task = queryExecutor.query(this,
+                    () -> databaseHelper.searchMedicationLogs(query, filter, SEARCH_LIMIT),
+                    results -> {
+                        // One page only; mark the end before appending
+                        if (generation == loadGeneration) reachedEnd = true;
+                        onPageLoaded(generation, results);
+                    });
+            if (task == null) {
+                isLoadingPage = false;
             }
-            grouped.get(dateKey).add(log);
+            return;
+        }
+        MedicationLog last = historyAdapter.getLastLog();
+        final long beforeTimestamp = last != null ? last.getTimestamp().getTime() : Long.MAX_VALUE;
+        final long beforeId = last != null ? last.getId() : Long.MAX_VALUE;
+
+        QueryExecutor.Task<List<MedicationLog>> task = queryExecutor.query(this,
+                () -> databaseHelper.getMedicationLogsPage(filter, beforeTimestamp, beforeId, PAGE_SIZE),
+                page -> onPageLoaded(generation, page));
+        if (task == null) {
+            // Queue full; the next scroll event asks again
+            isLoadingPage = false;
         }
-
-        return grouped;
-    }
-
-    private void addDateHeader(String date) {
-        TextView dateHeader = new TextView(this);
-        dateHeader.setText(date);
-        dateHeader.setTextSize(16);
-        dateHeader.setTextColor(Color.parseColor("#718096"));
-        dateHeader.setPadding(0, 24, 0, 16);
-
-        LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(
-                LinearLayout.LayoutParams.MATCH_PARENT,
-                LinearLayout.LayoutParams.WRAP_CONTENT
-        );
-        dateHeader.setLayoutParams(params);
-
-        historyContainer.addView(dateHeader);
     }
 
-    private void addMedicationItem(MedicationLog log) {
-        View itemView = LayoutInflater.from(this).inflate(
-                R.layout.item_medication_history, historyContainer, false);
-
-        View pillIcon = itemView.findViewById(R.id.pillIcon);
-        TextView tvMedicationName = itemView.findViewById(R.id.tvMedicationName);
-        TextView tvDosage = itemView.findViewById(R.id.tvDosage);
-        TextView tvTime = itemView.findViewById(R.id.tvTime);
-        LinearLayout statusBadge = itemView.findViewById(R.id.statusBadge);
-        TextView tvStatus = itemView.findViewById(R.id.tvStatus);
-
-        // Set medication details
-        tvMedicationName.setText(log.getMedicineName());
-        tvDosage.setText(log.getDosage());
+    private void onPageLoaded(int generation, List<MedicationLog> page) {
+        if (generation != loadGeneration) return;
+        isLoadingPage = false;
+        if (page.size() < PAGE_SIZE) {
+            reachedEnd = true;
+        }
 
-        SimpleDateFormat timeFormat = new SimpleDateFormat("h:mm a", Locale.ENGLISH);
-        tvTime.setText(timeFormat.format(log.getTimestamp()));
+        historyAdapter.appendPage(page);
 
-        // Set pill color based on box number
-        int boxNumber = log.getBoxNumber();
-        if (boxNumber > 0 && boxNumber <= BOX_COLORS.length) {
-            pillIcon.setBackgroundColor(BOX_COLORS[boxNumber - 1]);
+        // First page on screen: "Fully drawn" in logcat gives the real startup time
+        if (!reportedFullyDrawn) {
+            reportedFullyDrawn = true;
+            reportFullyDrawn();
         }
 
-        // Set status badge
-        if (log.getStatus().equals("Taken")) {
-            statusBadge.setBackgroundResource(R.drawable.status_taken_bg);
-            tvStatus.setText("Taken");
-            tvStatus.setTextColor(Color.parseColor("#22543D"));
-        } else {
-            statusBadge.setBackgroundResource(R.drawable.status_missed_bg);
-            tvStatus.setText("Missed");
-            tvStatus.setTextColor(Color.parseColor("#742A2A"));
+        if (historyAdapter.getItemCount() == 0) {
+            tvEmptyState.setVisibility(View.VISIBLE);
+            tvEmptyState.setText(searchText.isEmpty()
+                    ? "No " + currentFilter.toLowerCase() + " medication records"
+                    : "No " + currentFilter.toLowerCase() + " records match \"" + searchText + "\"");
+            return;
         }
 
-        historyContainer.addView(itemView);
+        // A short page may not fill the screen, so no scroll event would ask for more
+        if (!reachedEnd && layoutManager.findLastVisibleItemPosition()
+                >= historyAdapter.getItemCount() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
     }
 
     private void showClearDataDialog() {
@@ -224,21 +254,156 @@ public class TrackerActivity extends AppCompatActivity {
                 .setTitle("Clear All Data")
                 .setMessage("Are you sure you want to delete all medication history? This action cannot be undone.")
                 .setPositiveButton("Clear", (dialog, which) -> {
-                    databaseHelper.clearAllMedicationLogs();
-                    loadMedicationHistory();
-                    Toast.makeText(this, "All history cleared", Toast.LENGTH_SHORT).show();
+                    queryExecutor.write(this, () -> {
+                        databaseHelper.clearAllMedicationLogs();
+                        return null;
+                    }, ignored -> {
+                        loadMedicationHistory();
+                        Toast.makeText(this, "All history cleared", Toast.LENGTH_SHORT).show();
+                    }, error -> Toast.makeText(this, "Could not clear history", Toast.LENGTH_LONG).show());
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
     }
 
+    private void showTransferMenu() {
+        new AlertDialog.Builder(this)
+                .setTitle("Medication History")
+                .setItems(new String[]{"Export as CSV", "Export as JSON", "Import", "Back up now",
+                        "Restore backup"}, (dialog, which) -> {
+                    switch (which) {
+                        case 0:
+                            pickExportFile(HistoryTransfer.Format.CSV, REQUEST_EXPORT_CSV);
+                            break;
+                        case 1:
+                            pickExportFile(HistoryTransfer.Format.JSON, REQUEST_EXPORT_JSON);
+                            break;
+                        case 2:
+                            Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                            intent.addCategory(Intent.CATEGORY_OPENABLE);
+                            intent.setType("*/*");
+                            intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{
+                                    "text/csv", "text/comma-separated-values", "text/plain", "application/json"});
+                            startActivityForResult(intent, REQUEST_IMPORT);
+                            break;
+                        case 3:
+                            backUp();
+                            break;
+                        case 4:
+                            showRestoreDialog();
+                            break;
+                    }
+                })
+                .show();
+    }
 
+    private void backUp() {
+        final Context context = getApplicationContext();
+        queryExecutor.write(this, () -> {
+            try {
+                Snapshot.Summary summary = Snapshot.write(databaseHelper, Snapshot.defaultFile(context));
+                return "Backed up " + summary.medications + " medications and " + summary.logs
+                        + " records (" + Math.max(1, summary.bytes / 1024) + " KB)";
+            } catch (IOException e) {
+                Log.e(TAG, "Backup failed", e);
+                return "Backup failed: " + e.getMessage();
+            }
+        }, message -> Toast.makeText(this, message, Toast.LENGTH_LONG).show());
+    }
+
+    private void showRestoreDialog() {
+        final Context context = getApplicationContext();
+        queryExecutor.query(this, () -> {
+            try {
+                return Snapshot.verify(Snapshot.defaultFile(context));
+            } catch (IOException e) {
+                Log.w(TAG, "No usable backup", e);
+                return null;
+            }
+        }, summary -> {
+            if (summary == null) {
+                Toast.makeText(this, "No valid backup found", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            String date = new SimpleDateFormat("MMM d, yyyy h:mm a", Locale.getDefault())
+                    .format(new Date(summary.createdAt));
+            new AlertDialog.Builder(this)
+                    .setTitle("Restore Backup")
+                    .setMessage("Replace all medications and history with the backup from " + date + " ("
+                            + summary.medications + " medications, " + summary.logs + " records)?")
+                    .setPositiveButton("Restore", (dialog, which) -> restore())
+                    .setNegativeButton("Cancel", null)
+                    .show();
+        });
+    }
+
+    private void restore() {
+        final Context context = getApplicationContext();
+        queryExecutor.write(this, () -> {
+            try {
+                Snapshot.Summary summary = Snapshot.restore(databaseHelper, Snapshot.defaultFile(context));
+                MedBoxApplication.getMedicationRepository(context).invalidate();
+                return "Restored " + summary.logs + " records";
+            } catch (IOException e) {
+                Log.e(TAG, "Restore failed", e);
+                return "Restore failed: " + e.getMessage();
+            }
+        }, message -> {
+            loadMedicationHistory();
+            Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+        }, error -> {
+            loadMedicationHistory();
+            Toast.makeText(this, "Restore failed: " + error.getMessage(), Toast.LENGTH_LONG).show();
+        });
+    }
+
+    private void pickExportFile(HistoryTransfer.Format format, int requestCode) {
+        String date = new SimpleDateFormat("yyyyMMdd", Locale.US).format(new Date());
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType(format.mimeType);
+        intent.putExtra(Intent.EXTRA_TITLE, "medication-history-" + date + "." + format.extension);
+        startActivityForResult(intent, requestCode);
+    }
 
     @Override
-    protected void onDestroy() {
-        if (databaseHelper != null) {
-            databaseHelper.close();
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) return;
+
+        final Uri uri = data.getData();
+        final Context context = getApplicationContext();
+        switch (requestCode) {
+            case REQUEST_EXPORT_CSV:
+            case REQUEST_EXPORT_JSON:
+                final HistoryTransfer.Format format = requestCode == REQUEST_EXPORT_CSV
+                        ? HistoryTransfer.Format.CSV : HistoryTransfer.Format.JSON;
+                Toast.makeText(this, "Exporting history...", Toast.LENGTH_SHORT).show();
+                queryExecutor.write(this, () -> {
+                    try {
+                        return "Exported " + HistoryTransfer.export(context, uri, format) + " records";
+                    } catch (IOException e) {
+                        Log.e(TAG, "Export failed", e);
+                        return "Export failed: " + e.getMessage();
+                    }
+                }, message -> Toast.makeText(this, message, Toast.LENGTH_LONG).show());
+                break;
+            case REQUEST_IMPORT:
+                Toast.makeText(this, "Importing history...", Toast.LENGTH_SHORT).show();
+                queryExecutor.write(this, () -> {
+                    try {
+                        HistoryTransfer.ImportResult result = HistoryTransfer.importFrom(context, uri);
+                        return "Imported " + result.inserted + " records"
+                                + (result.duplicates() > 0 ? ", skipped " + result.duplicates() + " duplicates" : "");
+                    } catch (IOException e) {
+                        Log.e(TAG, "Import failed", e);
+                        return "Import failed: " + e.getMessage();
+                    }
+                }, message -> {
+                    loadMedicationHistory();
+                    Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+                });
+                break;
         }
-        super.onDestroy();
     }
 }
\ No newline at end of file